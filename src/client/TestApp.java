@@ -1,5 +1,6 @@
 package client;
 
+import common.ConsistencyLevel;
 import common.IInitiatorPeer;
 
 import java.io.IOException;
@@ -27,14 +28,24 @@ public class TestApp {
 
         switch (operation) {
             case "BACKUP":
-                if (args.length != 3) {
+                if (args.length != 3 && args.length != 4) {
                     System.err.println("Invalid number of arguments for operation BACKUP.");
                     return;
                 }
                 pathName = args[2];
 
+                ConsistencyLevel consistency;
+                try {
+                    consistency = args.length == 4
+                            ? ConsistencyLevel.valueOf(args[3].toUpperCase())
+                            : ConsistencyLevel.ONE;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unrecognized consistency level " + args[3] + ".");
+                    return;
+                }
+
                 try {
-                    System.out.println(initiatorPeer.backup(pathName));
+                    System.out.println(initiatorPeer.backup(pathName, consistency));
                 } catch (RemoteException ignored) {
                 } catch (IOException e) {
                     e.printStackTrace();
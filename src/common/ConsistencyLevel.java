@@ -0,0 +1,30 @@
+package common;
+
+/**
+ * Number of copies of each value that must be stored before an insertion is reported as successful.
+ */
+public enum ConsistencyLevel {
+    /* Only the node responsible for the value; replicas are created in the background */
+    ONE,
+    /* A majority of the copies */
+    QUORUM,
+    /* Every copy */
+    ALL;
+
+    /**
+     * Gets the number of copies that must be stored, counting the one of the node responsible for the value.
+     *
+     * @param replicationDegree
+     * @return
+     */
+    public int requiredCopies(int replicationDegree) {
+        switch (this) {
+            case QUORUM:
+                return replicationDegree / 2 + 1;
+            case ALL:
+                return replicationDegree;
+            default:
+                return 1;
+        }
+    }
+}
@@ -1,29 +1,55 @@
 package server;
 
+import server.chord.RingId;
 import server.exceptions.DecryptionFailedException;
+import server.storage.LogStore;
 import server.utils.Encryption;
+import server.utils.Threads;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.xml.bind.DatatypeConverter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static server.utils.Utils.fromHex;
+import static server.utils.Utils.toHex;
 
 
 public class FileManager {
     private final String BASE_DIR;
 
     private static final String REPLICAS_DIR = "Replicas/";
+    private static final String VALUES_DIR = "Values/";
+    /* Values stored by older versions, one file per key */
     private static final String STORED_FILES_DIR = "StoredFiles/";
     private static final String KEYS_DIR = "Keys/";
+    /* Positions of the nodes the server added to its share of the ring, one per line */
+    private static final String TOKENS_FILE = "Tokens";
+    /* Number of backups of this server that use each chunk it stored, one chunk per line */
+    private static final String CHUNK_REFERENCES_FILE = "ChunkReferences";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int REPLICA_MAINTENANCE_THREADS = 2;
+
+    /* There is a store of replicas for each node whose replicas are kept, so they share the threads that maintain them */
+    private final ScheduledExecutorService replicaMaintenanceExecutor = Threads.newScheduledPool(REPLICA_MAINTENANCE_THREADS);
 
-    public FileManager(int nodeId) throws IOException, NoSuchAlgorithmException {
+    public FileManager(RingId nodeId) throws IOException, NoSuchAlgorithmException {
         BASE_DIR = String.valueOf(nodeId) + "/";
         createDirectories();
         Encryption.initializeKey(getKeysDir());
@@ -33,15 +59,18 @@ public class FileManager {
         File parentDir = new File(BASE_DIR);
         parentDir.mkdir();
 
-        File storedFilesDir = new File(getStoredFilesDir());
-        storedFilesDir.mkdir();
+        File valuesDir = new File(getValuesDir());
+        valuesDir.mkdir();
 
         File keysDir = new File(getKeysDir());
         keysDir.mkdir();
+
+        File replicasDir = new File(getReplicasDir());
+        replicasDir.mkdir();
     }
 
-    private String getStoredFilesDir() {
-        return BASE_DIR + STORED_FILES_DIR;
+    private String getValuesDir() {
+        return BASE_DIR + VALUES_DIR;
     }
 
     private String getReplicasDir() {
@@ -52,16 +81,237 @@ public class FileManager {
         return BASE_DIR + KEYS_DIR;
     }
 
-    public void storeReplica(BigInteger key, byte[] content) throws IOException {
-        saveFile(getReplicasDir() + DatatypeConverter.printHexBinary(key.toByteArray()), content);
+    private Path getReplicaStorePath(RingId ownerId) {
+        return Paths.get(getReplicasDir(), String.valueOf(ownerId));
+    }
+
+    /**
+     * Opens the store of the replicas kept on behalf of the given node,
+     * moving into it the replicas stored one file per key by older versions.
+     *
+     * @param ownerId
+     * @return
+     * @throws IOException
+     */
+    public LogStore openReplicaStore(RingId ownerId) throws IOException {
+        File directory = getReplicaStorePath(ownerId).toFile();
+
+        /* Nothing writes to the directory before the store is opened, so temporary files were left by a crash */
+        File[] temporaryFiles = directory.listFiles((dir, name) -> name.endsWith(TEMPORARY_SUFFIX));
+        if (temporaryFiles != null) {
+            for (File file : temporaryFiles)
+                file.delete();
+        }
+
+        LogStore store = new LogStore(directory.toPath(), replicaMaintenanceExecutor);
+
+        /* The files of the store all have an extension, unlike the ones of the replicas stored by older versions */
+        File[] files = directory.listFiles(file -> file.isFile() && file.getName().indexOf('.') < 0);
+        if (files != null && files.length > 0) {
+            int imported = importFiles(files, store);
+            System.out.println("Imported " + imported + " replica(s) of node " + ownerId + ".");
+        }
+
+        return store;
+    }
+
+    /**
+     * Opens the stores of the replicas kept on behalf of other nodes.
+     *
+     * @return The stores, by the ID of the node their replicas are kept on behalf of.
+     * @throws IOException
+     */
+    public HashMap<RingId, LogStore> openReplicaStores() throws IOException {
+        HashMap<RingId, LogStore> stores = new HashMap<>();
+        File[] ownerDirs = new File(getReplicasDir()).listFiles(File::isDirectory);
+        if (ownerDirs == null)
+            return stores;
+
+        for (File ownerDir : ownerDirs) {
+            RingId ownerId;
+            try {
+                ownerId = RingId.of(new BigInteger(ownerDir.getName()));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring unknown directory in replicas directory: " + ownerDir.getPath());
+                continue;
+            }
+
+            stores.put(ownerId, openReplicaStore(ownerId));
+        }
+
+        return stores;
+    }
+
+    /**
+     * Closes the given store of the replicas kept on behalf of the given node, and deletes it.
+     *
+     * @param ownerId
+     * @param store
+     * @throws IOException
+     */
+    public void deleteReplicaStore(RingId ownerId, LogStore store) throws IOException {
+        store.close();
+
+        File directory = getReplicaStorePath(ownerId).toFile();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+    }
+
+    /**
+     * Stores the positions of the nodes added to the server, replacing the ones stored before.
+     *
+     * @param tokens
+     * @throws IOException
+     */
+    public void saveTokens(Collection<RingId> tokens) throws IOException {
+        Path path = Paths.get(BASE_DIR, TOKENS_FILE);
+        Path temporaryPath = path.resolveSibling(TOKENS_FILE + TEMPORARY_SUFFIX);
+
+        ArrayList<String> lines = new ArrayList<>();
+        for (RingId token : tokens)
+            lines.add(token.toString());
+
+        Files.write(temporaryPath, lines, StandardCharsets.UTF_8);
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the positions of the nodes added to the server.
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<RingId> loadTokens() throws IOException {
+        ArrayList<RingId> tokens = new ArrayList<>();
+        Path path = Paths.get(BASE_DIR, TOKENS_FILE);
+        if (!Files.exists(path))
+            return tokens;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            try {
+                tokens.add(RingId.of(new BigInteger(line.trim())));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid token in " + path + ": " + line);
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Stores the number of backups that use each chunk, replacing the ones stored before.
+     *
+     * @param references
+     * @throws IOException
+     */
+    public void saveChunkReferences(Map<BigInteger, Integer> references) throws IOException {
+        Path path = Paths.get(BASE_DIR, CHUNK_REFERENCES_FILE);
+        Path temporaryPath = path.resolveSibling(CHUNK_REFERENCES_FILE + TEMPORARY_SUFFIX);
+
+        ArrayList<String> lines = new ArrayList<>();
+        for (Map.Entry<BigInteger, Integer> entry : references.entrySet())
+            lines.add(toHex(entry.getKey().toByteArray()) + " " + entry.getValue());
+
+        Files.write(temporaryPath, lines, StandardCharsets.UTF_8);
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    public void storeFile(BigInteger key, byte[] content) throws IOException {
-        saveFile(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()), content);
+    /**
+     * Loads the number of backups that use each chunk.
+     *
+     * @return
+     * @throws IOException
+     */
+    public HashMap<BigInteger, Integer> loadChunkReferences() throws IOException {
+        HashMap<BigInteger, Integer> references = new HashMap<>();
+        Path path = Paths.get(BASE_DIR, CHUNK_REFERENCES_FILE);
+        if (!Files.exists(path))
+            return references;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ");
+
+            try {
+                references.put(new BigInteger(fromHex(fields[0])), Integer.parseInt(fields[1]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Ignoring invalid chunk reference in " + path + ": " + line);
+            }
+        }
+
+        return references;
+    }
+
+    /**
+     * Gets the size of the disk the values are stored in.
+     *
+     * @return The size in bytes.
+     */
+    public long getDiskSize() {
+        return new File(BASE_DIR).getTotalSpace();
+    }
+
+    /**
+     * Opens the store of the values kept by this node, moving into it the values stored by older versions.
+     *
+     * @return
+     * @throws IOException
+     */
+    public LogStore openValueStore() throws IOException {
+        LogStore store = new LogStore(Paths.get(getValuesDir()));
+        importStoredFiles(store);
+        return store;
+    }
+
+    /**
+     * Moves the values stored one file per key into the given store.
+     *
+     * @param store
+     * @throws IOException
+     */
+    private void importStoredFiles(LogStore store) throws IOException {
+        File storedFilesDir = new File(BASE_DIR + STORED_FILES_DIR);
+        File[] files = storedFilesDir.listFiles(File::isFile);
+        if (files == null)
+            return;
+
+        int imported = importFiles(files, store);
+        System.out.println("Imported " + imported + " stored file(s) from " + storedFilesDir.getPath() + ".");
+        storedFilesDir.delete();
+    }
+
+    /**
+     * Moves the given files, each with the value of the key it is named after, into the given store.
+     * The files are only deleted once the store is forced to disk, as they may be the only copy of their values.
+     *
+     * @param files
+     * @param store
+     * @return The number of files that were imported.
+     * @throws IOException
+     */
+    private int importFiles(File[] files, LogStore store) throws IOException {
+        ArrayList<File> importedFiles = new ArrayList<>();
+        for (File file : files) {
+            try {
+                store.put(new BigInteger(fromHex(file.getName())), Files.readAllBytes(file.toPath()));
+                importedFiles.add(file);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring unknown file: " + file.getPath());
+            }
+        }
+
+        store.sync();
+        for (File file : importedFiles)
+            file.delete();
+
+        return importedFiles.size();
     }
 
     private void saveFile(String path, byte[] content) throws IOException {
-        createDirectories();
         File file = new File(path);
         FileOutputStream fileOutputStream = new FileOutputStream(file);
         fileOutputStream.write(content);
@@ -70,24 +320,11 @@ public class FileManager {
     }
 
     public byte[] loadFile(String path) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(path);
-
-        byte[] content = new byte[fileInputStream.available()];
-        fileInputStream.read(content);
-        return content;
-    }
-
-    public byte[] loadStoredFile(BigInteger key) throws IOException {
-        return loadFile(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()));
+        return Files.readAllBytes(Paths.get(path));
     }
 
     public void saveRestoredFile(String path, byte[] content) throws IOException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, ClassNotFoundException, DecryptionFailedException {
         saveFile(path, Encryption.decrypt(content));
     }
 
-    public void delete(BigInteger key) {
-        File file = new File(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()));
-        file.delete();
-    }
-
 }
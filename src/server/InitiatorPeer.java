@@ -1,74 +1,298 @@
 package server;
 
+import common.ConsistencyLevel;
 import common.IInitiatorPeer;
+import server.backup.Chunker;
+import server.backup.Manifest;
 import server.chord.DistributedHashTable;
 import server.exceptions.DecryptionFailedException;
 import server.utils.Encryption;
+import server.utils.Threads;
 import server.utils.Utils;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.xml.bind.DatatypeConverter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer {
+    private static final int MAX_IN_FLIGHT_CHUNKS = 8;
+    private static final int CHUNK_TRANSFER_THREADS = 16;
+
     private final DistributedHashTable dht;
     private final FileManager fileManager;
+    private final ExecutorService chunkTransferPool = Threads.newPool(CHUNK_TRANSFER_THREADS);
+
+    private final AtomicLong insertedChunks = new AtomicLong(0);
+    private final AtomicLong insertedBytes = new AtomicLong(0);
+    private final AtomicLong deduplicatedChunks = new AtomicLong(0);
+    private final AtomicLong deduplicatedBytes = new AtomicLong(0);
+
+    /* Number of backups of this server that use each chunk encrypted with the node's key, so that a chunk is deleted
+     * with the last backup using it. Convergently encrypted chunks are not counted, as other servers may use them. */
+    private final ConcurrentHashMap<BigInteger, Integer> chunkReferences;
+    /* Chunks no longer used that are being deleted. A backup that uses one of them waits for its deletion
+     * before inserting it, so a chunk is never deleted after a backup found it stored */
+    private final ConcurrentHashMap<BigInteger, CompletableFuture<Void>> deletingChunks = new ConcurrentHashMap<>();
+    /* Chunks being checked and inserted by a backup, with whether they ended up stored. Another backup using one of them
+     * waits for that instead of checking whether it is stored in the meantime, and inserting it again */
+    private final ConcurrentHashMap<BigInteger, CompletableFuture<Boolean>> insertingChunks = new ConcurrentHashMap<>();
+    /* Guards the counts of the chunks together with the chunks being inserted and deleted, and is never held while waiting */
+    private final Object chunkReferencesLock = new Object();
 
     InitiatorPeer(DistributedHashTable dht) throws IOException, NoSuchAlgorithmException {
         super();
         this.dht = dht;
         fileManager = dht.getFileManager();
+        chunkReferences = new ConcurrentHashMap<>(fileManager.loadChunkReferences());
     }
 
     /**
-     * Starts the Backup Protocol from the file in the given path.
+     * Starts the Backup Protocol from the file in the given path, with the ONE consistency level.
+     *
      * @param pathName
      * @return
      * @throws IOException
      */
     @Override
     public String backup(String pathName) throws IOException {
-        byte[] file;
-        try {
-            file = fileManager.loadFile(pathName);
+        return backup(pathName, ConsistencyLevel.ONE);
+    }
+
+    /**
+     * Starts the Backup Protocol from the file in the given path.
+     * The file is read one chunk at a time, so memory usage does not depend on its size.
+     * Lastly, a manifest listing the chunks is inserted, whose key identifies the file.
+     *
+     * @param pathName
+     * @param consistency Number of copies of each chunk that must be stored before it is considered backed up.
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public String backup(String pathName, ConsistencyLevel consistency) throws IOException {
+        List<BigInteger> countedChunks = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<String> error = new AtomicReference<>();
+        BigInteger key;
+
+        key = insertFile(pathName, consistency, countedChunks, error);
+
+        /* The chunks of a failed backup are not used by it, and are deleted if no other backup uses them */
+        if (key == null)
+            releaseChunks(countedChunks);
+
+        saveChunkReferences();
+
+        if (key == null)
+            return error.get();
+
+        return "File " + pathName + " stored with key " + Utils.toHex(key.toByteArray());
+    }
+
+    /**
+     * Inserts the chunks of the file in the given path, followed by its manifest.
+     * While a chunk is read, the ones before it are encrypted and inserted in parallel,
+     * but at most MAX_IN_FLIGHT_CHUNKS at a time, so that memory usage is bounded.
+     *
+     * @param pathName
+     * @param consistency
+     * @param countedChunks Chunks counted as used by this backup, to which the inserted ones are added.
+     * @param error         Where the reason of the failure is set.
+     * @return The key of the manifest, or null if the backup failed.
+     */
+    private BigInteger insertFile(String pathName, ConsistencyLevel consistency, List<BigInteger> countedChunks, AtomicReference<String> error) {
+        Manifest manifest = new Manifest();
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT_CHUNKS);
+
+        try (FileInputStream inputStream = new FileInputStream(pathName)) {
+            Chunker chunker = new Chunker(inputStream);
+            byte[] chunk;
+
+            while (error.get() == null && (chunk = chunker.nextChunk()) != null) {
+                byte[] encryptionKey = Encryption.isConvergent()
+                        ? Encryption.generateConvergentKey(chunk)
+                        : null;
+                BigInteger chunkKey = encryptionKey == null
+                        ? new BigInteger(Encryption.generateChunkKey(chunk))
+                        : new BigInteger(Utils.hash(encryptionKey));
+
+                manifest.addChunk(chunkKey, chunk.length, encryptionKey);
+
+                /* Waited for here, so that the threads deleting chunks are never taken by chunks waiting for them */
+                if (encryptionKey == null)
+                    acquireChunk(chunkKey, countedChunks);
+
+                byte[] content = chunk;
+                window.acquireUninterruptibly();
+                chunkTransferPool.submit(() -> {
+                    try {
+                        if (!insertChunk(chunkKey, content, encryptionKey, consistency, countedChunks))
+                            error.compareAndSet(null, "File " + pathName + " could not be inserted in the system.");
+                    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException e) {
+                        error.compareAndSet(null, "Could not encrypt file. Aborting backup...");
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                        error.compareAndSet(null, "Backup of file " + pathName + " timed out.");
+                    } finally {
+                        window.release();
+                    }
+                });
+            }
         } catch (IOException e) {
-            return "Could not open file. Aborting backup...";
+            error.compareAndSet(null, "Could not open file. Aborting backup...");
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            error.compareAndSet(null, "Could not create key for file backup. Aborting...");
+        } finally {
+            /* Wait for the chunks still in flight */
+            window.acquireUninterruptibly(MAX_IN_FLIGHT_CHUNKS);
         }
 
-        BigInteger key;
+        if (error.get() != null)
+            return null;
+
         try {
-            key = new BigInteger(Utils.hash(file));
-        } catch (NoSuchAlgorithmException e) {
-            return "Could not create key for file backup. Aborting...";
+            BigInteger key = insertManifest(manifest, consistency);
+            if (key == null)
+                error.set("File " + pathName + " could not be inserted in the system.");
+
+            return key;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            error.set("Could not create key for file backup. Aborting...");
+        } catch (InvalidKeyException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException e) {
+            error.set("Could not encrypt file. Aborting backup...");
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            error.set("Backup of file " + pathName + " timed out.");
         }
 
-        try {
-            file = Encryption.encrypt(file);
-        } catch (InvalidKeyException | NoSuchPaddingException | BadPaddingException | NoSuchAlgorithmException | IllegalBlockSizeException e) {
-            return "Could not encrypt file. Aborting backup...";
+        return null;
+    }
+
+    /**
+     * Encrypts the given chunk and inserts it in the network with the given key, which is derived from its content.
+     * If a chunk with the same key is already stored, e.g. from a previous version of the file or
+     * from another file, then it is not sent again. Only one backup at a time checks and inserts a chunk,
+     * and the others using it wait for it, inserting the chunk themselves only if it could not.
+     * The key of a chunk encrypted with the node's key is a MAC with that key, so that chunks stored by
+     * other nodes, which this node cannot decrypt, never match it. Such a chunk was already counted as used by the backup.
+     *
+     * @param key
+     * @param chunk
+     * @param encryptionKey Convergent key to encrypt the chunk with, or null to use the node's key.
+     * @param consistency
+     * @param countedChunks Chunks counted as used by the backup, to which the chunk is added if it is counted.
+     * @return true if the chunk is stored.
+     */
+    private boolean insertChunk(BigInteger key, byte[] chunk, byte[] encryptionKey, ConsistencyLevel consistency, List<BigInteger> countedChunks) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture<Boolean> insertion = new CompletableFuture<>();
+
+        while (true) {
+            CompletableFuture<Boolean> otherInsertion;
+            synchronized (chunkReferencesLock) {
+                otherInsertion = insertingChunks.putIfAbsent(key, insertion);
+            }
+
+            if (otherInsertion == null)
+                break;
+
+            /* A backup inserting a chunk never waits for another chunk, so waiting for it cannot deadlock */
+            if (otherInsertion.get()) {
+                deduplicatedChunks.incrementAndGet();
+                deduplicatedBytes.addAndGet(chunk.length);
+                return true;
+            }
         }
 
+        boolean stored = false;
         try {
-            if (dht.insert(key, file))
-                return "File " + pathName + " stored with key " + DatatypeConverter.printHexBinary(key.toByteArray());
-            else
-                return "File " + pathName + " could not be inserted in the system.";
+            if (dht.containsKey(key)) {
+                deduplicatedChunks.incrementAndGet();
+                deduplicatedBytes.addAndGet(chunk.length);
+                stored = true;
+                return true;
+            }
 
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            return "Backup of file " + pathName + " timed out.";
+            byte[] encryptedChunk = encryptionKey == null
+                    ? Encryption.encrypt(chunk)
+                    : Encryption.encrypt(chunk, encryptionKey);
+
+            if (!dht.insert(key, encryptedChunk, consistency))
+                return false;
+
+            insertedChunks.incrementAndGet();
+            insertedBytes.addAndGet(chunk.length);
+            stored = true;
+            return true;
+        } finally {
+            synchronized (chunkReferencesLock) {
+                insertingChunks.remove(key);
+            }
+
+            insertion.complete(stored);
+        }
+    }
+
+    /**
+     * Counts the given chunk as used by one more backup, before it is inserted, and waits for it to be deleted
+     * if it is being deleted, so that it is inserted again.
+     *
+     * @param key
+     * @param countedChunks Chunks counted as used by the backup, to which the chunk is added.
+     */
+    private void acquireChunk(BigInteger key, List<BigInteger> countedChunks) {
+        CompletableFuture<Void> deletion;
+        synchronized (chunkReferencesLock) {
+            chunkReferences.merge(key, 1, Integer::sum);
+            deletion = deletingChunks.get(key);
         }
+
+        countedChunks.add(key);
+
+        if (deletion != null)
+            deletion.join();
+    }
+
+    /**
+     * Encrypts the given manifest with the node's key and inserts it in the network.
+     * The key is the hash of the encrypted manifest, so that manifests of the same file
+     * backed up from different nodes do not overwrite each other.
+     *
+     * @param manifest
+     * @param consistency
+     * @return The key of the manifest, or null if the insertion failed.
+     */
+    private BigInteger insertManifest(Manifest manifest, ConsistencyLevel consistency) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, InterruptedException, ExecutionException, TimeoutException {
+        byte[] content = Encryption.encrypt(manifest.toByteArray());
+        BigInteger key = new BigInteger(Utils.hash(content));
+
+        if (dht.insert(key, content, consistency))
+            return key;
+
+        return null;
     }
 
     /**
      * Starts the Restore Protocol from the file with the given key and stores it in the given path.
+     * The key identifies the manifest of the file, from which the chunks are retrieved in parallel.
      *
      * @param hexKey
      * @param filename
@@ -77,40 +301,254 @@ public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer
      */
     @Override
     public boolean restore(String hexKey, String filename) throws IOException {
-        BigInteger key = new BigInteger(DatatypeConverter.parseHexBinary(hexKey));
-        byte[] content = dht.get(key);
+        BigInteger key = new BigInteger(Utils.fromHex(hexKey));
+        byte[] content = getChunk(key, null);
 
-        if (content != null) {
-            try {
-                fileManager.saveRestoredFile(filename, content);
-            } catch (DecryptionFailedException | BadPaddingException e) {
-                System.err.println("Attempted decryption with wrong key. Restore failed...");
-                return false;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-        } else {
+        if (content == null) {
             System.err.println("File stored with key " + hexKey + " not found.");
             return false;
         }
 
+        Manifest manifest = Manifest.fromByteArray(content);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            /* Files stored before chunking was introduced are stored as a whole */
+            if (manifest == null)
+                writeChunk(channel, content, 0);
+            else if (!restoreChunks(manifest, channel)) {
+                System.err.println("File stored with key " + hexKey + " could not be restored.");
+                return false;
+            }
+        }
+
         System.out.println("File stored with key " + hexKey + " restored successfully.");
         return true;
     }
 
+    /**
+     * Retrieves all the chunks in the manifest and writes each one at its offset in the given channel.
+     * Chunks are retrieved in parallel, but at most MAX_IN_FLIGHT_CHUNKS at a time, so that memory usage is bounded.
+     *
+     * @param manifest
+     * @param channel
+     * @return true if every chunk was retrieved and written.
+     */
+    private boolean restoreChunks(Manifest manifest, FileChannel channel) {
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT_CHUNKS);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        long offset = 0;
+
+        for (int i = 0; i < manifest.getChunkCount() && !failed.get(); i++) {
+            BigInteger chunkKey = manifest.getChunkKey(i);
+            int chunkSize = manifest.getChunkSize(i);
+            byte[] encryptionKey = manifest.getChunkEncryptionKey(i);
+            long chunkOffset = offset;
+            offset += chunkSize;
+
+            window.acquireUninterruptibly();
+            chunkTransferPool.submit(() -> {
+                try {
+                    byte[] chunk = getChunk(chunkKey, encryptionKey);
+
+                    if (chunk == null || chunk.length != chunkSize) {
+                        System.err.println("Chunk with key " + Utils.toHex(chunkKey.toByteArray()) + " could not be retrieved.");
+                        failed.set(true);
+                    } else {
+                        writeChunk(channel, chunk, chunkOffset);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                } finally {
+                    window.release();
+                }
+            });
+        }
+
+        /* Wait for the chunks still in flight */
+        window.acquireUninterruptibly(MAX_IN_FLIGHT_CHUNKS);
+
+        return !failed.get();
+    }
+
+    /**
+     * Writes the given chunk in the given channel, starting at the given offset.
+     *
+     * @param channel
+     * @param chunk
+     * @param offset
+     * @throws IOException
+     */
+    private static void writeChunk(FileChannel channel, byte[] chunk, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+        while (buffer.hasRemaining())
+            offset += channel.write(buffer, offset);
+    }
+
+    /**
+     * Gets the chunk with the given key from the network and decrypts it.
+     *
+     * @param key
+     * @param encryptionKey Convergent key the chunk was encrypted with, or null if it was encrypted with the node's key.
+     * @return The decrypted chunk, or null if it could not be retrieved or decrypted.
+     */
+    private byte[] getChunk(BigInteger key, byte[] encryptionKey) {
+        byte[] content = dht.get(key);
+
+        if (content == null)
+            return null;
+
+        try {
+            return encryptionKey == null
+                    ? Encryption.decrypt(content)
+                    : Encryption.decrypt(content, encryptionKey);
+        } catch (DecryptionFailedException | BadPaddingException e) {
+            System.err.println("Attempted decryption with wrong key. Restore failed...");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     /**
      *
      * Starts the Delete Protocol of the file with the given key.
+     * The manifest of the file is deleted, followed by the chunks no other backup of this server uses.
+     * Only files backed up by this server can be deleted, as the chunks are listed in the encrypted manifest.
      * @param hexKey
-     * @return
+     * @return true if the file and every chunk no longer used were deleted.
      */
     @Override
     public boolean delete(String hexKey) {
-        BigInteger key = new BigInteger(DatatypeConverter.parseHexBinary(hexKey));
-        boolean ret = dht.delete(key);
+        BigInteger key = new BigInteger(Utils.fromHex(hexKey));
+        byte[] content = getChunk(key, null);
+
+        if (content == null) {
+            System.err.println("File stored with key " + hexKey + " not found or not backed up by this server.");
+            return false;
+        }
+
+        Manifest manifest;
+        try {
+            manifest = Manifest.fromByteArray(content);
+        } catch (IOException e) {
+            System.err.println("File stored with key " + hexKey + " has an invalid manifest, so its chunks are unknown.");
+            return false;
+        }
+
+        if (!dht.delete(key)) {
+            System.err.println("File stored with key " + hexKey + " could not be deleted.");
+            return false;
+        }
+
+        /* Files stored before chunking was introduced are stored as a whole */
+        boolean deleted = true;
+        if (manifest != null) {
+            List<BigInteger> chunkKeys = new ArrayList<>();
+            for (int i = 0; i < manifest.getChunkCount(); i++)
+                chunkKeys.add(manifest.getChunkKey(i));
+
+            deleted = releaseChunks(chunkKeys);
+        }
+
+        saveChunkReferences();
+
+        if (!deleted) {
+            System.err.println("File stored with key " + hexKey + " deleted, but some of its chunks could not be.");
+            return false;
+        }
+
         System.out.println("File stored with key " + hexKey + " deleted successfully.");
-        return ret;
+        return true;
+    }
+
+    /**
+     * Releases the given chunks, deleting from the network the ones no other backup of this server uses.
+     * Chunks that are not counted, because they are encrypted with a convergent key or were stored before the chunks
+     * were counted, may be used by other backups, so they are kept.
+     * Chunks are deleted in parallel, but at most MAX_IN_FLIGHT_CHUNKS at a time.
+     *
+     * @param chunkKeys
+     * @return true if every chunk no longer used was deleted.
+     */
+    private boolean releaseChunks(List<BigInteger> chunkKeys) {
+        ArrayList<BigInteger> unusedChunks = new ArrayList<>();
+        int sharedChunks = 0;
+
+        synchronized (chunkReferencesLock) {
+            for (BigInteger chunkKey : chunkKeys) {
+                if (!chunkReferences.containsKey(chunkKey)) {
+                    sharedChunks++;
+                    continue;
+                }
+
+                if (chunkReferences.compute(chunkKey, (k, count) -> count > 1 ? count - 1 : null) == null) {
+                    unusedChunks.add(chunkKey);
+                    deletingChunks.put(chunkKey, new CompletableFuture<>());
+                }
+            }
+        }
+
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT_CHUNKS);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        for (BigInteger chunkKey : unusedChunks) {
+            window.acquireUninterruptibly();
+            chunkTransferPool.submit(() -> {
+                boolean deleted = false;
+                try {
+                    deleted = dht.delete(chunkKey);
+                    if (!deleted) {
+                        System.err.println("Chunk with key " + Utils.toHex(chunkKey.toByteArray()) + " could not be deleted.");
+                        failed.set(true);
+                    }
+                } finally {
+                    finishDeletion(chunkKey, deleted);
+                    window.release();
+                }
+            });
+        }
+
+        /* Wait for the chunks still being deleted */
+        window.acquireUninterruptibly(MAX_IN_FLIGHT_CHUNKS);
+
+        if (sharedChunks > 0)
+            System.out.println(sharedChunks + " chunk(s) kept, as other backups may use them.");
+
+        return !failed.get();
+    }
+
+    /**
+     * Finishes the deletion of the given chunk, letting the backups that use it insert it again.
+     * If the chunk could not be deleted, it is still stored, so its count is restored instead of losing track of it.
+     *
+     * @param key
+     * @param deleted
+     */
+    private void finishDeletion(BigInteger key, boolean deleted) {
+        CompletableFuture<Void> deletion;
+        synchronized (chunkReferencesLock) {
+            if (!deleted)
+                chunkReferences.merge(key, 1, Integer::sum);
+
+            deletion = deletingChunks.remove(key);
+        }
+
+        deletion.complete(null);
+    }
+
+    /**
+     * Stores the number of backups that use each chunk, so that it is known after a restart.
+     */
+    private synchronized void saveChunkReferences() {
+        try {
+            fileManager.saveChunkReferences(chunkReferences);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -121,6 +559,26 @@ public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer
      */
     @Override
     public String state() {
-        return dht.getState();
+        long inserted = insertedChunks.get();
+        long deduplicated = deduplicatedChunks.get();
+        long total = inserted + deduplicated;
+
+        StringBuilder sb = new StringBuilder(dht.getState());
+        sb.append("\nDeduplication:\n");
+        sb.append("Chunks inserted: ");
+        sb.append(inserted);
+        sb.append(" (");
+        sb.append(insertedBytes.get());
+        sb.append(" bytes)\n");
+        sb.append("Chunks deduplicated: ");
+        sb.append(deduplicated);
+        sb.append(" (");
+        sb.append(deduplicatedBytes.get());
+        sb.append(" bytes)\n");
+        sb.append("Hit ratio: ");
+        sb.append(total == 0 ? "n/a" : String.format("%.2f%%", 100.0 * deduplicated / total));
+        sb.append("\n");
+
+        return sb.toString();
     }
 }
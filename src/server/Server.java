@@ -1,7 +1,7 @@
 package server;
 
-import server.chord.Node;
 import server.chord.NodeInfo;
+import server.chord.Peer;
 import server.communication.Mailman;
 
 import java.io.IOException;
@@ -32,43 +32,45 @@ public class Server {
             return;
         }
 
-        Node node;
+        Peer peer;
         try {
-            node = new Node(address, port);
+            peer = new Peer(address, port);
         } catch (IOException | NoSuchAlgorithmException e) {
             e.printStackTrace();
             System.err.println("Could not create node, aborting...");
             return;
         }
 
-        Mailman.init(node, port);
+        Mailman.init(peer, port);
 
         try {
-            LocateRegistry.getRegistry().rebind(args[0], new InitiatorPeer(node.getDistributedHashTable()));
+            LocateRegistry.getRegistry().rebind(args[0], new InitiatorPeer(peer.getDistributedHashTable()));
         } catch (RemoteException e) {
             System.out.println("Could not connect to rmiregistry. TestApp will not be available on this server.");
         }
 
-        System.out.println("Node running on " + address.getHostAddress() + ":" + port + " with id " + Integer.toUnsignedString(node.getInfo().getId()) + " and access point " + args[0] + ".");
+        System.out.println("Node running on " + address.getHostAddress() + ":" + port + " with id " + peer.getInfo().getId() + " and access point " + args[0] + ".");
 
-        /* Joining an existing network */
+        /* Joining an existing network. Otherwise, the other nodes of this server join the first one */
+        NodeInfo bootstrapNode = null;
         if (args.length == 4) {
             int bootstrapPort = Integer.parseUnsignedInt(args[3]);
             InetAddress bootstrapAddress = InetAddress.getByName(args[2]);
+            bootstrapNode = new NodeInfo(bootstrapAddress, bootstrapPort);
+            System.out.println("Starting the process of joining the network...");
+        }
 
-            try {
-                System.out.println("Starting the process of joining the network...");
-                if (!node.bootstrap(new NodeInfo(bootstrapAddress, bootstrapPort))) {
-                    System.err.println("Node bootstrapping failed. Exiting..");
-                    return;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+        try {
+            if (!peer.bootstrap(bootstrapNode)) {
+                System.err.println("Node bootstrapping failed. Exiting..");
+                return;
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
 
         System.out.println("Joined the network successfully.");
-        node.initiateStabilization();
+        peer.initiateStabilization();
     }
 
     /**
@@ -0,0 +1,98 @@
+package server.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks as it is read, so that only one chunk has to be kept in memory at a time.
+ * Chunk boundaries are defined by the content (using a Gear rolling hash), instead of by fixed offsets.
+ * As such, an insertion or removal in a file only changes the chunks around it, and the remaining chunks
+ * keep their keys and do not need to be stored again.
+ */
+public class Chunker {
+    public static final int MIN_CHUNK_SIZE = 256 * 1024; // 256 KiB
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024; // 4 MiB
+
+    /* A boundary is found when the 20 most significant bits of the hash are zero, giving 1 MiB chunks on average.
+     * The most significant bits are used because they depend on a wider window of bytes. */
+    private static final long BOUNDARY_MASK = ((1L << 20) - 1) << 44;
+
+    /* Every node must find the same boundaries, so the table is generated from a fixed seed. */
+    private static final long GEAR_SEED = 0x4442534348554E4BL;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int length = 0;
+    private boolean endOfStream = false;
+
+    public Chunker(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Reads the next chunk from the stream.
+     *
+     * @return The next chunk, or null if the end of the stream was reached.
+     * @throws IOException
+     */
+    public byte[] nextChunk() throws IOException {
+        fillBuffer();
+
+        if (length == 0)
+            return null;
+
+        int boundary = findBoundary();
+        byte[] chunk = Arrays.copyOf(buffer, boundary);
+
+        /* Keep the bytes after the boundary for the next chunk */
+        System.arraycopy(buffer, boundary, buffer, 0, length - boundary);
+        length -= boundary;
+
+        return chunk;
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends.
+     *
+     * @throws IOException
+     */
+    private void fillBuffer() throws IOException {
+        while (!endOfStream && length < buffer.length) {
+            int read = inputStream.read(buffer, length, buffer.length - length);
+
+            if (read < 0)
+                endOfStream = true;
+            else
+                length += read;
+        }
+    }
+
+    /**
+     * Finds the end of the chunk at the start of the buffer.
+     *
+     * @return Length of the chunk.
+     */
+    private int findBoundary() {
+        if (length <= MIN_CHUNK_SIZE)
+            return length;
+
+        long fingerprint = 0;
+        for (int i = MIN_CHUNK_SIZE; i < length; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+
+            if ((fingerprint & BOUNDARY_MASK) == 0)
+                return i + 1;
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,180 @@
+package server.backup;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Describes a backed up file as the ordered list of the chunks it was split into.
+ * The manifest is stored in the network under its own key, which is the one returned to the user.
+ * It is always encrypted with the node's key, as it holds the keys of convergently encrypted chunks.
+ * Files stored before chunking was introduced are stored as a whole under the same kind of key, so a manifest is only
+ * recognized if all of it is valid: since version 3 it ends with a checksum of the rest, and the manifests of older
+ * versions must be made of well-formed chunk entries and nothing else.
+ */
+public class Manifest {
+    private static final int MAGIC = 0x44425346; // "DBSF"
+    private static final byte VERSION = 3;
+    private static final int HEADER_LENGTH = 4 + 1 + 4;
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private final ArrayList<BigInteger> chunkKeys = new ArrayList<>();
+    private final ArrayList<Integer> chunkSizes = new ArrayList<>();
+    private final ArrayList<byte[]> chunkEncryptionKeys = new ArrayList<>();
+    private long fileSize = 0;
+
+    /**
+     * Appends a chunk to the end of the file.
+     *
+     * @param key           Key with which the chunk was stored.
+     * @param size          Size of the chunk before encryption.
+     * @param encryptionKey Key with which the chunk was encrypted, or null if it was encrypted with the node's key.
+     */
+    public void addChunk(BigInteger key, int size, byte[] encryptionKey) {
+        chunkKeys.add(key);
+        chunkSizes.add(size);
+        chunkEncryptionKeys.add(encryptionKey);
+        fileSize += size;
+    }
+
+    public int getChunkCount() {
+        return chunkKeys.size();
+    }
+
+    public BigInteger getChunkKey(int index) {
+        return chunkKeys.get(index);
+    }
+
+    public int getChunkSize(int index) {
+        return chunkSizes.get(index);
+    }
+
+    public byte[] getChunkEncryptionKey(int index) {
+        return chunkEncryptionKeys.get(index);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Serializes the manifest.
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+
+        outputStream.writeInt(MAGIC);
+        outputStream.writeByte(VERSION);
+        outputStream.writeInt(chunkKeys.size());
+
+        for (int i = 0; i < chunkKeys.size(); i++) {
+            byte[] key = chunkKeys.get(i).toByteArray();
+            outputStream.writeByte(key.length);
+            outputStream.write(key);
+            outputStream.writeInt(chunkSizes.get(i));
+
+            byte[] encryptionKey = chunkEncryptionKeys.get(i);
+            if (encryptionKey == null) {
+                outputStream.writeByte(0);
+            } else {
+                outputStream.writeByte(encryptionKey.length);
+                outputStream.write(encryptionKey);
+            }
+        }
+
+        outputStream.flush();
+        outputStream.writeInt(checksum(byteArrayOutputStream.toByteArray(), byteArrayOutputStream.size()));
+
+        outputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Computes the checksum of the given first bytes of the given content.
+     *
+     * @param content
+     * @param length
+     * @return
+     */
+    private static int checksum(byte[] content, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Deserializes a manifest.
+     *
+     * @param content
+     * @return The manifest, or null if the content is not a manifest (e.g. a file stored as a whole).
+     * @throws IOException
+     */
+    public static Manifest fromByteArray(byte[] content) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(content));
+
+        if (content.length < HEADER_LENGTH || inputStream.readInt() != MAGIC)
+            return null;
+
+        /* Version 1 manifests have no encryption keys, as every chunk was encrypted with the node's key,
+         * and versions before 3 have no checksum */
+        byte version = inputStream.readByte();
+        if (version < 1 || version > VERSION)
+            return null;
+
+        int length = content.length;
+        if (version == VERSION) {
+            length -= CHECKSUM_LENGTH;
+            if (length < HEADER_LENGTH || checksum(content, length) != readInt(content, length))
+                return null;
+        }
+
+        Manifest manifest = new Manifest();
+        int chunkCount = inputStream.readInt();
+        if (chunkCount < 0)
+            return null;
+
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                int keyLength = inputStream.readUnsignedByte();
+                if (keyLength == 0)
+                    return null;
+
+                byte[] key = new byte[keyLength];
+                inputStream.readFully(key);
+                int size = inputStream.readInt();
+                if (size <= 0 || size > Chunker.MAX_CHUNK_SIZE)
+                    return null;
+
+                byte[] encryptionKey = null;
+                if (version > 1) {
+                    int encryptionKeyLength = inputStream.readUnsignedByte();
+                    if (encryptionKeyLength > 0) {
+                        encryptionKey = new byte[encryptionKeyLength];
+                        inputStream.readFully(encryptionKey);
+                    }
+                }
+
+                manifest.addChunk(new BigInteger(key), size, encryptionKey);
+            }
+        } catch (EOFException e) {
+            /* The chunks go past the end, so the content is not a manifest */
+            return null;
+        }
+
+        /* Anything after the chunks means the content is not a manifest either */
+        if (content.length - inputStream.available() != length)
+            return null;
+
+        return manifest;
+    }
+
+    private static int readInt(byte[] content, int offset) {
+        return ((content[offset] & 0xFF) << 24) | ((content[offset + 1] & 0xFF) << 16)
+                | ((content[offset + 2] & 0xFF) << 8) | (content[offset + 3] & 0xFF);
+    }
+}
@@ -1,29 +1,30 @@
 package server.chord;
 
+import common.ConsistencyLevel;
 import server.FileManager;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import static server.utils.Utils.between;
+import static server.utils.Utils.toHex;
 
 public class DistributedHashTable {
     static final int OPERATION_TIMEOUT = 30; //In seconds
-    public static final int MAXIMUM_HOPS = 8;
+    /* A lookup takes about log2(N) hops for N nodes, so this is enough for rings far larger than any deployment */
+    public static final int MAXIMUM_HOPS = 32;
     private final Node node;
-    private final ConcurrentHashMap<BigInteger, byte[]> localValues = new ConcurrentHashMap<>();
-    private final FileManager fileManager;
-
-    DistributedHashTable(Node node) throws IOException, NoSuchAlgorithmException {
+    /* Values stored in this server, which are shared with its other nodes */
+    private final LocalStore localStore;
 
+    DistributedHashTable(Node node, LocalStore localStore) {
         this.node = node;
-        this.fileManager = new FileManager(node.getInfo().getId());
+        this.localStore = localStore;
     }
 
     /**
@@ -31,14 +32,28 @@ public class DistributedHashTable {
      *
      * @param key
      * @param value
+     * @param consistency Number of copies that must be stored before the insertion is successful.
      * @return
      * @throws InterruptedException
      * @throws ExecutionException
      * @throws TimeoutException
      */
 
-    public boolean insert(BigInteger key, byte[] value) throws InterruptedException, ExecutionException, TimeoutException {
-        return node.insert(key, value).get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    public boolean insert(BigInteger key, byte[] value, ConsistencyLevel consistency) throws InterruptedException, ExecutionException, TimeoutException {
+        return node.insert(key, value, consistency).get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Checks if a value with the given key is already stored in the network.
+     *
+     * @param key
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     * @throws TimeoutException
+     */
+    public boolean containsKey(BigInteger key) throws InterruptedException, ExecutionException, TimeoutException {
+        return node.containsKey(key).get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
     }
 
     /**
@@ -54,7 +69,7 @@ public class DistributedHashTable {
             return get.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
         } catch (TimeoutException e) {
             e.printStackTrace();
-            System.err.println("Get operation for key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " timed out. Please try again.");
+            System.err.println("Get operation for key " + toHex(key.toByteArray()) + " timed out. Please try again.");
             return null;
         } catch (Exception e) {
             e.printStackTrace();
@@ -75,7 +90,7 @@ public class DistributedHashTable {
             return delete.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
         } catch (TimeoutException e) {
             e.printStackTrace();
-            System.err.println("Delete operation for key " + DatatypeConverter.printHexBinary(key.toByteArray()) + "timed out. Please try again.");
+            System.err.println("Delete operation for key " + toHex(key.toByteArray()) + "timed out. Please try again.");
             return false;
         } catch (Exception e) {
             e.printStackTrace();
@@ -85,17 +100,15 @@ public class DistributedHashTable {
 
 
     /**
-     * It stores locally and in the "LocalValues" Concurrent Hash Map the value with the given key.
+     * It stores locally the value with the given key, adding it to the cache.
      *
      * @param key
      * @param value
      * @return
      */
     boolean storeKey(BigInteger key, byte[] value) {
-        localValues.put(key, value);
-
         try {
-            fileManager.storeFile(key, value);
+            localStore.put(key, value);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -105,13 +118,17 @@ public class DistributedHashTable {
     }
 
     /**
-     * It deletes locally and in the "LocalValues" Concurrent Hash Map the value with the given key.
+     * It deletes locally the value with the given key, removing it from the cache.
      * @param key
      * @return
      */
     boolean deleteKey(BigInteger key) {
-        localValues.remove(key);
-        fileManager.delete(key);
+        try {
+            localStore.delete(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
 
         return true;
     }
@@ -126,11 +143,11 @@ public class DistributedHashTable {
         sb.append("Current Node ID: ");
         sb.append(node.getInfo().getId());
         sb.append("\n\n");
-        sb.append(node.toString());
+        sb.append(node.getPeer().toString());
 
         sb.append("\n\nKeys stored:\n");
-        localValues.forEach((key, value) -> {
-            sb.append(DatatypeConverter.printHexBinary(key.toByteArray()));
+        localStore.keys().forEach(key -> {
+            sb.append(toHex(key.toByteArray()));
             sb.append("\n");
         });
 
@@ -138,19 +155,21 @@ public class DistributedHashTable {
     }
 
     /**
-     *It gets the keys and values that are store locally and belong to the given node.
+     *It gets the keys that are stored locally for this node and belong to the given node, its new predecessor.
+     * Only the keys are gathered, so that the values are read when they are sent.
      *
      * @param node
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getKeysBelongingTo(NodeInfo node) {
-        ConcurrentHashMap<BigInteger, byte[]> predecessorKeys = new ConcurrentHashMap<>();
-        localValues.forEach((key, value) -> {
-            if (!between(node, this.node.getInfo(), key))
-                predecessorKeys.put(key, value);
-        });
+    HashSet<BigInteger> getKeysBelongingTo(NodeInfo node) {
+        RingId selfId = this.node.getInfo().getId();
+        RingId previousNode = localStore.getPreviousNode(selfId);
+
+        /* The keys before the previous node of this server are stored for that node */
+        if (!between(previousNode, selfId, node.getId()))
+            return new HashSet<>();
 
-        return predecessorKeys;
+        return localStore.getRange(previousNode, node.getId());
     }
 
 
@@ -159,65 +178,79 @@ public class DistributedHashTable {
      * @return
      */
     public FileManager getFileManager() {
-        return fileManager;
+        return localStore.getFileManager();
     }
 
 
     /**
-     * It stores locally and in the "localValues" Concurrent Hash Map the given keys and values.
+     * It stores locally the given keys and values.
      * @param keys
      */
     void storeKeys(ConcurrentHashMap<BigInteger, byte[]> keys) {
-        localValues.putAll(keys);
-
-        for (Map.Entry<BigInteger, byte[]> entry : keys.entrySet()) {
-            try {
-                fileManager.storeFile(entry.getKey(), entry.getValue());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        for (Map.Entry<BigInteger, byte[]> entry : keys.entrySet())
+            storeKey(entry.getKey(), entry.getValue());
     }
 
     /**
      * It gets the value stored locally corresponding to the given key.
+     * Values that are not cached are read from disk.
      * @param key
-     * @return
+     * @return The value, or null if it is not stored locally.
      */
     byte[] getLocalValue(BigInteger key) {
-        return localValues.get(key);
+        return localStore.get(key);
+    }
+
+    /**
+     * It gets the value stored locally corresponding to the given key, to be sent to another node.
+     * Values that are not cached are mapped from disk instead of read into the heap, and are not added to the cache.
+     * @param key
+     * @return The value, or null if it is not stored locally.
+     */
+    ByteBuffer getLocalValueBuffer(BigInteger key) {
+        return localStore.getBuffer(key);
     }
 
     /**
-     * It gets the Key set.
+     * Checks if a value with the given key is stored locally.
+     *
+     * @param key
+     * @return
+     */
+    boolean hasLocalValue(BigInteger key) {
+        return localStore.contains(key);
+    }
+
+    /**
+     * It gets the keys stored for this node.
      *
      * @return
      */
     HashSet<BigInteger> getKeySet() {
-        return new HashSet<>(Collections.list(localValues.keys()));
+        return localStore.getKeys(node.getInfo().getId());
     }
 
     /**
-     * It gets the "localValues" Concurrent Hash Map.
+     * Gets the digest of the given node of the tree of the local keys.
      *
+     * @param level
+     * @param index
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getLocalValues() {
-        return localValues;
+    long getDigest(int level, int index) {
+        return localStore.getDigest(node.getInfo().getId(), level, index);
     }
 
     /**
-     * It gets the differences bewteen the locally stored keys and the given keys.
+     * It gets the keys stored for this node that are not in the given keys.
      *
      * @param keys
+     * @param leaves Leaves of the tree of keys to which the result is limited, or null for every key.
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getDifference(HashSet<BigInteger> keys) {
-        ConcurrentHashMap<BigInteger, byte[]> difference = new ConcurrentHashMap<>();
-        localValues.forEach((key, value) -> {
-            if (keys.contains(key))
-                difference.put(key, value);
-        });
+    HashSet<BigInteger> getDifference(HashSet<BigInteger> keys, Set<Integer> leaves) {
+        HashSet<BigInteger> difference = leaves == null ? getKeySet() : localStore.getKeys(node.getInfo().getId(), leaves);
+        difference.removeAll(keys);
         return difference;
     }
 }
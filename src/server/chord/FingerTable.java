@@ -9,35 +9,55 @@ import server.utils.SynchronizedFixedLinkedList;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import static server.chord.Node.MAX_NODES;
+import static server.chord.Node.ID_BITS;
 import static server.chord.Node.OPERATION_MAX_FAILED_ATTEMPTS;
 import static server.utils.Utils.*;
 
 public class FingerTable {
-    private static final int FINGER_TABLE_SIZE = (int) (Math.log(MAX_NODES) / Math.log(2));
-    private static final int NUM_SUCCESSORS = 5;
+    private static final int FINGER_TABLE_SIZE = ID_BITS;
+    /* Successors of other servers keep the replicas, so when servers have several nodes, more successors are kept
+     * until they are of REPLICATION_DEGREE other servers: one for each holder of the replicas, and one to replace a failed holder */
+    private static final int MIN_SUCCESSORS = 4;
+    private static final int MAX_SUCCESSORS = 64;
+    private static final int SUCCESSOR_SERVERS = Node.REPLICATION_DEGREE;
     static final int LOOKUP_TIMEOUT = 3000; // In milliseconds
+    /* Lookups are either forwarded from node to node ("recursive"), or made by asking each node for the next ones ("iterative") */
+    private static final boolean ITERATIVE_LOOKUP = "iterative".equals(System.getProperty("dbs.lookup", "recursive"));
 
     final OperationManager<BigInteger, NodeInfo> ongoingLookups = new OperationManager<>();
 
     private NodeInfo predecessor;
     private final NodeInfo[] fingers;
+    /* Keys looked up for each finger, and the position before them, computed once as they only depend on this node */
+    private final BigInteger[] fingerKeys;
+    private final RingId[] fingerLowerBounds;
     private final SynchronizedFixedLinkedList<NodeInfo> successors;
+    private final Node node;
     private final NodeInfo self;
 
-    FingerTable(NodeInfo self) {
-        this.self = self;
+    FingerTable(Node node) {
+        this.node = node;
+        this.self = node.getInfo();
         setPredecessor(self);
         fingers = new NodeInfo[FINGER_TABLE_SIZE];
-        successors = new SynchronizedFixedLinkedList<>(NUM_SUCCESSORS);
+        fingerKeys = new BigInteger[FINGER_TABLE_SIZE];
+        fingerLowerBounds = new RingId[FINGER_TABLE_SIZE];
+        successors = new SynchronizedFixedLinkedList<>(MAX_SUCCESSORS);
 
-        for (int i = 0; i < fingers.length; i++)
+        for (int i = 0; i < fingers.length; i++) {
             setFinger(i, self);
+
+            BigInteger distance = BigInteger.ONE.shiftLeft(i);
+            fingerKeys[i] = addToNodeId(self.getId(), RingId.of(distance)).toBigInteger();
+            fingerLowerBounds[i] = addToNodeId(self.getId(), RingId.of(distance.subtract(BigInteger.ONE)));
+        }
     }
 
     /**
@@ -57,15 +77,49 @@ public class FingerTable {
      * @return {NodeInfo} of the best next node.
      */
     NodeInfo getNextBestNode(BigInteger key) {
-        int keyOwner = Integer.remainderUnsigned(key.intValue(), MAX_NODES);
+        return getNextBestNode(getRingPosition(key));
+    }
+
+    /**
+     * Gets the next best node that precedes the given position, without allocating.
+     *
+     * @param keyOwner position of the key being searched
+     * @return {NodeInfo} of the best next node.
+     */
+    NodeInfo getNextBestNode(RingId keyOwner) {
+        RingId selfId = self.getId();
         for (int i = fingers.length - 1; i >= 0; i--) {
-            if (between(self.getId(), keyOwner, fingers[i].getId()))
-                return fingers[i];
+            NodeInfo finger = fingers[i];
+            if (between(selfId, keyOwner, finger.getId()))
+                return finger;
         }
 
         return getSuccessor();
     }
 
+    /**
+     * Gets the nodes of the finger table that precede the given position, closest to it first.
+     *
+     * @param keyOwner position of the key being searched
+     * @param count    Maximum number of nodes.
+     * @return The nodes, or the successor if none precedes the position.
+     */
+    NodeInfo[] getNextBestNodes(RingId keyOwner, int count) {
+        RingId selfId = self.getId();
+        ArrayList<NodeInfo> nodes = new ArrayList<>();
+
+        for (int i = fingers.length - 1; i >= 0 && nodes.size() < count; i--) {
+            NodeInfo finger = fingers[i];
+            if (between(selfId, keyOwner, finger.getId()) && !finger.equals(self) && !nodes.contains(finger))
+                nodes.add(finger);
+        }
+
+        if (nodes.isEmpty())
+            nodes.add(getSuccessor());
+
+        return nodes.toArray(new NodeInfo[0]);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -81,7 +135,7 @@ public class FingerTable {
         for (int i = 0; i < fingers.length; i++) {
             sb.append(i);
             sb.append("      ");
-            sb.append(Integer.remainderUnsigned((int) (self.getId() + Math.pow(2, i)), MAX_NODES));
+            sb.append(fingerKeys[i]);
             sb.append("     ");
             sb.append(fingers[i] == null
                     ? "null"
@@ -105,35 +159,31 @@ public class FingerTable {
     }
 
     /**
-     * Fills the node's finger table
+     * Fills the node's finger table.
+     * A finger whose key is before the previous finger is that same node, so it is not looked up,
+     * which leaves about log(N) lookups for N nodes instead of one per bit of the IDs.
      */
     void fill() {
         if (!hasSuccessors())
             return;
 
-        for (int i = 0; i < FINGER_TABLE_SIZE; i++)
-            getFinger(i);
-    }
+        for (int i = 0; i < FINGER_TABLE_SIZE; i++) {
+            NodeInfo previous = i > 0 ? fingers[i - 1] : self;
 
-    /**
-     * Gets the Finger Key with the given node and index.
-     *
-     * @param node
-     * @param index
-     * @return
-     */
-    private static int getFingerKey(NodeInfo node, int index) {
-        return addToNodeId(node.getId(), (int) Math.pow(2, index));
+            if (!previous.equals(self) && between(self.getId(), previous.getId(), fingerLowerBounds[i].add(RingId.ONE)))
+                setFinger(i, previous);
+            else
+                getFinger(i);
+        }
     }
 
-
     /**
      * Gets the Finger with the given index.
      *
      * @param index
      */
     private void getFinger(int index) {
-        BigInteger keyToLookup = BigInteger.valueOf(getFingerKey(self, index));
+        BigInteger keyToLookup = fingerKeys[index];
 
         int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
         while (attempts > 0) {
@@ -156,11 +206,10 @@ public class FingerTable {
      * @param node node being compared
      */
     private void updateFingerTable(NodeInfo node) {
-        BigInteger keyEquivalent = BigInteger.valueOf(node.getId());
+        RingId keyEquivalent = node.getId();
 
         for (int i = 0; i < fingers.length; i++) {
-            int lower = addToNodeId(self.getId(), (int) Math.pow(2, i) - 1);
-            if (between(lower, fingers[i].getId(), keyEquivalent) && !fingers[i].equals(node) && !self.equals(node))
+            if (between(fingerLowerBounds[i], fingers[i].getId(), keyEquivalent) && !fingers[i].equals(node) && !self.equals(node))
                 setFinger(i, node);
 
         }
@@ -168,11 +217,11 @@ public class FingerTable {
 
     /**
      * Informs other nodes that the given node exists and they update theirs Data structures.
+     * The predecessor is updated by the node, as it has to hand off its keys.
      *
      * @param node
      */
     void informAboutExistence(NodeInfo node) {
-        updatePredecessor(node);
         updateSuccessors(node);
         updateFingerTable(node);
     }
@@ -255,7 +304,7 @@ public class FingerTable {
          * Insert the node in the correct position */
         synchronized (successors) {
             NodeInfo successor;
-            int nodeKey;
+            RingId nodeKey;
             if (successors.size() > 0) {
                 successor = successors.get(0);
                 nodeKey = node.getId();
@@ -267,8 +316,9 @@ public class FingerTable {
                 /* If the node belongs between two successors, then add it to that position */
                 if (between(self, successor, nodeKey)) {
                     successors.add(0, node);
+                    trimSuccessors();
                 /* Send a lookup to successor. This will notify that I am his new predecessor. */
-                    lookupFrom(BigInteger.valueOf(successor.getId()), successor);
+                    lookupFrom(successor.getId().toBigInteger(), successor);
                     return;
                 }
             }
@@ -285,13 +335,54 @@ public class FingerTable {
                 /* If the node belongs between two successors, then add it to that position */
                 if (between(lowerNode, successor, nodeKey)) {
                     successors.add(i, node);
+                    trimSuccessors();
                     return;
                 }
             }
+
+            if (needsMoreSuccessors())
+                successors.add(node);
+        }
+    }
+
+    /**
+     * Checks if more successors must be found, which is until there are MIN_SUCCESSORS of them, and they are
+     * of at least SUCCESSOR_SERVERS other servers.
+     *
+     * @return
+     */
+    private boolean needsMoreSuccessors() {
+        ArrayList<NodeInfo> nodes = successors.getAll();
+        return nodes.size() < MAX_SUCCESSORS && (nodes.size() < MIN_SUCCESSORS || countOtherServers(nodes) < SUCCESSOR_SERVERS);
+    }
+
+    /**
+     * Removes the last successors while the ones before them are enough, as a node added before them
+     * may be of a server that was only found further away.
+     */
+    private void trimSuccessors() {
+        synchronized (successors) {
+            ArrayList<NodeInfo> nodes = successors.getAll();
+
+            while (nodes.size() > MIN_SUCCESSORS && countOtherServers(nodes.subList(0, nodes.size() - 1)) >= SUCCESSOR_SERVERS)
+                successors.remove(nodes.remove(nodes.size() - 1));
         }
+    }
 
-        if (successors.size() < NUM_SUCCESSORS)
-            successors.add(node);
+    /**
+     * Counts the servers, other than this node's, of the given nodes.
+     *
+     * @param nodes
+     * @return
+     */
+    private int countOtherServers(List<NodeInfo> nodes) {
+        ArrayList<NodeInfo> servers = new ArrayList<>();
+
+        for (NodeInfo node : nodes)
+            if (!node.isSameServer(self) && servers.stream().noneMatch(node::isSameServer))
+                servers.add(node);
+
+        return servers.size();
     }
 
     /**
@@ -347,23 +438,24 @@ public class FingerTable {
         int removedIndex = successors.remove(node);
 
         if (removedIndex == 0) {
-            lookup(BigInteger.valueOf(addToNodeId(self.getId(), 1)));
+            lookup(getSuccessorKey(self));
         } else if (removedIndex > 0) {
-            lookup(BigInteger.valueOf(addToNodeId(successors.last().getId(), 1)));
+            lookup(getSuccessorKey(successors.last()));
         }
 
         return removedIndex;
     }
 
     /**
-     * Search for a key, starting from a specific node
+     * Search for a key, starting from specific nodes.
+     * A recursive lookup is only sent to the first of them, while an iterative one asks several at a time.
      *
      * @param key
-     * @param startingNode
+     * @param startingNodes
      * @return
      * @throws IOException
      */
-    private CompletableFuture<NodeInfo> lookupFrom(BigInteger key, NodeInfo startingNode) {
+    private CompletableFuture<NodeInfo> lookupFrom(BigInteger key, NodeInfo... startingNodes) {
         CompletableFuture<NodeInfo> lookupResult = ongoingLookups.putIfAbsent(key);
 
         if (lookupResult != null)
@@ -371,10 +463,16 @@ public class FingerTable {
 
         lookupResult = ongoingLookups.get(key);
 
+        if (ITERATIVE_LOOKUP) {
+            new IterativeLookup(node, this, key, node.getPeer().getTimer()).start(startingNodes);
+            return lookupResult;
+        }
+
         try {
-            Mailman.sendOperation(startingNode, new LookupOperation(this, self, key, startingNode));
+            Mailman.sendOperation(startingNodes[0], new LookupOperation(this, self, key, startingNodes[0]));
         } catch (Exception e) {
             ongoingLookups.operationFailed(key, e);
+            node.informAboutFailure(startingNodes[0]);
         }
 
         return lookupResult;
@@ -388,10 +486,14 @@ public class FingerTable {
      * @return
      */
     CompletableFuture<NodeInfo> lookup(BigInteger key) {
-        if (keyBelongsToSuccessor(key))
+        RingId keyOwner = getRingPosition(key);
+
+        if (keyBelongsToSuccessor(keyOwner))
             return lookupFrom(key, getSuccessor());
+        else if (ITERATIVE_LOOKUP)
+            return lookupFrom(key, getNextBestNodes(keyOwner, IterativeLookup.PARALLELISM));
         else
-            return lookupFrom(key, getNextBestNode(key));
+            return lookupFrom(key, getNextBestNode(keyOwner));
     }
 
     /**
@@ -401,7 +503,33 @@ public class FingerTable {
      * @return
      */
     public boolean keyBelongsToSuccessor(BigInteger key) {
-        return between(self, getSuccessor(), key);
+        return keyBelongsToSuccessor(getRingPosition(key));
+    }
+
+    /**
+     * Checks if the key with the given position belongs to this node, as far as it knows its predecessor.
+     *
+     * @param keyOwner
+     * @return
+     */
+    boolean keyBelongsToSelf(RingId keyOwner) {
+        NodeInfo predecessor = this.predecessor;
+
+        /* Without a predecessor, the node only knows that the key is its own if it is alone in the ring */
+        if (predecessor == null || predecessor.equals(self))
+            return getSuccessor().equals(self);
+
+        return between(predecessor, self, keyOwner);
+    }
+
+    /**
+     * Checks if the key with the given position belongs to the Successor.
+     *
+     * @param keyOwner
+     * @return
+     */
+    public boolean keyBelongsToSuccessor(RingId keyOwner) {
+        return between(self, getSuccessor(), keyOwner);
     }
 
 
@@ -412,9 +540,9 @@ public class FingerTable {
      * @return
      */
     boolean findSuccessors(NodeInfo bootstrapperNode) {
-        BigInteger successorKey = BigInteger.valueOf(addToNodeId(self.getId(), 1));
+        BigInteger successorKey = getSuccessorKey(self);
 
-        for (int i = 0; i < NUM_SUCCESSORS; i++) {
+        for (int i = 0; i < MAX_SUCCESSORS && (i == 0 || needsMoreSuccessors()); i++) {
             CompletableFuture<NodeInfo> successorLookup = lookupFrom(successorKey, bootstrapperNode);
 
             int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
@@ -432,10 +560,10 @@ public class FingerTable {
                 return false;
 
             try {
-                successorKey = BigInteger.valueOf(addToNodeId(getNthSuccessor(i).getId(), 1));
+                successorKey = getSuccessorKey(getNthSuccessor(i));
             } catch (IndexOutOfBoundsException e) {
                 /* This means that there is no Nth successor. As such, we treat it as a normal thing that only
-                 * happens when the network has a number of nodes lower than NUM_SUCCESSORS. */
+                 * happens when the network has fewer nodes than the successors that are kept. */
                 break;
             }
         }
@@ -0,0 +1,236 @@
+package server.chord;
+
+import server.communication.Mailman;
+import server.communication.operations.FindNextHopOperation;
+import server.communication.operations.FindNextHopResultOperation;
+import server.exceptions.KeyNotFoundException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup in which the node asks other nodes for the nodes closest before the key, instead of forwarding the lookup
+ * through them. Up to PARALLELISM nodes are asked at a time, closest to the key first, so a slow or failed node
+ * only delays the lookup until another one answers, and the first node that knows who is responsible for the key
+ * ends it. Nodes that take longer than HOP_TIMEOUT are reported, and another node is asked in their place.
+ */
+class IterativeLookup {
+    static final int PARALLELISM = Math.max(1, Math.min(Integer.getInteger("dbs.lookupParallelism", 3), 255));
+    private static final long HOP_TIMEOUT = FingerTable.LOOKUP_TIMEOUT / 6; // In milliseconds
+
+    private final Node node;
+    private final FingerTable fingerTable;
+    private final BigInteger key;
+    private final RingId keyOwner;
+    private final ScheduledExecutorService timer;
+    /* Nodes not asked yet, closest to the key first */
+    private final TreeSet<NodeInfo> candidates;
+    private final HashSet<RingId> asked = new HashSet<>();
+    /* Queries that were not answered yet, and the ones among them that did not time out, which are the ones in parallel */
+    private final HashSet<Integer> unansweredQueries = new HashSet<>();
+    private final HashSet<Integer> pendingQueries = new HashSet<>();
+    private boolean finished = false;
+
+    /**
+     * @param node
+     * @param fingerTable Finger table of the node, whose lookup this is.
+     * @param key
+     * @param timer       Executor in which the queries are timed out.
+     */
+    IterativeLookup(Node node, FingerTable fingerTable, BigInteger key, ScheduledExecutorService timer) {
+        this.node = node;
+        this.fingerTable = fingerTable;
+        this.key = key;
+        this.keyOwner = RingId.of(key);
+        this.timer = timer;
+        /* A node is closer to the key than another if it is between that node and the key */
+        candidates = new TreeSet<>((a, b) -> a.getId().equals(b.getId()) ? 0 : a.getId().isBetween(b.getId(), keyOwner) ? -1 : 1);
+    }
+
+    /**
+     * Starts the lookup by asking the given nodes.
+     *
+     * @param startingNodes
+     */
+    void start(NodeInfo... startingNodes) {
+        synchronized (this) {
+            addCandidates(startingNodes);
+        }
+
+        askNext();
+    }
+
+    /**
+     * Adds the given nodes to the ones to ask, except this node, which answers for itself.
+     *
+     * @param nodes
+     */
+    private void addCandidates(NodeInfo[] nodes) {
+        for (NodeInfo candidate : nodes) {
+            if (!candidate.equals(node.getInfo()) && !asked.contains(candidate.getId()))
+                candidates.add(candidate);
+        }
+    }
+
+    /**
+     * Asks the closest nodes to the key, until PARALLELISM queries are pending.
+     * The lookup fails if there is no node left to ask and every node asked failed to answer.
+     */
+    private void askNext() {
+        ArrayList<NodeInfo> targets = new ArrayList<>();
+        ArrayList<Integer> queryIds = new ArrayList<>();
+        boolean failed;
+
+        synchronized (this) {
+            if (finished)
+                return;
+
+            while (pendingQueries.size() < PARALLELISM && !candidates.isEmpty()) {
+                NodeInfo target = candidates.pollFirst();
+                int queryId = node.nextLookupQueryId();
+
+                asked.add(target.getId());
+                unansweredQueries.add(queryId);
+                pendingQueries.add(queryId);
+                targets.add(target);
+                queryIds.add(queryId);
+            }
+
+            failed = unansweredQueries.isEmpty();
+            finished = failed;
+        }
+
+        if (failed) {
+            fingerTable.ongoingLookups.operationFailed(key, new KeyNotFoundException());
+            return;
+        }
+
+        for (int i = 0; i < targets.size(); i++)
+            ask(targets.get(i), queryIds.get(i));
+    }
+
+    /**
+     * Sends the query with the given ID to the given node.
+     *
+     * @param target
+     * @param queryId
+     */
+    private void ask(NodeInfo target, int queryId) {
+        long start = System.nanoTime();
+
+        node.ongoingLookupQueries.putIfAbsent(queryId);
+        node.ongoingLookupQueries.get(queryId).thenAccept(result -> onAnswer(queryId, result, start));
+
+        timer.schedule(() -> onHopTimeout(target, queryId), HOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> onQueryTimeout(queryId), FingerTable.LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        try {
+            boolean reachedDestination = fingerTable.keyBelongsToSuccessor(keyOwner) && fingerTable.getSuccessor().equals(target);
+            Mailman.sendOperation(target, new FindNextHopOperation(node.getInfo(), queryId, key, PARALLELISM, reachedDestination));
+        } catch (IOException e) {
+            dropQuery(queryId);
+            node.informAboutFailure(target);
+            askNext();
+        }
+    }
+
+    /**
+     * Uses the answer of a node, even if it arrives after the query timed out.
+     *
+     * @param queryId
+     * @param result
+     * @param start   Time at which the query was sent, in nanoseconds.
+     */
+    private void onAnswer(int queryId, FindNextHopResultOperation result, long start) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (elapsed >= HOP_TIMEOUT)
+            System.err.println("Node with ID " + result.getOrigin().getId() + " took " + elapsed + " ms to answer a lookup hop.");
+
+        node.informAboutExistence(result.getOrigin());
+
+        /* An answer that found the owner without naming it is of no use, so it counts as a failed query */
+        boolean found = result.isFound() && result.getNodes().length > 0;
+
+        synchronized (this) {
+            unansweredQueries.remove(queryId);
+            pendingQueries.remove(queryId);
+            if (finished)
+                return;
+
+            if (found) {
+                finished = true;
+            } else if (!result.isFound()) {
+                addCandidates(result.getNodes());
+            }
+        }
+
+        if (found) {
+            dropQueries();
+            node.onLookupFinished(key, result.getNodes()[0]);
+        } else {
+            askNext();
+        }
+    }
+
+    /**
+     * Asks another node in place of the one that did not answer the given query in time,
+     * while still waiting for its answer.
+     *
+     * @param target
+     * @param queryId
+     */
+    private void onHopTimeout(NodeInfo target, int queryId) {
+        synchronized (this) {
+            if (finished || !pendingQueries.remove(queryId))
+                return;
+        }
+
+        System.err.println("Node with ID " + target.getId() + " did not answer a lookup hop in " + HOP_TIMEOUT + " ms.");
+        askNext();
+    }
+
+    /**
+     * Stops waiting for the answer of the given query.
+     *
+     * @param queryId
+     */
+    private void onQueryTimeout(int queryId) {
+        if (dropQuery(queryId))
+            askNext();
+    }
+
+    /**
+     * Stops waiting for the answer of the given query.
+     *
+     * @param queryId
+     * @return true if the query was still unanswered.
+     */
+    private boolean dropQuery(int queryId) {
+        node.ongoingLookupQueries.operationFailed(queryId, new KeyNotFoundException());
+
+        synchronized (this) {
+            pendingQueries.remove(queryId);
+            return unansweredQueries.remove(queryId);
+        }
+    }
+
+    /**
+     * Stops waiting for the answers of the queries still unanswered, once the lookup is finished.
+     */
+    private void dropQueries() {
+        ArrayList<Integer> queryIds;
+        synchronized (this) {
+            queryIds = new ArrayList<>(unansweredQueries);
+            unansweredQueries.clear();
+            pendingQueries.clear();
+        }
+
+        for (int queryId : queryIds)
+            node.ongoingLookupQueries.operationFailed(queryId, new KeyNotFoundException());
+    }
+}
@@ -0,0 +1,270 @@
+package server.chord;
+
+import server.FileManager;
+import server.storage.LogStore;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static server.utils.Utils.getRingPosition;
+
+/**
+ * Values stored in this server, shared by all of its nodes.
+ * They are kept in a single log store, and each node's keys are the ones between the previous node
+ * of the server and it, so that they are found without knowing the other nodes of the ring.
+ * Nodes may be added while the server runs, so the keys are moved between the trees of the nodes
+ * while no value is stored or deleted.
+ */
+class LocalStore {
+    private static final long VALUE_CACHE_SIZE = Long.getLong("dbs.valueCacheSize", 64) * 1024 * 1024;
+
+    private final FileManager fileManager;
+    /* Values stored in this server. They are kept on disk, and only the most used are kept in memory */
+    private final LogStore values;
+    private final ValueCache valueCache = new ValueCache(VALUE_CACHE_SIZE);
+    /* Keys of the values by their position in the ring, to find the keys that belong to a node */
+    private final RingIndex ringIndex;
+    /* Digest of the keys of each node of this server, compared with the replicas kept by other servers */
+    private final ConcurrentSkipListMap<RingId, MerkleTree> merkleTrees = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param fileManager
+     * @param nodeIds     IDs of the nodes of this server.
+     * @throws IOException
+     */
+    LocalStore(FileManager fileManager, Collection<RingId> nodeIds) throws IOException {
+        this.fileManager = fileManager;
+        this.values = fileManager.openValueStore();
+        this.ringIndex = new RingIndex(values::contains);
+
+        for (RingId nodeId : nodeIds)
+            merkleTrees.put(nodeId, new MerkleTree());
+
+        for (BigInteger key : values.keys()) {
+            getMerkleTree(key).toggle(key);
+            ringIndex.update(key);
+        }
+    }
+
+    /**
+     * Gets the tree of the node of this server the given key is stored for, which is the first one after its position.
+     *
+     * @param key
+     * @return
+     */
+    private MerkleTree getMerkleTree(BigInteger key) {
+        Map.Entry<RingId, MerkleTree> entry = merkleTrees.ceilingEntry(getRingPosition(key));
+        return (entry != null ? entry : merkleTrees.firstEntry()).getValue();
+    }
+
+    /**
+     * Gets the node of this server before the given one, which is the node itself if it is the only one.
+     *
+     * @param nodeId
+     * @return
+     */
+    RingId getPreviousNode(RingId nodeId) {
+        RingId previous = merkleTrees.lowerKey(nodeId);
+        return previous != null ? previous : merkleTrees.lastKey();
+    }
+
+    /**
+     * Adds a node to this server, moving to its tree the keys stored for the node after it.
+     *
+     * @param nodeId
+     */
+    void addNode(RingId nodeId) {
+        synchronized (merkleTrees) {
+            MerkleTree nextTree = getMerkleTree(nodeId.toBigInteger());
+            MerkleTree tree = new MerkleTree();
+
+            for (BigInteger key : ringIndex.getRange(getPreviousNode(nodeId), nodeId)) {
+                nextTree.toggle(key);
+                tree.toggle(key);
+            }
+
+            merkleTrees.put(nodeId, tree);
+        }
+    }
+
+    /**
+     * Removes a node from this server, moving its keys to the tree of the node after it.
+     * The last node of the server is never removed.
+     *
+     * @param nodeId
+     */
+    void removeNode(RingId nodeId) {
+        synchronized (merkleTrees) {
+            if (merkleTrees.size() <= 1)
+                return;
+
+            if (merkleTrees.remove(nodeId) == null)
+                return;
+
+            MerkleTree nextTree = getMerkleTree(nodeId.toBigInteger());
+            for (BigInteger key : ringIndex.getRange(getPreviousNode(nodeId), nodeId))
+                nextTree.toggle(key);
+        }
+    }
+
+    FileManager getFileManager() {
+        return fileManager;
+    }
+
+    /**
+     * Stores the given value, adding it to the cache.
+     *
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    void put(BigInteger key, byte[] value) throws IOException {
+        if (values.put(key, value)) {
+            synchronized (merkleTrees) {
+                getMerkleTree(key).toggle(key);
+                ringIndex.update(key);
+            }
+        }
+
+        valueCache.put(key, value);
+    }
+
+    /**
+     * Deletes the value with the given key, removing it from the cache.
+     *
+     * @param key
+     * @throws IOException
+     */
+    void delete(BigInteger key) throws IOException {
+        valueCache.remove(key);
+
+        if (values.delete(key)) {
+            synchronized (merkleTrees) {
+                getMerkleTree(key).toggle(key);
+                ringIndex.update(key);
+            }
+        }
+    }
+
+    /**
+     * Gets the value with the given key.
+     * Values that are not cached are read from disk.
+     *
+     * @param key
+     * @return The value, or null if it is not stored.
+     */
+    byte[] get(BigInteger key) {
+        if (!values.contains(key))
+            return null;
+
+        byte[] value = valueCache.get(key);
+        if (value != null)
+            return value;
+
+        try {
+            value = values.get(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        /* The value may have been deleted in the meantime */
+        if (value == null)
+            return null;
+
+        valueCache.put(key, value);
+        return value;
+    }
+
+    /**
+     * Gets the value with the given key, to be sent to another node.
+     * Values that are not cached are mapped from disk instead of read into the heap, and are not added to the cache.
+     *
+     * @param key
+     * @return The value, or null if it is not stored.
+     */
+    ByteBuffer getBuffer(BigInteger key) {
+        byte[] value = valueCache.get(key);
+        if (value != null && values.contains(key))
+            return ByteBuffer.wrap(value);
+
+        try {
+            return values.getBuffer(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Gets the number of bytes the stored values take on disk.
+     *
+     * @return
+     */
+    long size() {
+        return values.liveSize();
+    }
+
+    boolean contains(BigInteger key) {
+        return values.contains(key);
+    }
+
+    /**
+     * Gets the keys of every value stored in this server.
+     *
+     * @return A live view of the keys.
+     */
+    Set<BigInteger> keys() {
+        return values.keys();
+    }
+
+    /**
+     * Gets the keys stored for the given node of this server.
+     *
+     * @param nodeId
+     * @return
+     */
+    HashSet<BigInteger> getKeys(RingId nodeId) {
+        return ringIndex.getRange(getPreviousNode(nodeId), nodeId);
+    }
+
+    /**
+     * Gets the keys stored for the given node of this server that belong to the given leaves of its tree.
+     *
+     * @param nodeId
+     * @param leaves
+     * @return
+     */
+    HashSet<BigInteger> getKeys(RingId nodeId, Set<Integer> leaves) {
+        return merkleTrees.get(nodeId).getKeys(leaves);
+    }
+
+    /**
+     * Gets the keys between the given positions of the ring, including the upper one.
+     *
+     * @param lower
+     * @param upper
+     * @return
+     */
+    HashSet<BigInteger> getRange(RingId lower, RingId upper) {
+        return ringIndex.getRange(lower, upper);
+    }
+
+    /**
+     * Gets the digest of the given node of the tree of the keys stored for the given node of this server.
+     *
+     * @param nodeId
+     * @param level
+     * @param index
+     * @return
+     */
+    long getDigest(RingId nodeId, int level, int index) {
+        return merkleTrees.get(nodeId).getDigest(level, index);
+    }
+}
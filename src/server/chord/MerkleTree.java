@@ -0,0 +1,131 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Digest of a set of keys, split in a tree of ranges, used to find the keys in which two sets differ
+ * by only comparing the ranges whose digests differ.
+ * Each key belongs to a leaf chosen by a hash of the key, and the digest of a node is the XOR of
+ * the hashes of the keys under it, so that it is updated in place when a key is added or removed.
+ * The keys of each leaf are also kept, so that the keys of the leaves that differ are found without going
+ * through every key of the set.
+ * Both ends of a comparison must use the same shape, so it is fixed.
+ */
+class MerkleTree {
+    static final int BRANCHING = 16;
+    static final int DEPTH = 3;
+    private static final int BITS_PER_LEVEL = Integer.numberOfTrailingZeros(BRANCHING);
+    private static final int LEAVES = 1 << (BITS_PER_LEVEL * DEPTH);
+
+    /* Digests of the nodes of each level, from the root (level 0) to the leaves (level DEPTH) */
+    private final long[][] levels = new long[DEPTH + 1][];
+    /* Keys of each leaf, created when the first key is added to it */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final HashSet<BigInteger>[] leafKeys = new HashSet[LEAVES];
+
+    MerkleTree() {
+        for (int level = 0; level <= DEPTH; level++)
+            levels[level] = new long[1 << (BITS_PER_LEVEL * level)];
+    }
+
+    /**
+     * Adds the given key to the tree if it is not in it, or removes it if it is.
+     * The caller must only toggle a key when it is added to or removed from the set.
+     *
+     * @param key
+     */
+    synchronized void toggle(BigInteger key) {
+        long hash = hash(key);
+        int leaf = getLeaf(hash);
+
+        if (leafKeys[leaf] == null)
+            leafKeys[leaf] = new HashSet<>();
+
+        if (!leafKeys[leaf].add(key)) {
+            leafKeys[leaf].remove(key);
+            if (leafKeys[leaf].isEmpty())
+                leafKeys[leaf] = null;
+        }
+
+        for (int level = DEPTH; level >= 0; level--) {
+            levels[level][leaf] ^= hash;
+            leaf >>>= BITS_PER_LEVEL;
+        }
+    }
+
+    /**
+     * Gets the digest of the given node.
+     *
+     * @param level
+     * @param index
+     * @return
+     */
+    synchronized long getDigest(int level, int index) {
+        return levels[level][index];
+    }
+
+    /**
+     * Gets the keys in the given leaves.
+     *
+     * @param leaves
+     * @return
+     */
+    synchronized HashSet<BigInteger> getKeys(Set<Integer> leaves) {
+        HashSet<BigInteger> keys = new HashSet<>();
+        for (int leaf : leaves) {
+            if (isValidNode(DEPTH, leaf) && leafKeys[leaf] != null)
+                keys.addAll(leafKeys[leaf]);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Checks if the given node exists in a tree.
+     *
+     * @param level
+     * @param index
+     * @return
+     */
+    static boolean isValidNode(int level, int index) {
+        return level >= 0 && level <= DEPTH && index >= 0 && index < (1 << (BITS_PER_LEVEL * level));
+    }
+
+    /**
+     * Gets the leaf the given key belongs to.
+     *
+     * @param key
+     * @return
+     */
+    static int getLeaf(BigInteger key) {
+        return getLeaf(hash(key));
+    }
+
+    private static int getLeaf(long hash) {
+        return (int) (hash >>> (Long.SIZE - BITS_PER_LEVEL * DEPTH)) & (LEAVES - 1);
+    }
+
+    /**
+     * Hashes the given key into 64 bits (FNV-1a, followed by the MurmurHash3 finalizer),
+     * so that keys are spread evenly over the leaves whatever their length.
+     *
+     * @param key
+     * @return
+     */
+    private static long hash(BigInteger key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.toByteArray()) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -1,54 +1,88 @@
 package server.chord;
 
+import common.ConsistencyLevel;
 import server.communication.Mailman;
 import server.communication.Operation;
 import server.communication.OperationManager;
 import server.communication.operations.*;
 import server.exceptions.KeyNotFoundException;
+import server.utils.RateLimiter;
+import server.utils.Threads;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.net.InetAddress;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static server.chord.DistributedHashTable.OPERATION_TIMEOUT;
 import static server.chord.FingerTable.LOOKUP_TIMEOUT;
 
 public class Node {
-    public static final int MAX_NODES = 128;
+    /* Number of bits of the IDs of the nodes, which are also the positions of the keys in the ring (at most 160) */
+    public static final int ID_BITS = Math.min(Integer.getInteger("dbs.idBits", 160), 160);
     public static final int OPERATION_MAX_FAILED_ATTEMPTS = 3;
-    private static final int REPLICATION_DEGREE = 3;
+    static final int REPLICATION_DEGREE = 3;
+    /* Replicas are sent in batches of at most this many bytes, with a few batches waiting for acknowledgement at a time */
+    private static final int REPLICATION_BATCH_SIZE = 4 * 1024 * 1024;
+    private static final int REPLICATION_WINDOW = 4;
 
+    private final Peer peer;
     private final NodeInfo self;
     private final FingerTable fingerTable;
     private final DistributedHashTable dht;
     private CompletableFuture<NodeInfo> ongoingPredecessorLookup;
 
-    public final OperationManager<Integer, Boolean> ongoingKeySendings = new OperationManager<>();
+    public final OperationManager<RingId, Boolean> ongoingKeySendings = new OperationManager<>();
 
     public final OperationManager<BigInteger, Boolean> ongoingDeletes = new OperationManager<>();
     public final OperationManager<BigInteger, Boolean> ongoingInsertions = new OperationManager<>();
     public final OperationManager<BigInteger, byte[]> ongoingGets = new OperationManager<>();
-
-    private final ConcurrentHashMap<Integer, ConcurrentHashMap<BigInteger, byte[]>> replicatedValues = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
-    private final ScheduledExecutorService stabilizationExecutor = Executors.newScheduledThreadPool(5);
+    public final OperationManager<BigInteger, Boolean> ongoingContainsKeys = new OperationManager<>();
+    public final OperationManager<Integer, Boolean> ongoingReplicationBatches = new OperationManager<>();
+    private final AtomicInteger nextReplicationBatch = new AtomicInteger(0);
+    public final OperationManager<Integer, FindNextHopResultOperation> ongoingLookupQueries = new OperationManager<>();
+    private final AtomicInteger nextLookupQuery = new AtomicInteger(0);
+
+    /* Replicas kept by the server, and threads, which are shared with its other nodes */
+    private final ReplicaStore replicaStore;
+    private final ExecutorService threadPool;
+    private final ExecutorService replicationPool;
+    private final ExecutorService repairPool;
+    private final ScheduledExecutorService timer;
+    /* Limit of the rate of the handoffs of keys of every node of the server */
+    private final RateLimiter handoffLimiter;
+    /* With virtual threads, the lookup of an operation is waited for in its own thread instead of the caller's */
+    private final Executor operationExecutor;
     private ConcurrentHashMap<BigInteger, Integer> unfinishedReplications = new ConcurrentHashMap<>();
+    /* Handoffs of keys to the predecessor that are still in progress, by the ID of the predecessor */
+    private final ConcurrentHashMap<RingId, KeyHandoff> keyHandoffs = new ConcurrentHashMap<>();
 
     /**
-     * @param address Address of this server
-     * @param port    Port to start the service in
+     * @param peer Server of this node
+     * @param self
      */
-    public Node(InetAddress address, int port) throws IOException, NoSuchAlgorithmException {
-        self = new NodeInfo(address, port);
-        fingerTable = new FingerTable(self);
+    Node(Peer peer, NodeInfo self) {
+        this.peer = peer;
+        this.self = self;
+        fingerTable = new FingerTable(this);
         ongoingPredecessorLookup = null;
-        dht = new DistributedHashTable(this);
+        dht = new DistributedHashTable(this, peer.getLocalStore());
+        replicaStore = peer.getReplicaStore();
+        threadPool = peer.getThreadPool();
+        replicationPool = peer.getReplicationPool();
+        repairPool = peer.getRepairPool();
+        timer = peer.getTimer();
+        handoffLimiter = peer.getHandoffLimiter();
+        operationExecutor = Threads.isVirtual() ? threadPool : Runnable::run;
     }
 
     /**
@@ -87,13 +121,41 @@ public class Node {
     }
 
     /**
-     * Checks if the given key belongs to their successor.
+     * Gets the server of this node.
      *
-     * @param key
      * @return
      */
-    public boolean keyBelongsToSuccessor(BigInteger key) {
-        return fingerTable.keyBelongsToSuccessor(key);
+    Peer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Checks if the key with the given position belongs to their successor.
+     *
+     * @param keyOwner
+     * @return
+     */
+    public boolean keyBelongsToSuccessor(RingId keyOwner) {
+        return fingerTable.keyBelongsToSuccessor(keyOwner);
+    }
+
+    /**
+     * Checks if the key with the given position belongs to this node.
+     *
+     * @param keyOwner
+     * @return
+     */
+    public boolean keyBelongsToSelf(RingId keyOwner) {
+        return fingerTable.keyBelongsToSelf(keyOwner);
+    }
+
+    /**
+     * Gets the ID of a new query of an iterative lookup.
+     *
+     * @return
+     */
+    int nextLookupQueryId() {
+        return nextLookupQuery.getAndIncrement();
     }
 
     /**
@@ -119,7 +181,7 @@ public class Node {
         /* Get the successor's predecessor, which will be the new node's predecessor */
         while (attempts > 0) {
             try {
-                requestSuccessorPredecessor(successor).thenAcceptAsync(fingerTable::updatePredecessor, threadPool).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+                requestSuccessorPredecessor(successor).thenAcceptAsync(this::updatePredecessor, threadPool).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
                 break;
             } catch (CancellationException | ExecutionException | InterruptedException | TimeoutException | IOException e) {
                 attempts--;
@@ -132,11 +194,22 @@ public class Node {
     /**
      * Search the finger table for the next best node
      *
-     * @param key key that is being searched
+     * @param keyOwner position of the key that is being searched
      * @return NodeInfo for the closest preceding node to the searched key
      */
-    public NodeInfo getNextBestNode(BigInteger key) {
-        return fingerTable.getNextBestNode(key);
+    public NodeInfo getNextBestNode(RingId keyOwner) {
+        return fingerTable.getNextBestNode(keyOwner);
+    }
+
+    /**
+     * Search the finger table for the next best nodes, which are asked by iterative lookups.
+     *
+     * @param keyOwner position of the key that is being searched
+     * @param count    Maximum number of nodes.
+     * @return NodeInfo for the closest preceding nodes to the searched key, closest first
+     */
+    public NodeInfo[] getNextBestNodes(RingId keyOwner, int count) {
+        return fingerTable.getNextBestNodes(keyOwner, count);
     }
 
     /**
@@ -163,47 +236,45 @@ public class Node {
      * @param predecessor
      */
     public void finishPredecessorRequest(NodeInfo predecessor) {
-        fingerTable.updatePredecessor(predecessor);
+        updatePredecessor(predecessor);
 
         ongoingPredecessorLookup.complete(predecessor);
         ongoingPredecessorLookup = null;
     }
 
-    /**
-     * Initiates the Stabilization Protocol.
-     */
-    public void initiateStabilization() {
-        stabilizationExecutor.scheduleWithFixedDelay(this::stabilizationProtocol, 5, 5, TimeUnit.SECONDS);
-
-    }
-
     /**
      * Starts the stabilization Protocol.
      */
-    private void stabilizationProtocol() {
+    void stabilizationProtocol() {
         fingerTable.stabilizationProtocol();
         updateOwnKeysReplication();
-        checkReplicasOwners();
+        resumeKeyHandoffs();
     }
 
     /**
-     * Checks if the replica owner is alive and syncs the replicas with it.
+     * Checks if the replica owner is alive and syncs the replicas with it, starting from the root of their trees.
      * If it is not alive, then insert all of its keys in the network.
+     * The replicas are kept by the server, so only one of its nodes checks them.
      */
-    private void checkReplicasOwners() {
-        for (Map.Entry<Integer, ConcurrentHashMap<BigInteger, byte[]>> entry : replicatedValues.entrySet()) {
+    void checkReplicasOwners() {
+        for (RingId ownerId : replicaStore.getOwners()) {
             NodeInfo owner = null;
             int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
 
             while (attempts > 0) {
                 try {
-                    owner = fingerTable.lookup(BigInteger.valueOf(entry.getKey())).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+                    owner = fingerTable.lookup(ownerId.toBigInteger()).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                    /* The owner failed and this node took over its keys, but some of its replicas were not moved */
+                    if (owner.equals(self)) {
+                        takeOverReplicas(ownerId);
+                        break;
+                    }
 
                     Mailman.sendOperation(
                             owner,
-                            new ReplicationSyncOperation(
-                                    self,
-                                    new HashSet<>(Collections.list(entry.getValue().keys()))));
+                            new MerkleSyncOperation(self, 0, new int[]{0},
+                                    new long[]{replicaStore.getDigest(ownerId, 0, 0)}));
 
                     break;
                 } catch (TimeoutException | InterruptedException | ExecutionException ignored) {
@@ -228,60 +299,162 @@ public class Node {
      * in the network.
      */
     private void updateOwnKeysReplication() {
-        for (Map.Entry<BigInteger, Integer> entry : unfinishedReplications.entrySet()) {
-            for (int i = entry.getValue(); i < REPLICATION_DEGREE; i++)
-                ensureReplication(entry.getKey(), dht.getLocalValue(entry.getKey()));
+        if (unfinishedReplications.isEmpty())
+            return;
+
+        HashSet<BigInteger> keys = new HashSet<>();
+        for (BigInteger key : unfinishedReplications.keySet()) {
+            if (dht.hasLocalValue(key))
+                keys.add(key);
+            else
+                unfinishedReplications.remove(key);
         }
+
+        ensureReplication(keys);
     }
 
     /**
      * Stores the key and the value.
+     * With the ONE consistency level, the value is replicated in the background after it is stored locally.
+     * Otherwise, it is replicated to every successor at the same time, until enough of them acknowledge it.
      *
      * @param key
      * @param value
-     * @return
+     * @param consistency
+     * @return Future completed with whether the number of copies required by the consistency level were stored.
      */
-    public boolean storeKey(BigInteger key, byte[] value) {
-        boolean result = dht.storeKey(key, value);
-        ensureReplication(key, value);
-        return result;
+    public CompletableFuture<Boolean> storeKey(BigInteger key, byte[] value, ConsistencyLevel consistency) {
+        if (!dht.storeKey(key, value))
+            return CompletableFuture.completedFuture(false);
+
+        Set<BigInteger> replicas = Collections.singleton(key);
+
+        int requiredReplicas = consistency.requiredCopies(REPLICATION_DEGREE) - 1;
+        if (requiredReplicas <= 0) {
+            replicationPool.execute(() -> ensureReplication(replicas));
+            return CompletableFuture.completedFuture(true);
+        }
+
+        return replicateInParallel(replicas, requiredReplicas);
     }
 
     /**
-     * It ensures that all the Replication of the given key and the value are done.
+     * Replicates the local values with the given keys to each of the next successors at the same time.
+     * No thread waits for the acknowledgements, so the result only depends on how soon the successors acknowledge.
+     * Successors that fail are reported, and the replication is retried by the stabilization protocol.
      *
-     * @param key
-     * @param value
+     * @param replicas
+     * @param requiredReplicas
+     * @return Future completed with true once the required number of successors acknowledged the replicas,
+     * or false as soon as that is no longer possible.
      */
-    private void ensureReplication(BigInteger key, byte[] value) {
-        NodeInfo nthSuccessor;
-        for (int i = unfinishedReplications.getOrDefault(key, 1); i < REPLICATION_DEGREE; i++) {
-            try {
-                nthSuccessor = fingerTable.getNthSuccessor(i - 1);
-            } catch (IndexOutOfBoundsException e) {
-                System.err.println("Replication of file with key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " failed.\n" +
-                        "Current replication degree is " + i + ".");
-                unfinishedReplications.put(key, i);
-                return;
-            }
+    private CompletableFuture<Boolean> replicateInParallel(Set<BigInteger> replicas, int requiredReplicas) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
 
-            int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
-            while (attempts > 0) {
-                try {
-                    Mailman.sendOperation(nthSuccessor, new ReplicationOperation(self, key, value));
-                    break;
-                } catch (IOException e) {
-                    attempts--;
+        ArrayList<NodeInfo> successors = getReplicaHolders();
+
+        if (successors.size() < REPLICATION_DEGREE - 1) {
+            System.err.println("Replication of " + replicas.size() + " file(s) failed.\n" +
+                    "Current replication degree is " + (successors.size() + 1) + ".");
+
+            for (BigInteger key : replicas)
+                unfinishedReplications.put(key, successors.size() + 1);
+        }
+
+        if (successors.size() < requiredReplicas)
+            result.complete(false);
+
+        AtomicInteger acknowledged = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+
+        for (NodeInfo successor : successors) {
+            replicateToAsync(replicas, successor).thenAccept(replicated -> {
+                if (replicated) {
+                    if (acknowledged.incrementAndGet() >= requiredReplicas)
+                        result.complete(true);
+                    return;
                 }
+
+                for (BigInteger key : replicas)
+                    unfinishedReplications.put(key, 1);
+                repairPool.execute(() -> informAboutFailure(successor));
+
+                if (successors.size() - failed.incrementAndGet() < requiredReplicas)
+                    result.complete(false);
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * It ensures that the local values with the given keys are replicated in the next successors.
+     *
+     * @param replicas
+     */
+    private void ensureReplication(Set<BigInteger> replicas) {
+        int replicated = 0;
+        while (replicated < REPLICATION_DEGREE - 1) {
+            ArrayList<NodeInfo> holders = getReplicaHolders();
+            if (holders.size() <= replicated) {
+                System.err.println("Replication of " + replicas.size() + " file(s) failed.\n" +
+                        "Current replication degree is " + (replicated + 1) + ".");
+
+                for (BigInteger key : replicas)
+                    unfinishedReplications.put(key, replicated + 1);
+                return;
             }
 
-            /* If the operation exceeded its max attempts, then inform about its nthSuccessor failure and retry.
+            /* If the replication failed, then inform about the holder's failure and retry.
              * After informing, the successor list will be updated and a new node will be selected, if available. */
-            if (attempts <= 0) {
-                informAboutFailure(nthSuccessor);
-                i--;
-            }
+            NodeInfo holder = holders.get(replicated);
+            if (replicateTo(replicas, holder))
+                replicated++;
+            else
+                informAboutFailure(holder);
         }
+
+        for (BigInteger key : replicas)
+            unfinishedReplications.remove(key);
+    }
+
+    /**
+     * Checks if the successors of this node include the REPLICATION_DEGREE - 1 other servers that keep its replicas.
+     *
+     * @return
+     */
+    boolean hasAllReplicaHolders() {
+        return getReplicaHolders().size() >= REPLICATION_DEGREE - 1;
+    }
+
+    /**
+     * Gets the successors that keep the replicas of the keys of this node, which are the first nodes of the
+     * next REPLICATION_DEGREE - 1 other servers, so that the copies of a key are never kept by the same server.
+     *
+     * @return
+     */
+    private ArrayList<NodeInfo> getReplicaHolders() {
+        ArrayList<NodeInfo> holders = new ArrayList<>();
+
+        for (NodeInfo successor : fingerTable.getSuccessors().getAll()) {
+            if (holders.size() >= REPLICATION_DEGREE - 1)
+                break;
+
+            if (!successor.isSameServer(self) && holders.stream().noneMatch(successor::isSameServer))
+                holders.add(successor);
+        }
+
+        return holders;
+    }
+
+    /**
+     * Checks if the server of the given node is a valid holder of the replicas of this node.
+     *
+     * @param node
+     * @return
+     */
+    private boolean isReplicaHolder(NodeInfo node) {
+        return fingerTable.getSuccessors().getAll().stream().anyMatch(node::isSameServer);
     }
 
     /**
@@ -292,19 +465,37 @@ public class Node {
      * @param value
      */
     public void storeReplica(NodeInfo node, BigInteger key, byte[] value) {
-        ConcurrentHashMap<BigInteger, byte[]> replicas = replicatedValues.getOrDefault(node.getId(), new ConcurrentHashMap<>());
-        replicas.put(key, value);
-        replicatedValues.putIfAbsent(node.getId(), replicas);
+        replicaStore.store(node.getId(), key, value);
+    }
+
+    /**
+     * Stores the given replicas of the given node.
+     *
+     * @param node
+     * @param replicas
+     */
+    public void storeReplicas(NodeInfo node, ConcurrentHashMap<BigInteger, byte[]> replicas) {
+        replicaStore.storeAll(node.getId(), replicas);
+    }
+
+    /**
+     * Gets the value stored locally with given key, without copying it into the heap if possible.
+     *
+     * @param key
+     * @return
+     */
+    public ByteBuffer getLocalValueBuffer(BigInteger key) {
+        return dht.getLocalValueBuffer(key);
     }
 
     /**
-     * Gets the value stored locally with given key.
+     * Checks if a value with the given key is stored locally.
      *
      * @param key
      * @return
      */
-    public byte[] getLocalValue(BigInteger key) {
-        return dht.getLocalValue(key);
+    public boolean hasLocalValue(BigInteger key) {
+        return dht.hasLocalValue(key);
     }
 
     /**
@@ -321,62 +512,144 @@ public class Node {
      *
      * @param key
      * @param value
+     * @param consistency
      * @return
      */
-    CompletableFuture<Boolean> insert(BigInteger key, byte[] value) {
-        return operation(ongoingInsertions, new InsertOperation(self, key, value), key);
+    CompletableFuture<Boolean> insert(BigInteger key, byte[] value, ConsistencyLevel consistency) {
+        return operation(ongoingInsertions, new InsertOperation(self, key, value, consistency), key);
     }
 
     /**
-     * Sends the given keys to the given destination.
+     * Hands off the given keys to the given destination, in the background.
      *
      * @param destination
      * @param keys
-     * @return
-     * @throws Exception
      */
-    private CompletableFuture<Boolean> sendKeysToNode(NodeInfo destination, ConcurrentHashMap<BigInteger, byte[]> keys) throws Exception {
-        int destinationId = destination.getId();
-        CompletableFuture<Boolean> sending = ongoingKeySendings.putIfAbsent(destinationId);
-
-        if (sending != null)
-            return sending;
-
-        Mailman.sendOperation(destination, new SendKeysOperation(self, keys));
+    private void sendKeysToNode(NodeInfo destination, Set<BigInteger> keys) {
+        if (keys.isEmpty())
+            return;
 
-        return ongoingKeySendings.get(destinationId);
+        KeyHandoff handoff = keyHandoffs.computeIfAbsent(destination.getId(), id -> new KeyHandoff(destination));
+        handoff.add(keys);
+        handoff.start();
     }
 
     /**
      * Updates Data Structures of the given new predecessor.
+     * The keys that now belong to it are handed off in the background, so that the caller does not wait for them.
+     * Nodes of the same server share their storage, so their keys are not handed off.
      *
      * @param newPredecessor
      * @return
      */
     public boolean updatePredecessor(NodeInfo newPredecessor) {
         if (fingerTable.updatePredecessor(newPredecessor)) {
-
-            try {
-                sendKeysToNode(newPredecessor,
-                        dht.getKeysBelongingTo(newPredecessor)).get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                e.printStackTrace();
-                informAboutFailure(newPredecessor);
-                return false;
-            }
-
+            if (!peer.hosts(newPredecessor))
+                sendKeysToNode(newPredecessor, dht.getKeysBelongingTo(newPredecessor));
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Resumes the handoffs of keys that were interrupted, dropping the ones whose destination
+     * is no longer the predecessor, as the keys then belong to another node, which gets its own handoff.
+     */
+    private void resumeKeyHandoffs() {
+        NodeInfo predecessor = fingerTable.getPredecessor();
+
+        for (KeyHandoff handoff : keyHandoffs.values()) {
+            if (handoff.destination.equals(predecessor))
+                handoff.start();
+            else
+                keyHandoffs.remove(handoff.destination.getId(), handoff);
+        }
+    }
+
+    /**
+     * Keys being handed off to a predecessor, which are removed as their batches are acknowledged,
+     * so that an interrupted handoff is resumed from where it stopped.
+     */
+    private class KeyHandoff {
+        private final NodeInfo destination;
+        private final Set<BigInteger> pendingKeys = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicInteger totalKeys = new AtomicInteger(0);
+        private final AtomicInteger sentKeys = new AtomicInteger(0);
+
+        KeyHandoff(NodeInfo destination) {
+            this.destination = destination;
+        }
+
+        void add(Set<BigInteger> keys) {
+            for (BigInteger key : keys) {
+                if (pendingKeys.add(key))
+                    totalKeys.incrementAndGet();
+            }
+        }
+
+        /**
+         * Marks the given keys as sent, and keeps their values as replicas of the destination,
+         * as this server is the first to keep the replicas of the keys of its predecessor.
+         * The values are no longer stored for this node, so they stop taking its share of the disk.
+         *
+         * @param keys
+         */
+        private void acknowledged(Set<BigInteger> keys) {
+            for (BigInteger key : keys) {
+                if (pendingKeys.remove(key))
+                    sentKeys.incrementAndGet();
+
+                byte[] value = dht.getLocalValue(key);
+                if (value != null && replicaStore.store(destination.getId(), key, value))
+                    dht.deleteKey(key);
+            }
+        }
+
+        /**
+         * Starts sending the pending keys, unless they are already being sent.
+         */
+        void start() {
+            if (running.compareAndSet(false, true))
+                repairPool.execute(this::run);
+        }
+
+        private void run() {
+            boolean sent = true;
+
+            while (sent && !pendingKeys.isEmpty()) {
+                HashSet<BigInteger> keys = new HashSet<>(pendingKeys);
+                sent = sendInBatches(keys, destination,
+                        (batchId, values) -> new SendKeysBatchOperation(self, batchId, values), this::acknowledged,
+                        handoffLimiter);
+
+                /* The keys that were not sent were deleted in the meantime */
+                if (sent)
+                    pendingKeys.removeAll(keys);
+            }
+
+            if (sent)
+                keyHandoffs.remove(destination.getId(), this);
+            else
+                System.err.println("Handoff of keys to node " + destination.getId() + " stopped after " + sentKeys.get()
+                        + " of " + totalKeys.get() + " keys. It will be resumed.");
+
+            running.set(false);
+
+            /* Keys added after the last check would otherwise wait for the next stabilization */
+            if (sent && !pendingKeys.isEmpty())
+                start();
+        }
+    }
+
     /**
      * Informs all the nodes about the existence of the given node.
      *
      * @param node
      */
     public void informAboutExistence(NodeInfo node) {
+        updatePredecessor(node);
         fingerTable.informAboutExistence(node);
     }
 
@@ -386,49 +659,313 @@ public class Node {
      * @param node
      */
     public void informAboutFailure(NodeInfo node) {
-        if (node.equals(self))
+        /* The nodes of this server (including this one) only fail with it */
+        if (peer.hosts(node) && peer.getNode(node.getId()) != null)
             return;
 
 
         System.err.println("Node with ID " + node.getId() + " has failed.");
         NodeInfo predecessor = fingerTable.getPredecessor();
+        boolean replicaHolder = getReplicaHolders().contains(node);
 
-        int removedSuccessorIndex = fingerTable.informSuccessorsOfFailure(node);
+        fingerTable.informSuccessorsOfFailure(node);
         fingerTable.informFingersOfFailure(node);
         fingerTable.informPredecessorOfFailure(node);
 
-        /* If the removed successor index was less than REPLICATION_DEGREE - 1, it means that that successor was
-         * replicating this node's local values. As such, we need to replicate to a new successor in order to
-         * maintain the REPLICATION_DEGREE. */
-        if (removedSuccessorIndex < REPLICATION_DEGREE - 1)
-            replicateTo(dht.getLocalValues(), fingerTable.getNthSuccessor(REPLICATION_DEGREE - 1));
+        /* If the node was replicating this node's local values, we need to replicate to the
+         * new last holder in order to maintain the REPLICATION_DEGREE. */
+        ArrayList<NodeInfo> holders = getReplicaHolders();
+        if (replicaHolder && holders.size() >= REPLICATION_DEGREE - 1)
+            replicateOrFail(dht.getKeySet(), holders.get(REPLICATION_DEGREE - 2));
 
         /* If my predecessor fails, then I will take over its keys. */
-        if (predecessor.equals(node)) {
-            ConcurrentHashMap<BigInteger, byte[]> replicas = replicatedValues.remove(node.getId());
-            if (replicas == null)
-                return;
+        if (predecessor.equals(node))
+            takeOverReplicas(node.getId());
+    }
+
+    /**
+     * Stores the replicas of the given failed node as local values, as this node now owns their keys.
+     * The replicas are moved one at a time, and each is only deleted once it is stored as a local value,
+     * so the ones that could not be moved are kept and moved again on the next check of the replica owners.
+     *
+     * @param ownerId
+     */
+    private void takeOverReplicas(RingId ownerId) {
+        HashSet<BigInteger> replicas = replicaStore.getKeys(ownerId);
+        if (replicas.isEmpty())
+            return;
 
-            dht.storeKeys(replicas);
-            replicateTo(replicas, fingerTable.getNthSuccessor(REPLICATION_DEGREE - 2));
+        HashSet<BigInteger> takenOver = new HashSet<>();
+        for (BigInteger key : replicas) {
+            byte[] value = replicaStore.load(ownerId, key);
+            if (value != null && dht.storeKey(key, value)) {
+                replicaStore.delete(ownerId, key);
+                takenOver.add(key);
+            }
         }
+
+        if (takenOver.size() < replicas.size())
+            System.err.println("Could not take over " + (replicas.size() - takenOver.size()) + " replica(s) of node "
+                    + ownerId + ".");
+
+        /* The first holder already had them as replicas of the failed node */
+        ArrayList<NodeInfo> holders = getReplicaHolders();
+        if (!takenOver.isEmpty() && holders.size() >= REPLICATION_DEGREE - 1)
+            replicateOrFail(takenOver, holders.get(REPLICATION_DEGREE - 2));
+    }
+
+    /**
+     * Sends the local values with the given keys to the given node, informing about its failure if it does not store them.
+     *
+     * @param replicas
+     * @param node
+     */
+    private void replicateOrFail(Set<BigInteger> replicas, NodeInfo node) {
+        if (!replicateTo(replicas, node))
+            informAboutFailure(node);
     }
 
     /**
-     * Send all the given replicas to given node.
+     * Sends the local values with the given keys to the given node, in batches.
      *
      * @param replicas
      * @param node
+     * @return true if the node acknowledged every batch.
      */
-    private void replicateTo(ConcurrentHashMap<BigInteger, byte[]> replicas, NodeInfo node) {
-        for (Map.Entry<BigInteger, byte[]> entry : replicas.entrySet()) {
+    private boolean replicateTo(Set<BigInteger> replicas, NodeInfo node) {
+        return sendInBatches(replicas, node,
+                (batchId, values) -> new ReplicationBatchOperation(self, batchId, values), null, null);
+    }
+
+    /**
+     * Sends the local values with the given keys to the given node, in batches, without waiting for them to be
+     * acknowledged. It is meant for the few values of an insertion, so every batch is sent at once.
+     *
+     * @param replicas
+     * @param node
+     * @return Future completed with true once the node acknowledged every batch, or false as soon as one fails.
+     */
+    private CompletableFuture<Boolean> replicateToAsync(Set<BigInteger> replicas, NodeInfo node) {
+        ArrayList<ConcurrentHashMap<BigInteger, byte[]>> batches = new ArrayList<>();
+        ConcurrentHashMap<BigInteger, byte[]> batch = new ConcurrentHashMap<>();
+        int batchSize = 0;
+
+        for (BigInteger key : replicas) {
+            /* Values deleted in the meantime no longer need to be replicated */
+            byte[] value = dht.getLocalValue(key);
+            if (value == null)
+                continue;
+
+            batch.put(key, value);
+            batchSize += value.length;
+
+            if (batchSize >= REPLICATION_BATCH_SIZE) {
+                batches.add(batch);
+                batch = new ConcurrentHashMap<>();
+                batchSize = 0;
+            }
+        }
+
+        if (!batch.isEmpty())
+            batches.add(batch);
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (batches.isEmpty()) {
+            result.complete(true);
+            return result;
+        }
+
+        AtomicInteger remainingBatches = new AtomicInteger(batches.size());
+        for (ConcurrentHashMap<BigInteger, byte[]> values : batches) {
+            ValueBatch valueBatch = new ValueBatch(node, values,
+                    (batchId, batchValues) -> new ReplicationBatchOperation(self, batchId, batchValues));
+
+            valueBatch.whenAcknowledged().thenAccept(acknowledged -> {
+                if (!acknowledged)
+                    result.complete(false);
+                else if (remainingBatches.decrementAndGet() == 0)
+                    result.complete(true);
+            });
+        }
+
+        return result;
+    }
+
+    private interface BatchOperationFactory {
+        Operation create(int batchId, ConcurrentHashMap<BigInteger, byte[]> values);
+    }
+
+    /**
+     * Sends the local values with the given keys to the given node, in batches made into operations by the given factory.
+     * A few batches are sent ahead while waiting for the acknowledgement of the previous ones.
+     * The values are only read when their batch is built, so that at most a few batches are in memory.
+     *
+     * @param keys
+     * @param node
+     * @param factory
+     * @param onAcknowledged Called with the keys of each batch once it is acknowledged, if not null.
+     * @param limiter        Limit of the rate at which the batches are sent, if not null.
+     * @return true if the node acknowledged every batch.
+     */
+    private boolean sendInBatches(Set<BigInteger> keys, NodeInfo node, BatchOperationFactory factory,
+                                  Consumer<Set<BigInteger>> onAcknowledged, RateLimiter limiter) {
+        ArrayDeque<ValueBatch> unacknowledgedBatches = new ArrayDeque<>();
+        ConcurrentHashMap<BigInteger, byte[]> batch = new ConcurrentHashMap<>();
+        int batchSize = 0;
+
+        for (BigInteger key : keys) {
+            /* Values deleted in the meantime no longer need to be replicated */
+            byte[] value = dht.getLocalValue(key);
+            if (value == null)
+                continue;
+
+            batch.put(key, value);
+            batchSize += value.length;
+
+            if (batchSize >= REPLICATION_BATCH_SIZE) {
+                if (unacknowledgedBatches.size() >= REPLICATION_WINDOW
+                        && !unacknowledgedBatches.poll().await(onAcknowledged))
+                    return false;
+
+                if (!acquire(limiter, batchSize))
+                    return false;
+
+                unacknowledgedBatches.add(new ValueBatch(node, batch, factory));
+                batch = new ConcurrentHashMap<>();
+                batchSize = 0;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            if (!acquire(limiter, batchSize))
+                return false;
+
+            unacknowledgedBatches.add(new ValueBatch(node, batch, factory));
+        }
+
+        while (!unacknowledgedBatches.isEmpty()) {
+            if (!unacknowledgedBatches.poll().await(onAcknowledged))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until the given number of bytes can be sent under the given limit.
+     *
+     * @param limiter Limit of the rate, or null for no limit.
+     * @param bytes
+     * @return false if the thread was interrupted while waiting.
+     */
+    private static boolean acquire(RateLimiter limiter, long bytes) {
+        if (limiter == null)
+            return true;
+
+        try {
+            limiter.acquire(bytes);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A batch of values sent to a node, which is resent if it is not acknowledged in time.
+     */
+    private class ValueBatch {
+        private final NodeInfo node;
+        private final int batchId = nextReplicationBatch.getAndIncrement();
+        private final Set<BigInteger> keys;
+        private final Operation operation;
+        private CompletableFuture<Boolean> acknowledgement;
+
+        ValueBatch(NodeInfo node, ConcurrentHashMap<BigInteger, byte[]> values, BatchOperationFactory factory) {
+            this.node = node;
+            this.keys = values.keySet();
+            this.operation = factory.create(batchId, values);
+            send();
+        }
+
+        private void send() {
+            ongoingReplicationBatches.putIfAbsent(batchId);
+            acknowledgement = ongoingReplicationBatches.get(batchId);
+
             try {
-                Mailman.sendOperation(node, new ReplicationOperation(self, entry.getKey(), entry.getValue()));
-            } catch (Exception e) {
-                informAboutFailure(node);
-                return;
+                Mailman.sendOperation(node, operation);
+            } catch (IOException e) {
+                ongoingReplicationBatches.operationFailed(batchId, e);
+            }
+        }
+
+        /**
+         * Waits for the batch to be acknowledged, resending it if it is not.
+         *
+         * @param onAcknowledged Called with the keys of the batch once it is acknowledged, if not null.
+         * @return true if the batch was acknowledged.
+         */
+        boolean await(Consumer<Set<BigInteger>> onAcknowledged) {
+            int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
+            while (true) {
+                try {
+                    boolean acknowledged = acknowledgement.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+                    if (acknowledged && onAcknowledged != null)
+                        onAcknowledged.accept(keys);
+
+                    return acknowledged;
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    attempts--;
+                    ongoingReplicationBatches.operationFailed(batchId, e);
+
+                    if (attempts <= 0)
+                        return false;
+
+                    send();
+                }
             }
         }
+
+        /**
+         * Gets a future completed once the batch is acknowledged, resending the batch if it is not,
+         * without waiting for it.
+         *
+         * @return Future completed with true if the batch was acknowledged, or false if every attempt failed.
+         */
+        CompletableFuture<Boolean> whenAcknowledged() {
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            awaitAsync(result, OPERATION_MAX_FAILED_ATTEMPTS);
+            return result;
+        }
+
+        private void awaitAsync(CompletableFuture<Boolean> result, int attempts) {
+            CompletableFuture<Boolean> current = acknowledgement;
+            ScheduledFuture<?> timeout = timer.schedule(
+                    () -> current.completeExceptionally(new TimeoutException("Batch " + batchId + " was not acknowledged.")),
+                    OPERATION_TIMEOUT, TimeUnit.SECONDS);
+
+            current.whenComplete((acknowledged, e) -> {
+                timeout.cancel(false);
+
+                if (e == null) {
+                    result.complete(acknowledged);
+                    return;
+                }
+
+                /* The batch may have timed out while it is still waited for */
+                ongoingReplicationBatches.operationFailed(batchId, new TimeoutException());
+                if (attempts <= 1) {
+                    result.complete(false);
+                    return;
+                }
+
+                /* Sending may block, so it is not done in the thread of the timer */
+                threadPool.execute(() -> {
+                    send();
+                    awaitAsync(result, attempts - 1);
+                });
+            });
+        }
     }
 
     /**
@@ -447,25 +984,44 @@ public class Node {
         StringBuilder sb = new StringBuilder();
         sb.append(fingerTable.toString());
 
-        sb.append("\n\nReplicated keys:\n");
-        sb.append("NodeID    Key\n");
-        replicatedValues.forEach((nodeId, keys) -> keys.forEach((key, value) -> {
-            sb.append(nodeId);
-            sb.append("          ");
-            sb.append(DatatypeConverter.printHexBinary(key.toByteArray()));
-            sb.append("\n");
-        }));
+        if (!keyHandoffs.isEmpty()) {
+            sb.append("\nKey handoffs:\n");
+            sb.append("NodeID    Sent/Total\n");
+            keyHandoffs.forEach((nodeId, handoff) -> {
+                sb.append(nodeId);
+                sb.append("          ");
+                sb.append(handoff.sentKeys.get());
+                sb.append("/");
+                sb.append(handoff.totalKeys.get());
+                sb.append("\n");
+            });
+        }
 
         return sb.toString();
     }
 
     /**
-     * Stores the given keys of the successor.
+     * Stores the given keys of the successor, and replicates them in the background,
+     * as the successor only keeps them as replicas of this node.
      *
      * @param keys
      */
     public void storeSuccessorKeys(ConcurrentHashMap<BigInteger, byte[]> keys) {
         dht.storeKeys(keys);
+
+        HashSet<BigInteger> replicas = new HashSet<>(keys.keySet());
+        repairPool.execute(() -> ensureReplication(replicas));
+    }
+
+    /**
+     * Records the capacity and load the server of the given successor reported.
+     *
+     * @param successor
+     * @param capacity  Number of bytes the server offers for storage.
+     * @param load      Number of bytes the server stores.
+     */
+    public void updateSuccessorLoad(NodeInfo successor, long capacity, long load) {
+        peer.updateLoad(successor, capacity, load);
     }
 
     /**
@@ -495,7 +1051,20 @@ public class Node {
             return operationState;
 
         operationState = operationManager.get(key);
+        operationExecutor.execute(() -> lookupAndSend(operationManager, operation, key));
+
+        return operationState;
+    }
 
+    /**
+     * Looks up the node responsible for the given key and sends it the given operation.
+     *
+     * @param operationManager Manager of the operation, which is failed if the operation cannot be sent.
+     * @param operation
+     * @param key
+     * @param <R>
+     */
+    private <R> void lookupAndSend(OperationManager<BigInteger, R> operationManager, Operation operation, BigInteger key) {
         NodeInfo destination = null;
         int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
         while (attempts > 0) {
@@ -508,7 +1077,7 @@ public class Node {
                 if (attempts <= 0) {
                     fingerTable.ongoingLookups.operationFailed(key, new KeyNotFoundException());
                     operationManager.operationFailed(key, e);
-                    return operationState;
+                    return;
                 }
             }
         }
@@ -523,13 +1092,21 @@ public class Node {
 
                 if (attempts <= 0) {
                     operationManager.operationFailed(key, e);
-                    return operationState;
+                    return;
                 }
 
             }
         }
+    }
 
-        return operationState;
+    /**
+     * Starts the Contains Key Operation with the given key.
+     *
+     * @param key
+     * @return
+     */
+    CompletableFuture<Boolean> containsKey(BigInteger key) {
+        return operation(ongoingContainsKeys, new ContainsKeyOperation(self, key), key);
     }
 
     /**
@@ -552,6 +1129,72 @@ public class Node {
         return dht.deleteKey(key);
     }
 
+    /**
+     * Compares the given nodes of the tree of the replicas in origin with the same nodes of the tree of
+     * the local keys, and informs origin about the ones that differ, so that it only descends into those.
+     * Nothing is sent when every node matches, so replicas that are in sync cost a single message.
+     * If the origin is no longer considered to be a valid replica holder, then it is informed so that it
+     * deletes all of its keys.
+     *
+     * @param origin  Remote node with some replicas.
+     * @param level
+     * @param indexes
+     * @param digests
+     */
+    public void compareReplicaTree(NodeInfo origin, int level, int[] indexes, long[] digests) {
+        if (!isReplicaHolder(origin)) {
+            sendWithRetries(origin, new MerkleSyncResultOperation(self, false, level, new int[0]));
+            return;
+        }
+
+        int[] differentIndexes = new int[indexes.length];
+        int count = 0;
+        for (int i = 0; i < indexes.length && i < digests.length; i++) {
+            if (MerkleTree.isValidNode(level, indexes[i]) && dht.getDigest(level, indexes[i]) != digests[i])
+                differentIndexes[count++] = indexes[i];
+        }
+
+        if (count > 0)
+            sendWithRetries(origin, new MerkleSyncResultOperation(self, true, level, Arrays.copyOf(differentIndexes, count)));
+    }
+
+    /**
+     * Continues the synchronization of the replicas of owner, after it compared the nodes of the given level.
+     * The children of the nodes that differ are sent to be compared, until the leaves are reached, and then
+     * the keys of the replicas in the leaves that differ are sent to be synchronized.
+     *
+     * @param owner            Remote node whose replicas are stored in this node.
+     * @param replicaHolder    Whether this node is still a valid replica holder of owner.
+     * @param level
+     * @param differentIndexes
+     */
+    public void onReplicaTreeCompared(NodeInfo owner, boolean replicaHolder, int level, int[] differentIndexes) {
+        if (!replicaHolder) {
+            replicaStore.deleteAll(owner.getId());
+            return;
+        }
+
+        if (level < MerkleTree.DEPTH) {
+            int[] children = new int[differentIndexes.length * MerkleTree.BRANCHING];
+            long[] digests = new long[children.length];
+
+            for (int i = 0; i < children.length; i++) {
+                children[i] = differentIndexes[i / MerkleTree.BRANCHING] * MerkleTree.BRANCHING + i % MerkleTree.BRANCHING;
+                digests[i] = replicaStore.getDigest(owner.getId(), level + 1, children[i]);
+            }
+
+            sendWithRetries(owner, new MerkleSyncOperation(self, level + 1, children, digests));
+            return;
+        }
+
+        Set<Integer> leaves = new HashSet<>();
+        for (int leaf : differentIndexes)
+            leaves.add(leaf);
+
+        sendWithRetries(owner,
+                new ReplicationRangeSyncOperation(self, differentIndexes, replicaStore.getKeys(owner.getId(), leaves)));
+    }
+
     /**
      * Synchronizes remote replicas from origin, by sending new keys and informing about old ones.
      * If the origin is no longer considered to be a valid replica holder, then just delete all of
@@ -560,33 +1203,49 @@ public class Node {
      * @param origin Remote node with some replicas.
      * @param keys
      */
-    @SuppressWarnings("unchecked")
     public void synchronizeReplicas(NodeInfo origin, HashSet<BigInteger> keys) {
+        synchronizeReplicas(origin, keys, null);
+    }
+
+    /**
+     * Synchronizes remote replicas from origin in the given leaves of the tree of the keys,
+     * by sending new keys and informing about old ones.
+     * If the origin is no longer considered to be a valid replica holder, then just delete all of
+     * its keys.
+     *
+     * @param origin Remote node with some replicas.
+     * @param keys   Keys of the replicas of origin in the given leaves.
+     * @param leaves Leaves to synchronize, or null to synchronize every key.
+     */
+    @SuppressWarnings("unchecked")
+    public void synchronizeReplicas(NodeInfo origin, HashSet<BigInteger> keys, int[] leaves) {
         HashSet<BigInteger> keysToDelete;
+        boolean replicaHolder = isReplicaHolder(origin);
 
-        if (fingerTable.getSuccessors().contains(origin))
-            keysToDelete = keys;
-        else {
+        /* A valid replica holder only deletes the keys that are no longer stored here, keeping the others,
+         * so that the replicas it still has (e.g. recovered from disk after a restart) are not sent again. */
+        if (replicaHolder) {
             keysToDelete = (HashSet<BigInteger>) keys.clone();
-            keysToDelete.removeAll(dht.getKeySet());
-        }
+            keysToDelete.removeIf(dht::hasLocalValue);
+        } else
+            keysToDelete = keys;
 
-        int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
-        while (attempts > 0) {
-            try {
-                Mailman.sendOperation(origin, new ReplicationSyncResultOperation(self, keysToDelete));
-                break;
-            } catch (IOException e) {
-                attempts--;
-                e.printStackTrace();
-            }
-        }
+        if (!sendWithRetries(origin, new ReplicationSyncResultOperation(self, keysToDelete)))
+            return;
 
-        if (attempts <= 0)
+        if (!replicaHolder)
             return;
 
-        ConcurrentHashMap<BigInteger, byte[]> toReplicate = dht.getDifference(keys);
-        replicateTo(toReplicate, origin);
+        Set<Integer> leafSet = null;
+        if (leaves != null) {
+            leafSet = new HashSet<>();
+            for (int leaf : leaves)
+                leafSet.add(leaf);
+        }
+
+        HashSet<BigInteger> toReplicate = dht.getDifference(keys, leafSet);
+        if (!toReplicate.isEmpty())
+            repairPool.execute(() -> replicateTo(toReplicate, origin));
     }
 
     /**
@@ -597,14 +1256,28 @@ public class Node {
      * @param keysToDelete
      */
     public void updateReplicas(NodeInfo origin, HashSet<BigInteger> keysToDelete) {
-        ConcurrentHashMap<BigInteger, byte[]> originReplicas = replicatedValues.get(origin.getId());
-
-        if (originReplicas != null) {
-            keysToDelete.forEach(originReplicas::remove);
-
-            if (originReplicas.size() == 0)
-                replicatedValues.remove(origin.getId());
+        replicaStore.delete(origin.getId(), keysToDelete);
+    }
 
+    /**
+     * Sends the given operation, trying again up to OPERATION_MAX_FAILED_ATTEMPTS times if it fails.
+     *
+     * @param destination
+     * @param operation
+     * @return True if the operation was sent, false otherwise.
+     */
+    private boolean sendWithRetries(NodeInfo destination, Operation operation) {
+        int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
+        while (attempts > 0) {
+            try {
+                Mailman.sendOperation(destination, operation);
+                return true;
+            } catch (IOException e) {
+                attempts--;
+                e.printStackTrace();
+            }
         }
+
+        return false;
     }
 }
@@ -1,24 +1,87 @@
 package server.chord;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
-import static server.chord.Node.MAX_NODES;
 import static server.utils.Utils.hash;
 
 public class NodeInfo implements Serializable {
+    /* Pinned, so that nodes that still use Java serialization can read instances sent by newer nodes */
+    private static final long serialVersionUID = -1506001768822689949L;
 
-    private final int id;
+    private final RingId id;
     private final InetAddress address;
     private final int port;
 
     public NodeInfo(InetAddress address, int port) throws NoSuchAlgorithmException {
+        this(address, port, 0);
+    }
+
+    /**
+     * @param address
+     * @param port
+     * @param index   Index of the node among the ones of its server. The first one has the same ID as a server with a single node.
+     * @throws NoSuchAlgorithmException
+     */
+    public NodeInfo(InetAddress address, int port, int index) throws NoSuchAlgorithmException {
+        this.address = address;
+        this.port = port;
+        this.id = generateId(address.getAddress(), port, index);
+    }
+
+    /**
+     * @param id      Position of the node, which is not derived from the address of its server.
+     * @param address
+     * @param port
+     */
+    NodeInfo(RingId id, InetAddress address, int port) {
+        this.id = id;
         this.address = address;
         this.port = port;
-        this.id = generateId(address.getAddress(), port);
+    }
+
+    /**
+     * Writes the node in the binary wire format.
+     * The ID is sent as is, so that the receiver does not have to generate it again.
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void write(DataOutput output) throws IOException {
+        byte[] rawAddress = address.getAddress();
+
+        id.write(output);
+        output.writeByte(rawAddress.length);
+        output.write(rawAddress);
+        output.writeShort(port);
+    }
+
+    /**
+     * Reads a node written with write.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    public static NodeInfo read(DataInput input) throws IOException {
+        RingId id = RingId.read(input);
+        int addressLength = input.readUnsignedByte();
+        if (addressLength != 4 && addressLength != 16)
+            throw new StreamCorruptedException("Invalid address length " + addressLength);
+
+        byte[] rawAddress = new byte[addressLength];
+        input.readFully(rawAddress);
+        int port = input.readUnsignedShort();
+
+        return new NodeInfo(id, InetAddress.getByAddress(rawAddress), port);
     }
 
     /**
@@ -26,20 +89,20 @@ public class NodeInfo implements Serializable {
      *
      * @param address
      * @param port
+     * @param index
      * @return
      * @throws NoSuchAlgorithmException
      */
-    private static int generateId(byte[] address, int port) throws NoSuchAlgorithmException {
-        byte[] idGenerator = Arrays.copyOf(address, address.length + 4);
-
-        idGenerator[4] = (byte) (port >> 24);
-        idGenerator[5] = (byte) (port >> 16);
-        idGenerator[6] = (byte) (port >> 8);
-        idGenerator[7] = (byte) port;
+    private static RingId generateId(byte[] address, int port, int index) throws NoSuchAlgorithmException {
+        /* The port, and the index if not the first node, follow the address, which is 4 bytes long for IPv4 and 16 for IPv6 */
+        ByteBuffer idGenerator = ByteBuffer.allocate(address.length + (index == 0 ? 4 : 8));
+        idGenerator.put(address);
+        idGenerator.putInt(port);
 
+        if (index != 0)
+            idGenerator.putInt(index);
 
-        BigInteger id = new BigInteger(hash(idGenerator));
-        return Integer.remainderUnsigned(id.intValue(), MAX_NODES);
+        return RingId.of(new BigInteger(hash(idGenerator.array())));
     }
 
     /**
@@ -47,7 +110,7 @@ public class NodeInfo implements Serializable {
      *
      * @return
      */
-    public int getId() {
+    public RingId getId() {
         return id;
     }
 
@@ -69,9 +132,28 @@ public class NodeInfo implements Serializable {
         return port;
     }
 
+    /**
+     * Gets the address of the server of the node, which is shared by every node of that server.
+     *
+     * @return
+     */
+    public InetSocketAddress getSocketAddress() {
+        return new InetSocketAddress(address, port);
+    }
+
+    /**
+     * Checks if the given node is in the same server as this one.
+     *
+     * @param node
+     * @return
+     */
+    public boolean isSameServer(NodeInfo node) {
+        return port == node.port && address.equals(node.address);
+    }
+
     @Override
     public int hashCode() {
-        return id;
+        return id.hashCode();
     }
 
     @Override
@@ -81,6 +163,6 @@ public class NodeInfo implements Serializable {
 
     @Override
     public boolean equals(Object o) {
-        return o instanceof NodeInfo && ((NodeInfo) o).id == id;
+        return o instanceof NodeInfo && ((NodeInfo) o).id.equals(id);
     }
 }
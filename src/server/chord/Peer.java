@@ -0,0 +1,382 @@
+package server.chord;
+
+import server.FileManager;
+import server.communication.Mailman;
+import server.communication.operations.LoadReportOperation;
+import server.utils.RateLimiter;
+import server.utils.Threads;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static server.utils.Utils.toHex;
+
+/**
+ * A server of the network, which hosts one or more nodes, each with its own position in the ring,
+ * finger table and range of keys. The nodes share the connections, storage and threads of the server.
+ * A single position gives each server a range of the ring whose size varies a lot between servers,
+ * while with several positions each server owns many small ranges, so the keys are spread more evenly.
+ * <p>
+ * Servers may offer very different capacities, so the number of nodes of a server can be made proportional
+ * to its capacity, and servers periodically report their load to their predecessors. A server that stores
+ * much less than the server of one of its successors, for their capacities, adds a node halfway to that
+ * successor, which takes over half of the successor's range, so the load of the servers converges over time.
+ */
+public class Peer {
+    /* Number of nodes of this server. Servers of the same network may use different values */
+    public static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("dbs.virtualNodes", 1));
+    private static final long GIB = 1024 * 1024 * 1024;
+    /* Capacity of the server, or 0 for the size of its disk */
+    private static final long CAPACITY = Long.getLong("dbs.capacity", 0) * GIB;
+    /* Capacity for which the server has one node, or 0 to have VIRTUAL_NODES nodes whatever its capacity */
+    private static final long TOKEN_CAPACITY = Long.getLong("dbs.tokenCapacity", 0) * GIB;
+    private static final long HANDOFF_RATE = Long.getLong("dbs.handoffRate", 32) * 1024 * 1024; //In bytes per second
+    private static final boolean REBALANCE = Boolean.parseBoolean(System.getProperty("dbs.rebalance", "true"));
+    private static final int REBALANCE_INTERVAL = 30; //In seconds
+    /* Reports older than this are not used, as the successor may have changed since */
+    private static final long REPORT_EXPIRATION = TimeUnit.SECONDS.toMillis(3 * REBALANCE_INTERVAL);
+    /* A node is added when the server of a successor stores this many times more, for its capacity */
+    private static final double REBALANCE_RATIO = 1.5;
+    /* Servers storing less than this are not worth taking load from */
+    private static final long REBALANCE_MINIMUM_LOAD = 64 * 1024 * 1024;
+    private static final int REPLICATION_THREADS = 8;
+    private static final int REPAIR_THREADS = 8;
+
+    /* Nodes in the order they join the network, starting with the one that identifies the server */
+    private final CopyOnWriteArrayList<Node> nodes = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<RingId, Node> nodesById = new ConcurrentHashMap<>();
+    private final LocalStore localStore;
+    private final ReplicaStore replicaStore;
+    private final FileManager fileManager;
+    private final long capacity;
+    private final int maximumNodes;
+    /* Positions of the nodes added by the rebalancing, which are kept across restarts */
+    private final ArrayList<RingId> addedTokens = new ArrayList<>();
+    /* Last load reported by the server of each successor of a node of this server, by the ID of the successor */
+    private final ConcurrentHashMap<RingId, LoadReport> successorLoads = new ConcurrentHashMap<>();
+    private long lastNodeAddition = 0;
+    private final RateLimiter handoffLimiter = new RateLimiter(HANDOFF_RATE);
+
+    private final ExecutorService threadPool = Threads.newPool(10);
+    private final ScheduledExecutorService stabilizationExecutor = Threads.newScheduledPool(5);
+    /* Replicates new values, apart from the repair of the replication, which may block on failed nodes for longer */
+    private final ExecutorService replicationPool = Threads.newPool(REPLICATION_THREADS);
+    private final ExecutorService repairPool = Threads.newPool(REPAIR_THREADS);
+    /* Times out the queries of iterative lookups and the batches of replicas of insertions,
+     * apart from the stabilization, which blocks on lookups */
+    private final ScheduledExecutorService timer = Threads.newScheduledPool(1);
+
+    /**
+     * @param address Address of this server
+     * @param port    Port to start the service in
+     */
+    public Peer(InetAddress address, int port) throws IOException, NoSuchAlgorithmException {
+        /* The storage is named after the first node, whose ID is the one the server had with a single node */
+        NodeInfo firstNode = new NodeInfo(address, port, 0);
+        fileManager = new FileManager(firstNode.getId());
+        capacity = CAPACITY > 0 ? CAPACITY : fileManager.getDiskSize();
+
+        int nodeCount = TOKEN_CAPACITY > 0 ? (int) Math.max(1, Math.round((double) capacity / TOKEN_CAPACITY)) : VIRTUAL_NODES;
+        maximumNodes = Math.max(8, 4 * nodeCount);
+
+        ArrayList<NodeInfo> nodeInfos = new ArrayList<>();
+        nodeInfos.add(firstNode);
+        for (int i = 1; i < nodeCount; i++)
+            nodeInfos.add(new NodeInfo(address, port, i));
+
+        addedTokens.addAll(fileManager.loadTokens());
+        for (RingId token : addedTokens)
+            nodeInfos.add(new NodeInfo(token, address, port));
+
+        ArrayList<RingId> nodeIds = new ArrayList<>();
+        for (NodeInfo nodeInfo : nodeInfos)
+            nodeIds.add(nodeInfo.getId());
+
+        localStore = new LocalStore(fileManager, nodeIds);
+        replicaStore = new ReplicaStore(fileManager);
+
+        for (NodeInfo nodeInfo : nodeInfos) {
+            Node node = new Node(this, nodeInfo);
+            nodes.add(node);
+            nodesById.put(nodeInfo.getId(), node);
+        }
+    }
+
+    /**
+     * Adds the nodes of this server to the network, one at a time, through the given node.
+     *
+     * @param bootstrapperNode Node of the network to join, or null to start a new network,
+     *                         which the other nodes of this server join through the first one.
+     * @return
+     */
+    public boolean bootstrap(NodeInfo bootstrapperNode) {
+        for (Node node : nodes) {
+            if (bootstrapperNode == null) {
+                bootstrapperNode = node.getInfo();
+                continue;
+            }
+
+            if (!node.bootstrap(bootstrapperNode))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Initiates the Stabilization Protocol of every node, and the rebalancing of the server.
+     * The replicas are kept by the server, so they are only checked by its first node.
+     */
+    public void initiateStabilization() {
+        for (Node node : nodes)
+            stabilizationExecutor.scheduleWithFixedDelay(node::stabilizationProtocol, 5, 5, TimeUnit.SECONDS);
+
+        stabilizationExecutor.scheduleWithFixedDelay(nodes.get(0)::checkReplicasOwners, 5, 5, TimeUnit.SECONDS);
+
+        if (REBALANCE)
+            stabilizationExecutor.scheduleWithFixedDelay(this::rebalance, REBALANCE_INTERVAL, REBALANCE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reports the load of this server to the predecessors of its nodes, and adds a node if the server
+     * of a successor stores much more than this one for its capacity.
+     * At most one node is added at a time, and only once the reports show the effect of the previous one.
+     */
+    private void rebalance() {
+        long load = localStore.size();
+
+        for (Node node : nodes) {
+            NodeInfo predecessor = node.getPredecessor();
+            if (predecessor == null || hosts(predecessor))
+                continue;
+
+            try {
+                Mailman.sendOperation(predecessor, new LoadReportOperation(node.getInfo(), capacity, load));
+            } catch (IOException e) {
+                System.err.println("Could not report load to node " + predecessor.getId() + ".");
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (nodes.size() >= maximumNodes || now - lastNodeAddition < REPORT_EXPIRATION)
+            return;
+
+        Node splitNode = null;
+        NodeInfo splitSuccessor = null;
+        double heaviestUtilization = (double) load / capacity * REBALANCE_RATIO;
+
+        for (Node node : nodes) {
+            NodeInfo successor = node.getSuccessor();
+            if (successor == null || hosts(successor))
+                continue;
+
+            /* The added node would have the same successors, so its keys would not have all of their copies
+             * on other servers either. This happens when nearby nodes are of too few servers, e.g. of this one. */
+            if (!node.hasAllReplicaHolders())
+                continue;
+
+            LoadReport report = successorLoads.get(successor.getId());
+            if (report == null || now - report.time > REPORT_EXPIRATION || report.load < REBALANCE_MINIMUM_LOAD)
+                continue;
+
+            double utilization = (double) report.load / report.capacity;
+            if (utilization > heaviestUtilization) {
+                heaviestUtilization = utilization;
+                splitNode = node;
+                splitSuccessor = successor;
+            }
+        }
+
+        if (splitNode == null)
+            return;
+
+        RingId token = splitNode.getInfo().getId().midpoint(splitSuccessor.getId());
+        System.out.println("Server of node " + splitSuccessor.getId() + " is " + String.format("%.0f", heaviestUtilization * 100)
+                + "% full. Adding node " + token + " to take over half of its range.");
+
+        lastNodeAddition = now;
+        addNode(token);
+    }
+
+    /**
+     * Adds a node in the given position to the network, which takes over the keys of its range from its successor.
+     *
+     * @param token
+     * @return
+     */
+    private boolean addNode(RingId token) {
+        if (nodesById.containsKey(token))
+            return false;
+
+        NodeInfo nodeInfo = new NodeInfo(token, getInfo().getAddress(), getInfo().getPort());
+        Node node = new Node(this, nodeInfo);
+
+        localStore.addNode(token);
+        nodesById.put(token, node);
+
+        if (!node.bootstrap(getInfo())) {
+            System.err.println("Node " + token + " could not join the network.");
+            nodesById.remove(token);
+            localStore.removeNode(token);
+            return false;
+        }
+
+        nodes.add(node);
+        stabilizationExecutor.scheduleWithFixedDelay(node::stabilizationProtocol, 0, 5, TimeUnit.SECONDS);
+
+        synchronized (addedTokens) {
+            addedTokens.add(token);
+
+            try {
+                fileManager.saveTokens(addedTokens);
+            } catch (IOException e) {
+                System.err.println("Could not save the positions of the nodes of this server.");
+                e.printStackTrace();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Records the capacity and load the server of the given successor reported.
+     *
+     * @param successor
+     * @param capacity
+     * @param load
+     */
+    void updateLoad(NodeInfo successor, long capacity, long load) {
+        if (capacity > 0)
+            successorLoads.put(successor.getId(), new LoadReport(capacity, load));
+    }
+
+    /**
+     * Load of a server, as reported by one of its nodes.
+     */
+    private static class LoadReport {
+        private final long capacity;
+        private final long load;
+        private final long time = System.currentTimeMillis();
+
+        LoadReport(long capacity, long load) {
+            this.capacity = capacity;
+            this.load = load;
+        }
+    }
+
+    /**
+     * Gets the info of the first node, which identifies the server.
+     *
+     * @return
+     */
+    public NodeInfo getInfo() {
+        return nodes.get(0).getInfo();
+    }
+
+    /**
+     * Gets the node of this server with the given ID.
+     *
+     * @param id ID of the node, or null for the first node, which is the one that receives
+     *           the operations of nodes that do not say to which node they are sent.
+     * @return The node, or null if it is not in this server.
+     */
+    public Node getNode(RingId id) {
+        return id == null ? nodes.get(0) : nodesById.get(id);
+    }
+
+    /**
+     * Informs every node of this server about the failure of the given node.
+     *
+     * @param node
+     */
+    public void informAboutFailure(NodeInfo node) {
+        for (Node localNode : nodes)
+            localNode.informAboutFailure(node);
+    }
+
+    /**
+     * Checks if the given node is in this server.
+     *
+     * @param node
+     * @return
+     */
+    public boolean hosts(NodeInfo node) {
+        return getInfo().isSameServer(node);
+    }
+
+    /**
+     * Gets the Distributed Hash Table through which the clients of this server store and get values.
+     *
+     * @return
+     */
+    public DistributedHashTable getDistributedHashTable() {
+        return nodes.get(0).getDistributedHashTable();
+    }
+
+    LocalStore getLocalStore() {
+        return localStore;
+    }
+
+    ReplicaStore getReplicaStore() {
+        return replicaStore;
+    }
+
+    ExecutorService getThreadPool() {
+        return threadPool;
+    }
+
+    ExecutorService getReplicationPool() {
+        return replicationPool;
+    }
+
+    ExecutorService getRepairPool() {
+        return repairPool;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    RateLimiter getHandoffLimiter() {
+        return handoffLimiter;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Stored: ");
+        sb.append(localStore.size() / (1024 * 1024));
+        sb.append(" of ");
+        sb.append(capacity / (1024 * 1024));
+        sb.append(" MiB\n\n");
+
+        for (Node node : nodes) {
+            if (nodes.size() > 1) {
+                sb.append("Node ID: ");
+                sb.append(node.getInfo().getId());
+                sb.append("\n\n");
+            }
+
+            sb.append(node.toString());
+            sb.append("\n\n");
+        }
+
+        sb.append("Replicated keys:\n");
+        sb.append("NodeID    Key\n");
+        replicaStore.forEach((nodeId, key) -> {
+            sb.append(nodeId);
+            sb.append("          ");
+            sb.append(toHex(key.toByteArray()));
+            sb.append("\n");
+        });
+
+        return sb.toString();
+    }
+}
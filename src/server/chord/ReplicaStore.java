@@ -0,0 +1,279 @@
+package server.chord;
+
+import server.FileManager;
+import server.storage.LogStore;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import static server.utils.Utils.toHex;
+
+/**
+ * Replicas kept by this node on behalf of other nodes.
+ * The replicas of each node are stored in a log store of their own, which is deleted as a whole when the node
+ * no longer has replicas here, and their values are only loaded when they are needed (e.g. when their owner fails).
+ * The stores are recovered from disk when the node starts.
+ */
+class ReplicaStore {
+    private final FileManager fileManager;
+    private final ConcurrentHashMap<RingId, OwnerReplicas> replicasByOwner = new ConcurrentHashMap<>();
+    /* Guards the opening and deletion of the stores, which are written with the read lock */
+    private final ReentrantReadWriteLock storesLock = new ReentrantReadWriteLock();
+
+    /**
+     * Replicas of a node, with the digest of their keys, which is compared with the keys stored by that node.
+     */
+    private static class OwnerReplicas {
+        private final LogStore values;
+        private final MerkleTree merkleTree = new MerkleTree();
+
+        private OwnerReplicas(LogStore values) {
+            this.values = values;
+
+            for (BigInteger key : values.keys())
+                merkleTree.toggle(key);
+        }
+
+        private void put(BigInteger key, byte[] value) throws IOException {
+            if (values.put(key, value))
+                merkleTree.toggle(key);
+        }
+
+        private void remove(BigInteger key) throws IOException {
+            if (values.delete(key))
+                merkleTree.toggle(key);
+        }
+    }
+
+    ReplicaStore(FileManager fileManager) throws IOException {
+        this.fileManager = fileManager;
+
+        for (Map.Entry<RingId, LogStore> entry : fileManager.openReplicaStores().entrySet()) {
+            if (entry.getValue().keys().isEmpty())
+                fileManager.deleteReplicaStore(entry.getKey(), entry.getValue());
+            else
+                replicasByOwner.put(entry.getKey(), new OwnerReplicas(entry.getValue()));
+        }
+    }
+
+    /**
+     * Stores the replica of the given key, opening the store of the replicas of its owner if it has none yet.
+     *
+     * @param ownerId
+     * @param key
+     * @param value
+     * @return True if the replica was stored, false otherwise.
+     */
+    boolean store(RingId ownerId, BigInteger key, byte[] value) {
+        try {
+            storesLock.readLock().lock();
+            try {
+                OwnerReplicas replicas = replicasByOwner.get(ownerId);
+                if (replicas != null) {
+                    replicas.put(key, value);
+                    return true;
+                }
+            } finally {
+                storesLock.readLock().unlock();
+            }
+
+            storesLock.writeLock().lock();
+            try {
+                OwnerReplicas replicas = replicasByOwner.get(ownerId);
+                if (replicas == null) {
+                    replicas = new OwnerReplicas(fileManager.openReplicaStore(ownerId));
+                    replicasByOwner.put(ownerId, replicas);
+                }
+
+                replicas.put(key, value);
+                return true;
+            } finally {
+                storesLock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not store replica " + toHex(key.toByteArray()) + " of node " + ownerId + ".");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Stores the given replicas.
+     *
+     * @param ownerId
+     * @param replicas
+     * @return True if every replica was stored, false otherwise.
+     */
+    boolean storeAll(RingId ownerId, Map<BigInteger, byte[]> replicas) {
+        boolean stored = true;
+
+        for (Map.Entry<BigInteger, byte[]> entry : replicas.entrySet())
+            stored &= store(ownerId, entry.getKey(), entry.getValue());
+
+        return stored;
+    }
+
+    /**
+     * Loads the value of the given replica from disk.
+     *
+     * @param ownerId
+     * @param key
+     * @return The value, or null if it could not be loaded.
+     */
+    byte[] load(RingId ownerId, BigInteger key) {
+        OwnerReplicas replicas = replicasByOwner.get(ownerId);
+        if (replicas == null)
+            return null;
+
+        try {
+            return replicas.values.get(key);
+        } catch (IOException e) {
+            System.err.println("Could not load replica " + toHex(key.toByteArray()) + " of node " + ownerId + ".");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the given replicas, and the store of the replicas of their owner if it has no more replicas.
+     *
+     * @param ownerId
+     * @param keys
+     */
+    void delete(RingId ownerId, Collection<BigInteger> keys) {
+        storesLock.readLock().lock();
+        try {
+            OwnerReplicas replicas = replicasByOwner.get(ownerId);
+            if (replicas == null)
+                return;
+
+            for (BigInteger key : keys) {
+                try {
+                    replicas.remove(key);
+                } catch (IOException e) {
+                    System.err.println("Could not delete replica " + toHex(key.toByteArray()) + " of node " + ownerId + ".");
+                    e.printStackTrace();
+                }
+            }
+
+            if (!replicas.values.keys().isEmpty())
+                return;
+        } finally {
+            storesLock.readLock().unlock();
+        }
+
+        storesLock.writeLock().lock();
+        try {
+            OwnerReplicas replicas = replicasByOwner.get(ownerId);
+            if (replicas != null && replicas.values.keys().isEmpty())
+                deleteStore(ownerId);
+        } finally {
+            storesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the given replica.
+     *
+     * @param ownerId
+     * @param key
+     */
+    void delete(RingId ownerId, BigInteger key) {
+        delete(ownerId, Collections.singleton(key));
+    }
+
+    /**
+     * Deletes every replica of the given node.
+     *
+     * @param ownerId
+     */
+    void deleteAll(RingId ownerId) {
+        storesLock.writeLock().lock();
+        try {
+            deleteStore(ownerId);
+        } finally {
+            storesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the store of the replicas of the given node.
+     * Must be called with the write lock.
+     *
+     * @param ownerId
+     */
+    private void deleteStore(RingId ownerId) {
+        OwnerReplicas replicas = replicasByOwner.remove(ownerId);
+        if (replicas == null)
+            return;
+
+        try {
+            fileManager.deleteReplicaStore(ownerId, replicas.values);
+        } catch (IOException e) {
+            System.err.println("Could not delete the replicas of node " + ownerId + ".");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the IDs of the nodes with replicas stored in this node.
+     *
+     * @return
+     */
+    Set<RingId> getOwners() {
+        return replicasByOwner.keySet();
+    }
+
+    /**
+     * Gets the keys of the replicas of the given node.
+     *
+     * @param ownerId
+     * @return
+     */
+    HashSet<BigInteger> getKeys(RingId ownerId) {
+        OwnerReplicas replicas = replicasByOwner.get(ownerId);
+        return replicas == null ? new HashSet<>() : new HashSet<>(replicas.values.keys());
+    }
+
+    /**
+     * Gets the keys of the replicas of the given node that belong to the given leaves of its tree.
+     *
+     * @param ownerId
+     * @param leaves
+     * @return
+     */
+    HashSet<BigInteger> getKeys(RingId ownerId, Set<Integer> leaves) {
+        OwnerReplicas replicas = replicasByOwner.get(ownerId);
+        return replicas == null ? new HashSet<>() : replicas.merkleTree.getKeys(leaves);
+    }
+
+    /**
+     * Gets the digest of the given node of the tree of the replicas of the given node.
+     *
+     * @param ownerId
+     * @param level
+     * @param index
+     * @return
+     */
+    long getDigest(RingId ownerId, int level, int index) {
+        OwnerReplicas replicas = replicasByOwner.get(ownerId);
+        return replicas == null ? 0 : replicas.merkleTree.getDigest(level, index);
+    }
+
+    /**
+     * Performs the given action for the key of every replica, with the ID of its owner.
+     *
+     * @param action
+     */
+    void forEach(BiConsumer<RingId, BigInteger> action) {
+        replicasByOwner.forEach((ownerId, replicas) -> replicas.values.keys().forEach(key -> action.accept(ownerId, key)));
+    }
+}
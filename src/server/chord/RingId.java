@@ -0,0 +1,212 @@
+package server.chord;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+
+import static server.chord.Node.ID_BITS;
+
+/**
+ * A position in the Chord ring, of at most 160 bits, kept in three longs so that the ring arithmetic
+ * used on every lookup hop (comparisons and between) does not allocate.
+ * Instances are immutable, and their hash is computed once, so that they can be used as keys of maps.
+ */
+public final class RingId implements Comparable<RingId>, Serializable {
+    private static final long serialVersionUID = 6309718416339214529L;
+    private static final int MAX_BITS = 160;
+
+    /* Masks of the bits of each part that are inside the ring */
+    private static final long HIGH_MASK = mask(ID_BITS - 2 * Long.SIZE);
+    private static final long MIDDLE_MASK = mask(ID_BITS - Long.SIZE);
+    private static final long LOW_MASK = mask(ID_BITS);
+
+    public static final RingId ONE = new RingId(0, 0, 1);
+
+    /* Bits 128 to 159, 64 to 127 and 0 to 63 */
+    private final long high;
+    private final long middle;
+    private final long low;
+    private final int hash;
+
+    private RingId(long high, long middle, long low) {
+        this.high = high & HIGH_MASK;
+        this.middle = middle & MIDDLE_MASK;
+        this.low = low & LOW_MASK;
+        this.hash = Long.hashCode(this.high) * 961 + Long.hashCode(this.middle) * 31 + Long.hashCode(this.low);
+    }
+
+    /**
+     * Gets the position of the given key in the ring, which is the key modulo the size of the ring.
+     *
+     * @param key
+     * @return
+     */
+    public static RingId of(BigInteger key) {
+        return of(key.toByteArray());
+    }
+
+    /**
+     * Gets the position in the ring of the key with the given big-endian two's complement representation.
+     *
+     * @param bytes
+     * @return
+     */
+    private static RingId of(byte[] bytes) {
+        return new RingId(getLong(bytes, 2), getLong(bytes, 1), getLong(bytes, 0));
+    }
+
+    /**
+     * Writes the position as a length-prefixed, non-negative two's complement number,
+     * which is how any key is written, without building it first.
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeByte(1 + MAX_BITS / Byte.SIZE);
+        output.writeByte(0);
+        output.writeInt((int) high);
+        output.writeLong(middle);
+        output.writeLong(low);
+    }
+
+    /**
+     * Reads a position written with write, or any key written with its length.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    public static RingId read(DataInput input) throws IOException {
+        int length = input.readUnsignedByte();
+        if (length <= 0)
+            throw new StreamCorruptedException("Invalid ID length " + length);
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return of(bytes);
+    }
+
+    /**
+     * Gets the given 64-bit part of a big-endian two's complement number, counting from the least significant.
+     *
+     * @param bytes
+     * @param part
+     * @return
+     */
+    private static long getLong(byte[] bytes, int part) {
+        long value = 0;
+        long sign = bytes.length > 0 && bytes[0] < 0 ? 0xFF : 0;
+
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            int index = bytes.length - 1 - part * Long.BYTES - i;
+            value = (value << Byte.SIZE) | (index >= 0 ? bytes[index] & 0xFF : sign);
+        }
+
+        return value;
+    }
+
+    private static long mask(int bits) {
+        if (bits <= 0)
+            return 0;
+
+        return bits >= Long.SIZE ? -1L : (1L << bits) - 1;
+    }
+
+    /**
+     * Gets the position that is the given distance after this one, wrapping around the ring.
+     *
+     * @param distance
+     * @return
+     */
+    public RingId add(RingId distance) {
+        long newLow = low + distance.low;
+        long carry = Long.compareUnsigned(newLow, low) < 0 ? 1 : 0;
+
+        long middleSum = middle + distance.middle;
+        long newMiddle = middleSum + carry;
+        carry = Long.compareUnsigned(middleSum, middle) < 0 || Long.compareUnsigned(newMiddle, middleSum) < 0 ? 1 : 0;
+
+        return new RingId(high + distance.high + carry, newMiddle, newLow);
+    }
+
+    /**
+     * Gets the position halfway from this one to the given one, going forward around the ring.
+     *
+     * @param upper
+     * @return
+     */
+    public RingId midpoint(RingId upper) {
+        BigInteger distance = of(upper.toBigInteger().subtract(toBigInteger())).toBigInteger();
+        return add(of(distance.shiftRight(1)));
+    }
+
+    /**
+     * Checks if this position is between the given ones in the ring.
+     *
+     * @param lower
+     * @param upper
+     * @return true if it is after the lower position and before or equal to the upper one.
+     */
+    public boolean isBetween(RingId lower, RingId upper) {
+        if (lower.compareTo(upper) < 0)
+            return compareTo(lower) > 0 && compareTo(upper) <= 0;
+        else
+            return compareTo(lower) > 0 || compareTo(upper) <= 0;
+    }
+
+    /**
+     * Gets the position as a key, as sent in lookups.
+     *
+     * @return
+     */
+    public BigInteger toBigInteger() {
+        byte[] bytes = new byte[1 + 3 * Long.BYTES];
+        putLong(bytes, 1, high);
+        putLong(bytes, 1 + Long.BYTES, middle);
+        putLong(bytes, 1 + 2 * Long.BYTES, low);
+        return new BigInteger(bytes);
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= Byte.SIZE;
+        }
+    }
+
+    @Override
+    public int compareTo(RingId other) {
+        int comparison = Long.compareUnsigned(high, other.high);
+        if (comparison != 0)
+            return comparison;
+
+        comparison = Long.compareUnsigned(middle, other.middle);
+        if (comparison != 0)
+            return comparison;
+
+        return Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RingId))
+            return false;
+
+        RingId other = (RingId) o;
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
@@ -0,0 +1,75 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import static server.utils.Utils.getRingPosition;
+
+/**
+ * Keys sorted by their position in the Chord ring, so that the keys in a range of the ring
+ * are found without going through every key.
+ */
+class RingIndex {
+    /* Keys by their position in the ring */
+    private final ConcurrentSkipListMap<RingId, Set<BigInteger>> positions = new ConcurrentSkipListMap<>();
+    private final Predicate<BigInteger> stored;
+
+    /**
+     * @param stored Checks if a key is stored, which decides if it is in the index when it is updated.
+     */
+    RingIndex(Predicate<BigInteger> stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Adds the given key to the index if it is stored, or removes it if it is not.
+     * It is checked inside the update of its position, so that when a key is stored and deleted concurrently,
+     * the last update always sees the last change.
+     *
+     * @param key
+     */
+    void update(BigInteger key) {
+        positions.compute(getRingPosition(key), (position, keys) -> {
+            if (stored.test(key)) {
+                if (keys == null)
+                    keys = ConcurrentHashMap.newKeySet();
+
+                keys.add(key);
+            } else if (keys != null) {
+                keys.remove(key);
+            }
+
+            return keys == null || keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Gets the keys between the given positions of the ring, including the upper one.
+     *
+     * @param lower
+     * @param upper
+     * @return
+     */
+    HashSet<BigInteger> getRange(RingId lower, RingId upper) {
+        HashSet<BigInteger> range = new HashSet<>();
+
+        if (lower.compareTo(upper) < 0) {
+            addAll(range, positions.subMap(lower, false, upper, true));
+        } else {
+            addAll(range, positions.tailMap(lower, false));
+            addAll(range, positions.headMap(upper, true));
+        }
+
+        return range;
+    }
+
+    private static void addAll(HashSet<BigInteger> range, Map<RingId, Set<BigInteger>> positions) {
+        for (Set<BigInteger> keys : positions.values())
+            range.addAll(keys);
+    }
+}
@@ -0,0 +1,109 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the most used values, limited by their total size in bytes.
+ * Values start in a probation segment and are promoted to a protected segment when they are read again,
+ * so that values read only once (e.g. while restoring a file) do not evict the ones that are read often.
+ */
+class ValueCache {
+    private static final int PROTECTED_PERCENTAGE = 80;
+    /* Values larger than this fraction of the capacity are never cached */
+    private static final int MAX_VALUE_FRACTION = 8;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    /* Both segments are kept in access order, with the least recently used value first */
+    private final LinkedHashMap<BigInteger, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<BigInteger, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize = 0;
+    private long protectedSize = 0;
+
+    /**
+     * @param capacity Maximum total size of the cached values, in bytes.
+     */
+    ValueCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = capacity * PROTECTED_PERCENTAGE / 100;
+    }
+
+    /**
+     * Gets the cached value with the given key.
+     *
+     * @param key
+     * @return The value, or null if it is not cached.
+     */
+    synchronized byte[] get(BigInteger key) {
+        byte[] value = protectedSegment.get(key);
+        if (value != null)
+            return value;
+
+        value = probation.remove(key);
+        if (value == null)
+            return null;
+
+        probationSize -= value.length;
+        protectedSegment.put(key, value);
+        protectedSize += value.length;
+
+        /* The least recently used protected values are given another chance in probation */
+        Iterator<Map.Entry<BigInteger, byte[]>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedSize > protectedCapacity && iterator.hasNext()) {
+            Map.Entry<BigInteger, byte[]> eldest = iterator.next();
+            iterator.remove();
+            protectedSize -= eldest.getValue().length;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationSize += eldest.getValue().length;
+        }
+
+        evict();
+        return value;
+    }
+
+    /**
+     * Caches the given value, evicting the least used values if needed.
+     *
+     * @param key
+     * @param value
+     */
+    synchronized void put(BigInteger key, byte[] value) {
+        remove(key);
+
+        if (value.length > capacity / MAX_VALUE_FRACTION)
+            return;
+
+        probation.put(key, value);
+        probationSize += value.length;
+        evict();
+    }
+
+    /**
+     * Removes the value with the given key from the cache.
+     *
+     * @param key
+     */
+    synchronized void remove(BigInteger key) {
+        byte[] value = probation.remove(key);
+        if (value != null)
+            probationSize -= value.length;
+
+        value = protectedSegment.remove(key);
+        if (value != null)
+            protectedSize -= value.length;
+    }
+
+    /**
+     * Evicts the least recently used values in probation until the cache is within its capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<BigInteger, byte[]>> iterator = probation.entrySet().iterator();
+        while (probationSize + protectedSize > capacity && iterator.hasNext()) {
+            probationSize -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package server.communication;
+
+
+import server.chord.NodeInfo;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static server.communication.FrameQueue.FLUSH_THRESHOLD;
+import static server.communication.FrameQueue.MAX_FLUSH_DELAY;
+import static server.communication.OperationCodec.MAX_FRAGMENT_LENGTH;
+import static server.communication.OperationCodec.PROTOCOL_MAGIC;
+import static server.communication.OperationCodec.PROTOCOL_VERSION;
+import static server.communication.OperationCodec.SERIALIZATION_MAGIC;
+
+/**
+ * Connection served by a thread that blocks reading from it.
+ * It is the only one that still supports nodes using Java serialization.
+ */
+public class BlockingConnection implements Connection {
+    private static final int HANDSHAKE_TIMEOUT = 3000; // In milliseconds
+
+    private final SSLSocket socket;
+    private final boolean legacy;
+    /* A lock instead of synchronized, so that a virtual thread blocked writing does not hold on to its carrier thread */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final FrameQueue frameQueue = new FrameQueue();
+    private final FrameAssembler frameAssembler = new FrameAssembler();
+    private final Executor writerExecutor;
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    /* Used to write the fragments that are not in the heap (e.g. values mapped from storage) */
+    private final byte[] transferBuffer = new byte[MAX_FRAGMENT_LENGTH];
+    private DataOutputStream outputStream;
+    private DataInputStream inputStream;
+    private ObjectOutputStream objectOutputStream;
+    private ObjectInputStream objectInputStream;
+    private NodeInfo destination;
+
+    BlockingConnection(NodeInfo destination, Executor writerExecutor) throws IOException {
+        this.destination = destination;
+        this.writerExecutor = writerExecutor;
+
+        SSLSocket socket = openSocket(destination);
+        boolean binary;
+        try {
+            binary = requestBinaryProtocol(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        /* The destination refused the binary protocol, so reconnect using Java serialization */
+        if (!binary) {
+            socket.close();
+            socket = openSocket(destination);
+        }
+
+        this.socket = socket;
+        this.legacy = !binary;
+
+        if (legacy) {
+            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            objectInputStream = new ObjectInputStream(socket.getInputStream());
+        } else {
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD));
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    BlockingConnection(SSLSocket socket, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.writerExecutor = writerExecutor;
+        socket.setTcpNoDelay(true);
+
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(socket.getInputStream());
+        legacy = !acceptBinaryProtocol(bufferedInputStream);
+
+        if (legacy) {
+            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            objectInputStream = new ObjectInputStream(bufferedInputStream);
+        } else {
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD));
+            inputStream = new DataInputStream(bufferedInputStream);
+        }
+
+        waitForAuthentication();
+    }
+
+    private static SSLSocket openSocket(NodeInfo destination) throws IOException {
+        SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().
+                createSocket(destination.getAddress(), destination.getPort());
+
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Asks the other end of the socket to use the binary protocol.
+     *
+     * @param socket
+     * @return true if the binary protocol was accepted, false if the other end only knows Java serialization.
+     * @throws IOException
+     */
+    private static boolean requestBinaryProtocol(SSLSocket socket) throws IOException {
+        DataOutputStream handshakeOutputStream = new DataOutputStream(socket.getOutputStream());
+        handshakeOutputStream.writeInt(PROTOCOL_MAGIC);
+        handshakeOutputStream.writeByte(PROTOCOL_VERSION);
+        handshakeOutputStream.flush();
+
+        /* The input stream is not buffered, so that nothing after the handshake is consumed */
+        DataInputStream handshakeInputStream = new DataInputStream(socket.getInputStream());
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+        try {
+            int reply = handshakeInputStream.readInt();
+
+            if (reply == SERIALIZATION_MAGIC)
+                return false;
+
+            if (reply != PROTOCOL_MAGIC || handshakeInputStream.readByte() != PROTOCOL_VERSION)
+                throw new StreamCorruptedException("Unsupported protocol");
+
+            return true;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Checks which protocol the other end of the socket is using, and acknowledges the binary protocol if it is.
+     *
+     * @param bufferedInputStream Input of the socket. If Java serialization is being used, it is reset to its start.
+     * @return true if the binary protocol is being used, false if Java serialization is.
+     * @throws IOException
+     */
+    private boolean acceptBinaryProtocol(BufferedInputStream bufferedInputStream) throws IOException {
+        DataInputStream handshakeInputStream = new DataInputStream(bufferedInputStream);
+
+        bufferedInputStream.mark(Integer.BYTES);
+        if (handshakeInputStream.readInt() != PROTOCOL_MAGIC) {
+            bufferedInputStream.reset();
+            return false;
+        }
+
+        if (handshakeInputStream.readByte() != PROTOCOL_VERSION)
+            throw new StreamCorruptedException("Unsupported protocol");
+
+        DataOutputStream handshakeOutputStream = new DataOutputStream(socket.getOutputStream());
+        handshakeOutputStream.writeInt(PROTOCOL_MAGIC);
+        handshakeOutputStream.writeByte(PROTOCOL_VERSION);
+        handshakeOutputStream.flush();
+
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void sendOperation(NodeInfo destination, Operation operation) throws IOException {
+        try {
+            if (legacy) {
+                writeLock.lock();
+                try {
+                    objectOutputStream.reset();
+                    objectOutputStream.writeObject(operation);
+                    objectOutputStream.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            } else {
+                if (socket.isClosed())
+                    throw new SocketException("Connection to " + this.destination + " is closed.");
+
+                frameQueue.add(destination, operation);
+                scheduleWrite();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a writer send the queued fragments, unless one is already doing it.
+     */
+    private void scheduleWrite() {
+        if (writing.compareAndSet(false, true))
+            writerExecutor.execute(this::writeFrames);
+    }
+
+    /**
+     * Writes the queued fragments until there are none left, including the ones queued while writing.
+     */
+    private void writeFrames() {
+        try {
+            do {
+                drainFrames();
+                writing.set(false);
+            } while (!frameQueue.isEmpty() && writing.compareAndSet(false, true));
+        } catch (IOException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Writes the queued fragments, coalescing them into as few socket writes as the flush thresholds allow.
+     *
+     * @throws IOException
+     */
+    private void drainFrames() throws IOException {
+        int unflushedBytes = 0;
+        long oldestUnflushed = 0;
+
+        ArrayList<ByteBuffer> fragment = new ArrayList<>();
+        int fragmentLength;
+        while ((fragmentLength = frameQueue.poll(fragment)) > 0) {
+            if (unflushedBytes == 0)
+                oldestUnflushed = System.nanoTime();
+
+            for (ByteBuffer buffer : fragment)
+                write(buffer);
+            fragment.clear();
+            unflushedBytes += fragmentLength;
+
+            if (unflushedBytes >= FLUSH_THRESHOLD || System.nanoTime() - oldestUnflushed >= MAX_FLUSH_DELAY) {
+                outputStream.flush();
+                frameQueue.written(unflushedBytes);
+                unflushedBytes = 0;
+            }
+        }
+
+        if (unflushedBytes > 0) {
+            outputStream.flush();
+            frameQueue.written(unflushedBytes);
+        }
+    }
+
+    /**
+     * Writes the given buffer to the output stream.
+     *
+     * @param buffer
+     * @throws IOException
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            int length = Math.min(transferBuffer.length, buffer.remaining());
+            buffer.get(transferBuffer, 0, length);
+            outputStream.write(transferBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Reads the next operation.
+     *
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private Operation readOperation() throws IOException, ClassNotFoundException {
+        if (legacy)
+            return (Operation) objectInputStream.readObject();
+
+        while (true) {
+            int length = inputStream.readInt();
+            int streamId = inputStream.readInt();
+            byte flags = inputStream.readByte();
+
+            if (length < 0 || length > MAX_FRAGMENT_LENGTH)
+                throw new StreamCorruptedException("Invalid fragment length " + length);
+
+            byte[] fragment = new byte[length];
+            inputStream.readFully(fragment);
+
+            Operation operation = frameAssembler.add(streamId, flags, fragment);
+            if (operation != null)
+                return operation;
+        }
+    }
+
+    /**
+     * Waits for confirmation that the node is authentic.
+     */
+    private void waitForAuthentication() {
+        Operation operation;
+        try {
+            operation = readOperation();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return;
+        } catch (IOException | RuntimeException e) {
+            /* Decoding a malformed operation may also fail with a runtime exception */
+            e.printStackTrace();
+            closeConnection();
+            return;
+        }
+
+        this.destination = operation.getOrigin();
+        Mailman.addOpenConnection(this);
+        Mailman.deliver(operation);
+    }
+
+    /**
+     *
+     * Listen to other nodes.
+     */
+    void listen() {
+        while (true) {
+            Operation operation;
+            try {
+                operation = readOperation();
+            } catch (ClassNotFoundException ignored) {
+                continue;
+            } catch (IOException | RuntimeException e) {
+                /* Decoding a malformed operation may also fail with a runtime exception */
+                closeConnection();
+                return;
+            }
+
+            Mailman.deliver(operation);
+        }
+    }
+
+    /**
+     * Closes the connection. The operations not yet written are sent again on a new connection.
+     */
+    @Override
+    public void closeConnection() {
+        Mailman.connectionClosed(this);
+        Mailman.resendOperations(frameQueue.close());
+
+        try {
+            if (legacy) {
+                objectInputStream.close();
+                objectOutputStream.close();
+            } else {
+                inputStream.close();
+                outputStream.close();
+            }
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Unable to close socket");
+        }
+    }
+
+    @Override
+    public NodeInfo getNodeInfo() {
+        return destination;
+    }
+}
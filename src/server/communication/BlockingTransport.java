@@ -0,0 +1,65 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+import server.utils.Threads;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Transport in which every connection has a thread blocked reading from it.
+ */
+class BlockingTransport implements Transport {
+    private static final int MAX_SIMULTANEOUS_CONNECTIONS = 128;
+
+    private final ExecutorService connectionsThreadPool = Threads.newPool(MAX_SIMULTANEOUS_CONNECTIONS);
+    private final ExecutorService writersThreadPool = Threads.newPool(MAX_SIMULTANEOUS_CONNECTIONS);
+
+    @Override
+    public void listen(int port) throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket)
+                SSLServerSocketFactory.getDefault().createServerSocket(port);
+
+        serverSocket.setNeedClientAuth(true);
+        new Thread(() -> listenForConnections(serverSocket)).start();
+    }
+
+    @Override
+    public Connection connect(NodeInfo destination) throws IOException {
+        BlockingConnection connection = new BlockingConnection(destination, writersThreadPool);
+        connectionsThreadPool.submit(connection::listen);
+        return connection;
+    }
+
+    /**
+     * Listening for connetions on the given server socket.
+     *
+     * @param serverSocket
+     */
+    private void listenForConnections(SSLServerSocket serverSocket) {
+        while (true) {
+            try {
+                SSLSocket socket = (SSLSocket) serverSocket.accept();
+                connectionsThreadPool.submit(() -> serve(socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Authenticates the node on the other end of the socket and listens to it.
+     *
+     * @param socket
+     */
+    private void serve(SSLSocket socket) {
+        try {
+            new BlockingConnection(socket, writersThreadPool).listen();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,126 +1,38 @@
 package server.communication;
 
-
-import server.chord.Node;
 import server.chord.NodeInfo;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.concurrent.ExecutorService;
-
-
-public class Connection {
-    private final SSLSocket socket;
-    private final ObjectOutputStream objectOutputStream;
-    private final ObjectInputStream objectInputStream;
-    private NodeInfo destination;
-
-    Connection(NodeInfo destination) throws IOException {
-        this.destination = destination;
-        socket = (SSLSocket) SSLSocketFactory.getDefault().
-                createSocket(destination.getAddress(), destination.getPort());
-
-        socket.setTcpNoDelay(true);
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-        objectInputStream = new ObjectInputStream(socket.getInputStream());
-    }
-
-    Connection(SSLSocket socket, Node currentNode, ExecutorService connectionsThreadPool) throws IOException {
-        this.socket = socket;
-        socket.setTcpNoDelay(true);
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-        objectInputStream = new ObjectInputStream(socket.getInputStream());
-        waitForAuthentication(currentNode);
-
-    }
 
+/**
+ * Connection to another server, over which operations are sent to any of its nodes.
+ */
+public interface Connection {
     /**
-     * Checks if the socket is open.
+     * Checks if the connection is open.
      *
      * @return
      */
-    boolean isOpen() {
-        return !socket.isClosed();
-    }
+    boolean isOpen();
 
     /**
-     * Sends the given operation.
+     * Sends the given operation to the given node, which is in the server at the other end.
      *
+     * @param destination
      * @param operation
      * @throws IOException
      */
-    public void sendOperation(Operation operation) throws IOException {
-        try {
-            synchronized (objectOutputStream) {
-                objectOutputStream.reset();
-                objectOutputStream.writeObject(operation);
-                objectOutputStream.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw e;
-        }
-    }
+    void sendOperation(NodeInfo destination, Operation operation) throws IOException;
 
     /**
-     * Waits for confirmation that the node is authentic.
-     *
-     * @param self
+     * Closes the connection.
      */
-    private void waitForAuthentication(Node self) {
-        try {
-            Operation operation;
-            operation = ((Operation) objectInputStream.readObject());
-            this.destination = operation.getOrigin();
-            Mailman.addOpenConnection(this);
-            operation.run(self);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-            closeConnection();
-        }
-    }
+    void closeConnection();
 
     /**
+     * Gets the node at the other end of the connection.
      *
-     * Listen to other nodes.
-     *
-     * @param self
+     * @return The node, or null if it is not known yet.
      */
-    void listen(Node self) {
-        while (true) {
-            try {
-                ((Operation) objectInputStream.readObject()).run(self);
-            } catch (ClassNotFoundException ignored) {
-            } catch (IOException e) {
-                closeConnection();
-                return;
-            }
-        }
-    }
-
-    /**
-     * Close Connection of the socket.
-     *
-     */
-    void closeConnection() {
-        if (destination != null)
-            Mailman.connectionClosed(destination);
-
-        try {
-            objectInputStream.close();
-            objectOutputStream.close();
-            socket.close();
-        } catch (IOException e) {
-            System.err.println("Unable to close socket");
-        }
-    }
-
-    NodeInfo getNodeInfo() {
-        return destination;
-    }
+    NodeInfo getNodeInfo();
 }
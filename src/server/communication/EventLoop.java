@@ -0,0 +1,95 @@
+package server.communication;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread that waits for any of its channels to be ready and handles them, so that a
+ * single thread can serve many connections. Channels must only be used from their loop's
+ * thread; other threads hand work over to it with execute.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    interface Handler {
+        /**
+         * Handles a channel that is ready for the operations of its key.
+         *
+         * @param key
+         */
+        void onReady(SelectionKey key);
+    }
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the given task in the loop's thread.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the given channel in this loop. Must be called from the loop's thread.
+     *
+     * @param channel
+     * @param operations
+     * @param handler
+     * @return
+     * @throws ClosedChannelException
+     */
+    SelectionKey register(SelectableChannel channel, int operations, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, operations, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid())
+                    continue;
+
+                try {
+                    ((Handler) key.attachment()).onReady(key);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
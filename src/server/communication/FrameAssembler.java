@@ -0,0 +1,67 @@
+package server.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+
+import static server.communication.OperationCodec.LAST_FRAGMENT;
+
+/**
+ * Joins the fragments received on a connection back into operations.
+ * Fragments of different operations may arrive interleaved, so each one is kept by its stream.
+ * Must only be used by the thread reading from the connection.
+ */
+class FrameAssembler {
+    private static final int MAX_PARTIAL_STREAMS = 1024;
+    /* Far more than any operation sent in fragments takes (values are chunks of a few MiB, and batches
+     * of values close at a few MiB), so that a peer cannot make the node buffer fragments forever */
+    private static final long MAX_OPERATION_LENGTH = 128 * 1024 * 1024;
+    private static final long MAX_PARTIAL_LENGTH = 2 * MAX_OPERATION_LENGTH;
+
+    private final HashMap<Integer, ByteArrayOutputStream> partialStreams = new HashMap<>();
+    /* Bytes buffered in every partial stream */
+    private long partialLength = 0;
+
+    /**
+     * Adds a received fragment.
+     *
+     * @param streamId
+     * @param flags
+     * @param content
+     * @return The operation, if this was its last fragment, or null otherwise.
+     * @throws IOException
+     * @throws StreamCorruptedException If the partial operations take more bytes than they are allowed to.
+     */
+    Operation add(int streamId, byte flags, byte[] content) throws IOException {
+        boolean last = (flags & LAST_FRAGMENT) != 0;
+        ByteArrayOutputStream partial = last ? partialStreams.remove(streamId) : partialStreams.get(streamId);
+
+        /* Most operations fit in a single fragment, so they need no copying */
+        if (partial == null && last)
+            return OperationCodec.decode(content);
+
+        if (partial == null) {
+            if (partialStreams.size() >= MAX_PARTIAL_STREAMS)
+                throw new StreamCorruptedException("Too many partial operations");
+
+            partial = new ByteArrayOutputStream(content.length * 2);
+            partialStreams.put(streamId, partial);
+        }
+
+        if (partial.size() + (long) content.length > MAX_OPERATION_LENGTH)
+            throw new StreamCorruptedException("Operation of stream " + streamId + " is longer than " + MAX_OPERATION_LENGTH + " bytes");
+
+        if (partialLength + content.length > MAX_PARTIAL_LENGTH)
+            throw new StreamCorruptedException("Partial operations are longer than " + MAX_PARTIAL_LENGTH + " bytes");
+
+        partial.write(content);
+        partialLength += content.length;
+
+        if (!last)
+            return null;
+
+        partialLength -= partial.size();
+        return OperationCodec.decode(partial.toByteArray());
+    }
+}
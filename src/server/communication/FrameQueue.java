@@ -0,0 +1,185 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static server.communication.OperationCodec.*;
+
+/**
+ * Operations waiting to be sent on a connection, split into fragments.
+ * Control operations (e.g. lookups) have their own lane, which is always emptied first,
+ * so they are sent between the fragments of a bulk operation instead of waiting for all of it.
+ */
+class FrameQueue {
+    /* Fragments are written together, and only sent once this many bytes are waiting,
+     * the oldest of them has waited this long, or there are no more fragments to write. */
+    static final int FLUSH_THRESHOLD = 64 * 1024;
+    static final long MAX_FLUSH_DELAY = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final ArrayDeque<Message> controlLane = new ArrayDeque<>();
+    private final ArrayDeque<Message> bulkLane = new ArrayDeque<>();
+    /* Messages completely taken to be sent, but whose last fragment was not yet written,
+     * in the order they were taken, and the number of bytes taken and written so far. */
+    private final ArrayDeque<Message> unwrittenMessages = new ArrayDeque<>();
+    private long polledBytes = 0;
+    private long writtenBytes = 0;
+    private int nextStreamId = 0;
+    private boolean closed = false;
+
+    /**
+     * An operation waiting to be sent, made of its encoded fields followed by its payload, if any.
+     */
+    static class Message {
+        private final NodeInfo destination;
+        private final Operation operation;
+        private final int streamId;
+        private final byte[] fields;
+        private final ByteBuffer payload;
+        private final int length;
+        private int offset = 0;
+        /* Number of bytes taken from the queue once the last fragment of this message was */
+        private long end;
+
+        private Message(NodeInfo destination, Operation operation, int streamId, byte[] fields, ByteBuffer payload) {
+            this.destination = destination;
+            this.operation = operation;
+            this.streamId = streamId;
+            this.fields = fields;
+            this.payload = payload;
+            this.length = fields.length + (payload == null ? 0 : payload.remaining());
+        }
+
+        /**
+         * Adds views of the given range of the message to the given buffers, without copying it.
+         *
+         * @param buffers
+         * @param start
+         * @param length
+         */
+        private void addContent(Collection<ByteBuffer> buffers, int start, int length) {
+            if (start < fields.length) {
+                int fieldsLength = Math.min(length, fields.length - start);
+                buffers.add(ByteBuffer.wrap(fields, start, fieldsLength));
+                start += fieldsLength;
+                length -= fieldsLength;
+            }
+
+            if (length == 0)
+                return;
+
+            ByteBuffer content = payload.duplicate();
+            int payloadStart = payload.position() + start - fields.length;
+            content.position(payloadStart);
+            content.limit(payloadStart + length);
+            buffers.add(content);
+        }
+
+        NodeInfo getDestination() {
+            return destination;
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+    }
+
+    /**
+     * Encodes the given operation, sent to the given node, and adds it to the end of its lane.
+     *
+     * @param destination
+     * @param operation
+     * @throws IOException If the queue is closed, as the connection is.
+     */
+    void add(NodeInfo destination, Operation operation) throws IOException {
+        byte[] fields = OperationCodec.encode(destination.getId(), operation);
+        ByteBuffer payload = operation.getPayload();
+        boolean bulk = OperationCodec.isBulk(operation);
+
+        synchronized (this) {
+            if (closed)
+                throw new SocketException("Connection to " + destination.getSocketAddress() + " is closed.");
+
+            (bulk ? bulkLane : controlLane).add(new Message(destination, operation, nextStreamId++, fields, payload));
+        }
+    }
+
+    /**
+     * Takes the next fragment to be sent, adding its header and its content to the given buffers.
+     * The content is not copied, so that values read from storage are only copied when they are sent.
+     *
+     * @param buffers
+     * @return The length of the fragment, with its header, or 0 if there are none.
+     */
+    synchronized int poll(Collection<ByteBuffer> buffers) {
+        ArrayDeque<Message> lane = controlLane.isEmpty() ? bulkLane : controlLane;
+        Message message = lane.peek();
+
+        if (message == null)
+            return 0;
+
+        int length = Math.min(MAX_FRAGMENT_LENGTH, message.length - message.offset);
+        boolean last = message.offset + length == message.length;
+
+        ByteBuffer header = ByteBuffer.allocate(FRAGMENT_HEADER_LENGTH);
+        header.putInt(length);
+        header.putInt(message.streamId);
+        header.put(last ? LAST_FRAGMENT : 0);
+        header.flip();
+
+        buffers.add(header);
+        message.addContent(buffers, message.offset, length);
+
+        message.offset += length;
+        polledBytes += FRAGMENT_HEADER_LENGTH + length;
+        if (last) {
+            lane.poll();
+            message.end = polledBytes;
+            unwrittenMessages.add(message);
+        }
+
+        return FRAGMENT_HEADER_LENGTH + length;
+    }
+
+    /**
+     * Marks the given number of bytes, taken from the queue, as written, in the order they were taken,
+     * so that the messages whose last fragment was written are no longer sent again if the connection closes.
+     *
+     * @param bytes
+     */
+    synchronized void written(long bytes) {
+        writtenBytes += bytes;
+
+        while (!unwrittenMessages.isEmpty() && unwrittenMessages.peek().end <= writtenBytes)
+            unwrittenMessages.poll();
+    }
+
+    synchronized boolean isEmpty() {
+        return controlLane.isEmpty() && bulkLane.isEmpty();
+    }
+
+    /**
+     * Closes the queue, as its connection closed, so that no more operations are added to it,
+     * and takes the operations that were not completely written, which the other node never runs.
+     *
+     * @return The operations, the ones already taken to be sent first, then control ones.
+     */
+    synchronized ArrayList<Message> close() {
+        closed = true;
+
+        ArrayList<Message> unsent = new ArrayList<>(unwrittenMessages);
+        unsent.addAll(controlLane);
+        unsent.addAll(bulkLane);
+        unwrittenMessages.clear();
+        controlLane.clear();
+        bulkLane.clear();
+
+        return unsent;
+    }
+}
@@ -2,33 +2,51 @@ package server.communication;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.chord.Peer;
+import server.utils.Threads;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static server.chord.Node.OPERATION_MAX_FAILED_ATTEMPTS;
 
 public class Mailman {
-    private static final int MAX_SIMULTANEOUS_CONNECTIONS = 128;
-
-    private static final ConcurrentHashMap<NodeInfo, Connection> openConnections = new ConcurrentHashMap<>();
-    private static final ExecutorService connectionsThreadPool = Executors.newFixedThreadPool(MAX_SIMULTANEOUS_CONNECTIONS);
-    private static Node currentNode;
+    /* "nio" serves every connection from a few event loops, "blocking" uses a thread per connection.
+     * Only the blocking transport can talk to nodes that still use Java serialization. */
+    private static final String TRANSPORT = System.getProperty("dbs.transport", "nio");
+    private static final int LOCAL_OPERATION_THREADS = 16;
+
+    /* A single connection to each server, shared by all of its nodes */
+    private static final ConcurrentHashMap<InetSocketAddress, Connection> openConnections = new ConcurrentHashMap<>();
+    /* Operations sent between nodes of this server are run here, as if they were received, so that the sender
+     * never runs them while holding its own locks */
+    private static final ExecutorService localOperations = Threads.newPool(LOCAL_OPERATION_THREADS);
+    private static Transport transport;
+    private static Peer peer;
 
     /**
      * Initiates the listening for Connections.
      *
-     * @param currentNode
+     * @param peer
      * @param port
      */
-    public static void init(Node currentNode, int port) {
-        Mailman.currentNode = currentNode;
-        new Thread(() -> listenForConnections(port)).start();
+    public static void init(Peer peer, int port) {
+        Mailman.peer = peer;
+
+        try {
+            transport = "blocking".equals(TRANSPORT)
+                    ? new BlockingTransport()
+                    : new NioTransport();
+
+            transport.listen(port);
+        } catch (IOException e) {
+            System.err.println("Error creating server socket.");
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -38,7 +56,8 @@ public class Mailman {
      * @return
      */
     private static boolean isConnectionOpen(NodeInfo nodeInfo) {
-        return openConnections.containsKey(nodeInfo) && openConnections.get(nodeInfo).isOpen();
+        Connection connection = openConnections.get(nodeInfo.getSocketAddress());
+        return connection != null && connection.isOpen();
     }
 
     /**
@@ -49,16 +68,23 @@ public class Mailman {
      * @throws IOException
      */
     private static Connection getOrOpenConnection(NodeInfo nodeInfo) throws IOException {
-        if (nodeInfo.equals(currentNode.getInfo()))
+        if (peer.hosts(nodeInfo))
             try {
                 throw new Exception("Opening connection to self.");
             } catch (Exception e) {
                 e.printStackTrace();
             }
 
-        return isConnectionOpen(nodeInfo)
-                ? openConnections.get(nodeInfo)
-                : addOpenConnection(new Connection(nodeInfo));
+        if (isConnectionOpen(nodeInfo))
+            return openConnections.get(nodeInfo.getSocketAddress());
+
+        /* If the other node connected to this one in the meantime, that connection is used instead */
+        Connection connection = transport.connect(nodeInfo);
+        Connection openConnection = addOpenConnection(connection);
+        if (openConnection != connection)
+            connection.closeConnection();
+
+        return openConnection;
     }
 
     /**
@@ -69,20 +95,28 @@ public class Mailman {
      * @throws IOException
      */
     public static void sendOperation(NodeInfo destination, Operation operation) throws IOException {
-        /* If we want to send the operation to the current node, it is equivalent to just running it.
+        /* If we want to send the operation to a node of this server, it is equivalent to just running it there.
          * Otherwise, send to the correct node as expected. */
-        if (destination.equals(currentNode.getInfo())) {
-            operation.run(currentNode);
+        if (peer.hosts(destination)) {
+            Node node = peer.getNode(destination.getId());
+            if (node == null)
+                throw new IOException("Node with ID " + destination.getId() + " is not in this server.");
+
+            localOperations.execute(() -> operation.run(node));
         } else {
+            /* Each attempt reconnects if the connection closed, and failing to connect counts as a failed attempt.
+             * Only the connection that failed is forgotten, as another one may have been opened in the meantime. */
             int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
             while (attempts > 0) {
+                Connection connection = null;
                 try {
-                    getOrOpenConnection(destination).sendOperation(operation);
+                    connection = getOrOpenConnection(destination);
+                    connection.sendOperation(destination, operation);
                     break;
                 } catch (IOException e) {
                     e.printStackTrace();
-                    openConnections.remove(destination);
-                    addOpenConnection(new Connection(destination));
+                    if (connection != null)
+                        openConnections.remove(destination.getSocketAddress(), connection);
                     attempts--;
                     if (attempts < 1)
                         throw e;
@@ -91,49 +125,83 @@ public class Mailman {
         }
     }
 
-
     /**
-     * Listening for connetions on the given port.
+     * Sends again, on a new connection, the operations that were waiting to be sent on a connection that closed.
+     * If an operation cannot be sent, the nodes of this server are informed about the failure of its destination,
+     * and the operation about its own failure, as they are when sending fails right away.
      *
-     * @param port
+     * @param unsentOperations
      */
-    private static void listenForConnections(int port) {
-        SSLServerSocket serverSocket;
-        try {
-            serverSocket = (SSLServerSocket)
-                    SSLServerSocketFactory.getDefault().createServerSocket(port);
-        } catch (IOException e) {
-            System.err.println("Error creating server socket.");
-            e.printStackTrace();
+    static void resendOperations(List<FrameQueue.Message> unsentOperations) {
+        if (unsentOperations.isEmpty())
             return;
-        }
 
-        serverSocket.setNeedClientAuth(true);
+        localOperations.execute(() -> {
+            HashSet<InetSocketAddress> unreachableServers = new HashSet<>();
+            HashSet<NodeInfo> failedNodes = new HashSet<>();
 
-        while (true) {
-            try {
-                SSLSocket socket = (SSLSocket) serverSocket.accept();
-                new Connection(socket, currentNode, connectionsThreadPool);
-            } catch (IOException e) {
-                e.printStackTrace();
+            for (FrameQueue.Message message : unsentOperations) {
+                NodeInfo destination = message.getDestination();
+                InetSocketAddress server = destination.getSocketAddress();
+
+                try {
+                    if (unreachableServers.contains(server) || message.getOperation().countResend() > OPERATION_MAX_FAILED_ATTEMPTS)
+                        throw new IOException("Operation could not be sent to node with ID " + destination.getId() + ".");
+
+                    sendOperation(destination, message.getOperation());
+                } catch (IOException e) {
+                    unreachableServers.add(server);
+
+                    if (failedNodes.add(destination)) {
+                        System.err.println(e.getMessage());
+                        peer.informAboutFailure(destination);
+                    }
+
+                    Node sender = peer.getNode(message.getOperation().getOrigin().getId());
+                    if (sender != null)
+                        message.getOperation().onSendFailure(sender, e);
+                }
             }
+        });
+    }
+
+    /**
+     * Runs the given received operation in the node of this server it was sent to.
+     *
+     * @param operation
+     */
+    static void deliver(Operation operation) {
+        Node node = peer.getNode(operation.getDestination());
+        if (node == null) {
+            System.err.println("Received an operation for node with ID " + operation.getDestination() + ", which is not in this server.");
+            return;
         }
+
+        operation.run(node);
     }
 
     /**
-     * Add the given Operation to the Open Connections Hash Map.
+     * Add the given Connection to the Open Connections Hash Map, unless there is already an open one to the same server.
+     * Both nodes may connect to each other at the same time, and replacing (and closing) the existing
+     * connection would make the other node close its own as well, losing the operations sent on them.
      *
      * @param connection
-     * @return
-     * @throws IOException
+     * @return The connection to be used to reach the node.
      */
-    static Connection addOpenConnection(Connection connection) throws IOException {
-        Connection previousConnection = openConnections.put(connection.getNodeInfo(), connection);
-        if (previousConnection != null)
-            previousConnection.closeConnection();
+    static Connection addOpenConnection(Connection connection) {
+        InetSocketAddress server = connection.getNodeInfo().getSocketAddress();
+
+        while (true) {
+            Connection previousConnection = openConnections.putIfAbsent(server, connection);
+            if (previousConnection == null || previousConnection == connection)
+                return connection;
 
-        connectionsThreadPool.submit(() -> connection.listen(currentNode));
-        return connection;
+            if (previousConnection.isOpen())
+                return previousConnection;
+
+            if (openConnections.replace(server, previousConnection, connection))
+                return connection;
+        }
     }
 
     /**
@@ -141,7 +209,9 @@ public class Mailman {
      *
      * @param connection
      */
-    static void connectionClosed(NodeInfo connection) {
-        openConnections.remove(connection);
+    static void connectionClosed(Connection connection) {
+        NodeInfo nodeInfo = connection.getNodeInfo();
+        if (nodeInfo != null)
+            openConnections.remove(nodeInfo.getSocketAddress(), connection);
     }
 }
@@ -0,0 +1,573 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static server.communication.FrameQueue.FLUSH_THRESHOLD;
+import static server.communication.OperationCodec.*;
+
+/**
+ * Connection over a non-blocking channel, secured with an SSLEngine and served by an event loop.
+ * Received operations are run in a separate executor, so that the event loop never blocks.
+ */
+class NioConnection implements Connection, EventLoop.Handler {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop eventLoop;
+    private final Executor operationExecutor;
+    private SelectionKey selectionKey;
+
+    /* Buffers only used by the event loop. netOut is kept ready to be written to the channel. */
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+
+    private final FrameQueue frameQueue = new FrameQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private ByteBuffer outboundPreamble;
+    private final ArrayDeque<ByteBuffer> outboundFragments = new ArrayDeque<>();
+    /* Bytes of fragments encrypted into netOut, which are written once it is */
+    private long wrappedFragmentBytes = 0;
+
+    private final ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH);
+    private final ByteBuffer fragmentHeader = ByteBuffer.allocate(FRAGMENT_HEADER_LENGTH);
+    private final FrameAssembler frameAssembler = new FrameAssembler();
+    private int fragmentStreamId;
+    private byte fragmentFlags;
+    private byte[] fragment;
+    private int fragmentFilled;
+
+    /* Set while the delegated tasks of the TLS handshake run in the operation executor, during which the
+     * connection waits for them instead of reading. Only used by the event loop. */
+    private boolean runningDelegatedTasks = false;
+
+    private volatile boolean closed = false;
+    private volatile NodeInfo destination;
+
+    /**
+     * @param channel           Connected channel.
+     * @param engine            Engine in client mode if this node opened the connection, or server mode otherwise.
+     * @param eventLoop         Loop that will serve the connection.
+     * @param operationExecutor Executor in which received operations are run.
+     * @param destination       Node at the other end, or null if it connected to this node.
+     */
+    NioConnection(SocketChannel channel, SSLEngine engine, EventLoop eventLoop, Executor operationExecutor, NodeInfo destination) {
+        this.channel = channel;
+        this.engine = engine;
+        this.eventLoop = eventLoop;
+        this.operationExecutor = operationExecutor;
+        this.destination = destination;
+
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(FLUSH_THRESHOLD + engine.getSession().getPacketBufferSize());
+        netOut.flip();
+    }
+
+    /**
+     * Starts the TLS handshake and registers the connection in its event loop.
+     *
+     * @throws IOException
+     */
+    void start() throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        engine.beginHandshake();
+
+        /* The side that opened the connection asks for the protocol first */
+        if (engine.getUseClientMode())
+            outboundPreamble = createPreamble();
+
+        eventLoop.execute(() -> {
+            try {
+                selectionKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeChannel();
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void sendOperation(NodeInfo destination, Operation operation) throws IOException {
+        if (closed)
+            throw new IOException("Connection to " + this.destination + " is closed.");
+
+        frameQueue.add(destination, operation);
+        scheduleFlush();
+    }
+
+    /**
+     * Stops accepting operations and closes the connection once the ones already sent are written.
+     */
+    @Override
+    public void closeConnection() {
+        if (closed)
+            return;
+
+        closed = true;
+        Mailman.connectionClosed(this);
+
+        eventLoop.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Closes the channel right away. The operations not yet written are sent again on a new connection.
+     */
+    private void closeChannel() {
+        closed = true;
+        Mailman.connectionClosed(this);
+        Mailman.resendOperations(frameQueue.close());
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Unable to close socket");
+        }
+    }
+
+    @Override
+    public NodeInfo getNodeInfo() {
+        return destination;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable())
+                read();
+
+            if (key.isValid() && (key.isWritable() || !frameQueue.isEmpty() || !outboundFragments.isEmpty()))
+                flush();
+        } catch (IOException e) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Makes the event loop write the pending frames, unless it is already going to.
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true))
+            return;
+
+        eventLoop.execute(() -> {
+            flushScheduled.set(false);
+
+            try {
+                flush();
+            } catch (IOException e) {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Reads from the channel, decrypts what was read and handles the resulting operations.
+     *
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        if (channel.read(netIn) < 0) {
+            closeChannel();
+            return;
+        }
+
+        unwrap();
+    }
+
+    /**
+     * Decrypts the data read so far and handles the resulting operations.
+     *
+     * @throws IOException
+     */
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            /* The engine must not be given more data until the delegated tasks finish */
+            while (channel.isOpen() && !runningDelegatedTasks) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        /* A whole record is needed, so wait for more data */
+                        return;
+                    case BUFFER_OVERFLOW:
+                        appIn.flip();
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        closeChannel();
+                        return;
+                    default:
+                        break;
+                }
+
+                if (appIn.position() > 0)
+                    handleApplicationData();
+
+                handleHandshakeStatus(result.getHandshakeStatus());
+
+                /* Stop once nothing happens, unless the handshake moved on by writing */
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() == result.getHandshakeStatus())
+                    return;
+            }
+        } finally {
+            netIn.compact();
+
+            /* Make room for a whole record, in case the session needs larger ones */
+            if (!netIn.hasRemaining()) {
+                netIn.flip();
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks or writes the messages the TLS handshake is waiting for.
+     *
+     * @param status
+     * @throws IOException
+     */
+    private void handleHandshakeStatus(SSLEngineResult.HandshakeStatus status) throws IOException {
+        switch (status) {
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case NEED_WRAP:
+            case FINISHED:
+                flush();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Runs the tasks the TLS handshake is waiting for in the operation executor, as they may take long
+     * (e.g. validating certificates) and would otherwise stall every connection of the event loop.
+     * The connection stops reading until they finish, and then carries on with the handshake.
+     */
+    private void runDelegatedTasks() {
+        if (runningDelegatedTasks)
+            return;
+
+        runningDelegatedTasks = true;
+        setInterest(false);
+
+        operationExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                task.run();
+
+            eventLoop.execute(() -> {
+                runningDelegatedTasks = false;
+                if (!channel.isOpen())
+                    return;
+
+                try {
+                    setInterest(false);
+
+                    /* Handshake messages may have been read while waiting for the tasks */
+                    unwrap();
+                    flush();
+                } catch (IOException e) {
+                    closeChannel();
+                }
+            });
+        });
+    }
+
+    /**
+     * Sets the operations the event loop waits for on the channel, which are reading,
+     * unless the handshake is waiting for its delegated tasks, and, if asked, writing.
+     *
+     * @param write
+     */
+    private void setInterest(boolean write) {
+        if (selectionKey != null && selectionKey.isValid())
+            selectionKey.interestOps((runningDelegatedTasks ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Encrypts and writes the pending fragments, until there are none left or the channel cannot take more.
+     * Small fragments are encrypted together into the same TLS record, and as many records as fit in
+     * the output buffer are written with a single call.
+     * Closes the channel once everything was written if the connection was closed.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        while (channel.isOpen()) {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+
+                if (netOut.hasRemaining()) {
+                    setInterest(true);
+                    return;
+                }
+            }
+
+            if (wrappedFragmentBytes > 0) {
+                frameQueue.written(wrappedFragmentBytes);
+                wrappedFragmentBytes = 0;
+            }
+
+            netOut.clear();
+            boolean wrapped = wrap();
+            netOut.flip();
+
+            if (!channel.isOpen())
+                return;
+
+            if (!wrapped) {
+                if (closed && !runningDelegatedTasks && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                    closeChannel();
+                else
+                    setInterest(false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts the pending data into the output buffer, until it is full or there is nothing left to send.
+     *
+     * @return false if there was nothing to encrypt.
+     * @throws IOException
+     */
+    private boolean wrap() throws IOException {
+        int packetBufferSize = engine.getSession().getPacketBufferSize();
+        if (netOut.capacity() < FLUSH_THRESHOLD + packetBufferSize)
+            netOut = ByteBuffer.allocate(FLUSH_THRESHOLD + packetBufferSize);
+
+        while (netOut.remaining() >= packetBufferSize) {
+            ByteBuffer[] source;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return netOut.position() > 0;
+                case NEED_WRAP:
+                    source = new ByteBuffer[]{EMPTY};
+                    break;
+                case NEED_UNWRAP:
+                    /* Wait for the other node's handshake messages */
+                    return netOut.position() > 0;
+                default:
+                    source = nextOutboundBuffers();
+                    break;
+            }
+
+            if (source == null)
+                return netOut.position() > 0;
+
+            SSLEngineResult result = engine.wrap(source, netOut);
+            if (source[0] != outboundPreamble && source[0] != EMPTY)
+                wrappedFragmentBytes += result.bytesConsumed();
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    /* The session may need larger records than when the buffer was allocated */
+                    if (netOut.position() == 0)
+                        netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    return netOut.position() > 0;
+                case CLOSED:
+                    closeChannel();
+                    return false;
+                default:
+                    break;
+            }
+
+            while (!outboundFragments.isEmpty() && !outboundFragments.peek().hasRemaining())
+                outboundFragments.poll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the data to be sent next, which is the preamble, if not yet sent, or the next fragments.
+     * Enough fragments are returned to fill a TLS record, if there are that many.
+     *
+     * @return The data, or null if there is nothing to send.
+     */
+    private ByteBuffer[] nextOutboundBuffers() {
+        if (outboundPreamble != null && outboundPreamble.hasRemaining())
+            return new ByteBuffer[]{outboundPreamble};
+
+        /* Fragments can only be sent after the preamble was exchanged */
+        if (preamble.hasRemaining())
+            return null;
+
+        int length = 0;
+        for (ByteBuffer fragment : outboundFragments)
+            length += fragment.remaining();
+
+        int fragmentLength;
+        while (length < MAX_RECORD_LENGTH && (fragmentLength = frameQueue.poll(outboundFragments)) > 0)
+            length += fragmentLength;
+
+        if (outboundFragments.isEmpty())
+            return null;
+
+        return outboundFragments.toArray(new ByteBuffer[outboundFragments.size()]);
+    }
+
+    /**
+     * Reassembles the fragments in the decrypted data, and runs the operations they carry.
+     *
+     * @throws IOException
+     * @throws StreamCorruptedException If an operation could not be decoded, in which case the channel must be closed.
+     */
+    private void handleApplicationData() throws IOException {
+        appIn.flip();
+
+        try {
+            while (appIn.hasRemaining()) {
+                if (preamble.hasRemaining()) {
+                    if (fill(preamble))
+                        checkPreamble();
+                    continue;
+                }
+
+                if (fragment == null) {
+                    if (!fill(fragmentHeader))
+                        break;
+
+                    fragmentHeader.flip();
+                    int length = fragmentHeader.getInt();
+                    fragmentStreamId = fragmentHeader.getInt();
+                    fragmentFlags = fragmentHeader.get();
+                    fragmentHeader.clear();
+
+                    if (length < 0 || length > MAX_FRAGMENT_LENGTH)
+                        throw new StreamCorruptedException("Invalid fragment length " + length);
+
+                    fragment = new byte[length];
+                    fragmentFilled = 0;
+                }
+
+                int length = Math.min(appIn.remaining(), fragment.length - fragmentFilled);
+                appIn.get(fragment, fragmentFilled, length);
+                fragmentFilled += length;
+
+                if (fragmentFilled == fragment.length) {
+                    Operation operation;
+                    try {
+                        operation = frameAssembler.add(fragmentStreamId, fragmentFlags, fragment);
+                    } catch (RuntimeException e) {
+                        /* Decoding a malformed operation may also fail with a runtime exception, which must
+                         * close the connection like any other, as the rest of the stream cannot be trusted */
+                        throw (StreamCorruptedException) new StreamCorruptedException("Malformed operation").initCause(e);
+                    }
+                    fragment = null;
+
+                    if (operation != null)
+                        dispatch(operation);
+                }
+            }
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    /**
+     * Checks the protocol the other node asked for or replied with.
+     *
+     * @throws IOException
+     */
+    private void checkPreamble() throws IOException {
+        preamble.flip();
+        int magic = preamble.getInt();
+        byte version = preamble.get();
+
+        if (magic == SERIALIZATION_MAGIC)
+            throw new SSLException("Java serialization is only supported by the blocking transport.");
+
+        if (magic != PROTOCOL_MAGIC || version != PROTOCOL_VERSION)
+            throw new StreamCorruptedException("Unsupported protocol");
+
+        /* Leave the buffer full, which marks the preamble as received */
+        preamble.position(preamble.limit());
+
+        if (!engine.getUseClientMode())
+            outboundPreamble = createPreamble();
+
+        flush();
+    }
+
+    /**
+     * Runs the given operation. The first operation received on a connection opened by
+     * another node identifies that node, as in the blocking transport.
+     *
+     * @param operation
+     */
+    private void dispatch(Operation operation) {
+        if (destination == null) {
+            destination = operation.getOrigin();
+            Mailman.addOpenConnection(this);
+        }
+
+        operationExecutor.execute(() -> Mailman.deliver(operation));
+    }
+
+    /**
+     * Copies as much of the decrypted data as fits into the given buffer.
+     *
+     * @param buffer
+     * @return true if the buffer is full.
+     */
+    private boolean fill(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && appIn.hasRemaining())
+            buffer.put(appIn.get());
+
+        return !buffer.hasRemaining();
+    }
+
+    private static ByteBuffer createPreamble() {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH);
+        preamble.putInt(PROTOCOL_MAGIC);
+        preamble.put(PROTOCOL_VERSION);
+        preamble.flip();
+        return preamble;
+    }
+
+    /**
+     * Creates a copy of the given buffer, in write mode, with room for at least the given number of bytes more.
+     *
+     * @param buffer Buffer in read mode.
+     * @param size
+     * @return
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer enlarged = ByteBuffer.allocate(buffer.capacity() + size);
+        enlarged.put(buffer);
+        return enlarged;
+    }
+}
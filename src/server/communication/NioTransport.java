@@ -0,0 +1,114 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+import server.utils.Threads;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport in which a few event loops serve every connection, so that the number of threads
+ * does not grow with the number of connected nodes. Only supports the binary protocol.
+ */
+class NioTransport implements Transport {
+    private static final int EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int OPERATION_THREADS = 32;
+
+    private final EventLoop[] eventLoops = new EventLoop[EVENT_LOOPS];
+    private final AtomicInteger nextEventLoop = new AtomicInteger(0);
+    private final ExecutorService operationsThreadPool = Threads.newPool(OPERATION_THREADS);
+    private final SSLContext sslContext;
+
+    NioTransport() throws IOException {
+        try {
+            sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop("EventLoop-" + i);
+    }
+
+    @Override
+    public void listen(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        EventLoop acceptLoop = eventLoops[0];
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, key -> accept(serverChannel));
+            } catch (IOException e) {
+                System.err.println("Error creating server socket.");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public Connection connect(NodeInfo destination) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(destination.getAddress(), destination.getPort()));
+
+        SSLEngine engine = sslContext.createSSLEngine(destination.getAddress().getHostAddress(), destination.getPort());
+        engine.setUseClientMode(true);
+
+        return start(channel, engine, destination);
+    }
+
+    /**
+     * Accepts the pending connections on the given server channel.
+     *
+     * @param serverChannel
+     */
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null)
+                    return;
+
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+
+                start(channel, engine, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands the given channel to the next event loop.
+     *
+     * @param channel
+     * @param engine
+     * @param destination Node at the other end, or null if it connected to this node.
+     * @return
+     * @throws IOException
+     */
+    private NioConnection start(SocketChannel channel, SSLEngine engine, NodeInfo destination) throws IOException {
+        EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        NioConnection connection = new NioConnection(channel, engine, eventLoop, operationsThreadPool, destination);
+
+        try {
+            connection.start();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return connection;
+    }
+}
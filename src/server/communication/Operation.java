@@ -2,19 +2,91 @@ package server.communication;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.chord.RingId;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 public abstract class Operation implements Serializable {
+    /* Pinned, so that nodes that still use Java serialization can read instances sent by newer nodes */
+    private static final long serialVersionUID = -1238126453070131315L;
+
     protected final NodeInfo origin;
+    /* Node the operation was sent to, among the ones of the server that received it, if it was named by the sender */
+    private transient RingId destination;
+    /* Number of times the operation was sent again because its connection closed before it was sent */
+    private transient int resends = 0;
 
     public Operation(NodeInfo origin) {
         this.origin = origin;
     }
 
+    /**
+     * Reads the fields common to all operations, written with write.
+     *
+     * @param input
+     * @throws IOException
+     */
+    protected Operation(DataInput input) throws IOException {
+        this.origin = NodeInfo.read(input);
+    }
+
     public abstract void run(Node currentNode);
 
+    /**
+     * Writes the operation in the binary wire format.
+     * Subclasses with fields of their own must write them after calling this.
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void write(DataOutput output) throws IOException {
+        origin.write(output);
+    }
+
+    /**
+     * Gets the data sent right after the fields written by write, without copying it into the encoded operation.
+     * Subclasses whose last field is a value may write only its length and return the value here,
+     * so that a value read from storage is sent without being copied into the heap.
+     *
+     * @return The payload, or null if there is none.
+     */
+    public ByteBuffer getPayload() {
+        return null;
+    }
+
+    /**
+     * Handles the failure to send the operation after it was queued, when its connection closed before it was sent
+     * and it could not be sent again. Operations whose sender waits for a reply fail the wait here, as it would have
+     * failed when sending them.
+     *
+     * @param sender Node of this server that sent the operation.
+     * @param e
+     */
+    public void onSendFailure(Node sender, IOException e) {
+    }
+
     public NodeInfo getOrigin() {
         return this.origin;
     }
+
+    RingId getDestination() {
+        return destination;
+    }
+
+    void setDestination(RingId destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * Counts another time the operation is sent again.
+     *
+     * @return The number of times it was sent again, including this one.
+     */
+    int countResend() {
+        return ++resends;
+    }
 }
@@ -0,0 +1,278 @@
+package server.communication;
+
+import server.chord.RingId;
+import server.communication.operations.*;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary wire format of the operations, which replaces Java serialization.
+ * Each operation is encoded as a one byte type tag, followed by the ID of the node it is sent to,
+ * as a server may have several nodes, and then by its fields.
+ */
+public class OperationCodec {
+    /* Sent by the connecting side to ask for the binary protocol.
+     * Nodes that only know Java serialization start their streams with its header instead. */
+    static final int PROTOCOL_MAGIC = 0x44425350; // "DBSP"
+    static final int SERIALIZATION_MAGIC = 0xACED0005;
+    static final byte PROTOCOL_VERSION = 6;
+    static final int PREAMBLE_LENGTH = Integer.BYTES + 1;
+
+    /* Operations are sent in fragments, so that a large operation does not delay the ones sent after it.
+     * Each fragment starts with the length of its content, the stream (operation) it belongs to and its flags. */
+    static final int FRAGMENT_HEADER_LENGTH = Integer.BYTES + Integer.BYTES + 1;
+    static final int MAX_RECORD_LENGTH = 16 * 1024; // Largest content of a TLS record
+    static final int MAX_FRAGMENT_LENGTH = MAX_RECORD_LENGTH - FRAGMENT_HEADER_LENGTH;
+    static final byte LAST_FRAGMENT = 1;
+
+    private static final boolean CONTROL = false;
+    private static final boolean BULK = true;
+
+    private static final HashMap<Class<? extends Operation>, Byte> types = new HashMap<>();
+    private static final HashSet<Class<? extends Operation>> bulkOperations = new HashSet<>();
+    private static final Decoder[] decoders = new Decoder[256];
+
+    /* Tags are part of the protocol, so existing ones must never be changed or reused.
+     * Bulk operations carry values or sets of keys, and are sent after any pending control operation. */
+    static {
+        register(1, LookupOperation.class, LookupOperation::new, CONTROL);
+        register(2, LookupResultOperation.class, LookupResultOperation::new, CONTROL);
+        register(3, NotifyOperation.class, NotifyOperation::new, CONTROL);
+        register(4, RequestPredecessorOperation.class, RequestPredecessorOperation::new, CONTROL);
+        register(5, RequestPredecessorResultOperation.class, RequestPredecessorResultOperation::new, CONTROL);
+        register(6, InsertOperation.class, InsertOperation::new, BULK);
+        register(7, InsertResultOperation.class, InsertResultOperation::new, CONTROL);
+        register(8, GetOperation.class, GetOperation::new, CONTROL);
+        register(9, GetResultOperation.class, GetResultOperation::new, BULK);
+        register(10, DeleteOperation.class, DeleteOperation::new, CONTROL);
+        register(11, DeleteResultOperation.class, DeleteResultOperation::new, CONTROL);
+        register(12, ContainsKeyOperation.class, ContainsKeyOperation::new, CONTROL);
+        register(13, ContainsKeyResultOperation.class, ContainsKeyResultOperation::new, CONTROL);
+        register(14, ReplicationOperation.class, ReplicationOperation::new, BULK);
+        register(15, ReplicationSyncOperation.class, ReplicationSyncOperation::new, BULK);
+        register(16, ReplicationSyncResultOperation.class, ReplicationSyncResultOperation::new, BULK);
+        register(17, SendKeysOperation.class, SendKeysOperation::new, BULK);
+        register(18, SendKeysResultOperation.class, SendKeysResultOperation::new, CONTROL);
+        register(19, ReplicationBatchOperation.class, ReplicationBatchOperation::new, BULK);
+        register(20, ReplicationBatchResultOperation.class, ReplicationBatchResultOperation::new, CONTROL);
+        register(21, MerkleSyncOperation.class, MerkleSyncOperation::new, CONTROL);
+        register(22, MerkleSyncResultOperation.class, MerkleSyncResultOperation::new, CONTROL);
+        register(23, ReplicationRangeSyncOperation.class, ReplicationRangeSyncOperation::new, BULK);
+        register(24, SendKeysBatchOperation.class, SendKeysBatchOperation::new, BULK);
+        register(25, LoadReportOperation.class, LoadReportOperation::new, CONTROL);
+        register(26, FindNextHopOperation.class, FindNextHopOperation::new, CONTROL);
+        register(27, FindNextHopResultOperation.class, FindNextHopResultOperation::new, CONTROL);
+    }
+
+    private interface Decoder {
+        Operation decode(DataInput input) throws IOException;
+    }
+
+    private static void register(int type, Class<? extends Operation> operationClass, Decoder decoder, boolean bulk) {
+        types.put(operationClass, (byte) type);
+        decoders[type] = decoder;
+
+        if (bulk)
+            bulkOperations.add(operationClass);
+    }
+
+    /**
+     * Checks if the given operation is sent in the bulk lane.
+     *
+     * @param operation
+     * @return
+     */
+    static boolean isBulk(Operation operation) {
+        return bulkOperations.contains(operation.getClass());
+    }
+
+    /**
+     * Encodes the given operation, sent to the node with the given ID.
+     * Its payload, if any, is not included, and must be sent right after the encoded operation.
+     *
+     * @param destination
+     * @param operation
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encode(RingId destination, Operation operation) throws IOException {
+        Byte type = types.get(operation.getClass());
+        if (type == null)
+            throw new NotSerializableException(operation.getClass().getName());
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+
+        outputStream.writeByte(type);
+        destination.write(outputStream);
+        operation.write(outputStream);
+        outputStream.flush();
+
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Decodes an operation encoded with encode, along with the ID of the node it was sent to.
+     *
+     * @param content
+     * @return
+     * @throws IOException
+     */
+    public static Operation decode(byte[] content) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(content));
+
+        Decoder decoder = decoders[inputStream.readUnsignedByte()];
+        if (decoder == null)
+            throw new StreamCorruptedException("Unknown operation type " + (content[0] & 0xFF));
+
+        RingId destination = RingId.read(inputStream);
+        Operation operation = decoder.decode(inputStream);
+        operation.setDestination(destination);
+        return operation;
+    }
+
+    /**
+     * Checks a length or number of elements read from the given input, before anything is allocated for it,
+     * so that a malformed operation cannot make the node allocate more memory than the operation takes.
+     * Operations are always decoded from the received bytes, so the bytes left in the input are known.
+     *
+     * @param input
+     * @param length
+     * @param elementSize Smallest number of bytes each element takes.
+     * @return The length.
+     * @throws StreamCorruptedException If the length is negative or the elements do not fit in the bytes left.
+     */
+    private static int checkLength(DataInput input, int length, int elementSize) throws IOException {
+        int remaining = input instanceof InputStream ? ((InputStream) input).available() : Integer.MAX_VALUE;
+
+        if (length < 0 || (long) length * elementSize > remaining)
+            throw new StreamCorruptedException("Invalid length " + length + " with " + remaining + " bytes left");
+
+        return length;
+    }
+
+    /**
+     * Writes the raw bytes of the given key.
+     *
+     * @param output
+     * @param key
+     * @throws IOException
+     */
+    public static void writeKey(DataOutput output, BigInteger key) throws IOException {
+        byte[] rawKey = key.toByteArray();
+        output.writeByte(rawKey.length);
+        output.write(rawKey);
+    }
+
+    /**
+     * Reads a key written with writeKey.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws StreamCorruptedException If the key has no bytes, which no key written with writeKey has.
+     */
+    public static BigInteger readKey(DataInput input) throws IOException {
+        int length = input.readUnsignedByte();
+        if (length <= 0)
+            throw new StreamCorruptedException("Invalid key length " + length);
+
+        byte[] rawKey = new byte[length];
+        input.readFully(rawKey);
+        return new BigInteger(rawKey);
+    }
+
+    /**
+     * Writes the given value, which may be null.
+     *
+     * @param output
+     * @param value
+     * @throws IOException
+     */
+    public static void writeValue(DataOutput output, byte[] value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(value.length);
+        output.write(value);
+    }
+
+    public static byte[] readValue(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length == -1)
+            return null;
+
+        byte[] value = new byte[checkLength(input, length, 1)];
+        input.readFully(value);
+        return value;
+    }
+
+    public static void writeKeys(DataOutput output, HashSet<BigInteger> keys) throws IOException {
+        output.writeInt(keys.size());
+        for (BigInteger key : keys)
+            writeKey(output, key);
+    }
+
+    public static HashSet<BigInteger> readKeys(DataInput input) throws IOException {
+        int size = checkLength(input, input.readInt(), 2);
+        HashSet<BigInteger> keys = new HashSet<>();
+
+        for (int i = 0; i < size; i++)
+            keys.add(readKey(input));
+
+        return keys;
+    }
+
+    public static void writeInts(DataOutput output, int[] values) throws IOException {
+        output.writeInt(values.length);
+        for (int value : values)
+            output.writeInt(value);
+    }
+
+    public static int[] readInts(DataInput input) throws IOException {
+        int[] values = new int[checkLength(input, input.readInt(), Integer.BYTES)];
+        for (int i = 0; i < values.length; i++)
+            values[i] = input.readInt();
+
+        return values;
+    }
+
+    public static void writeLongs(DataOutput output, long[] values) throws IOException {
+        output.writeInt(values.length);
+        for (long value : values)
+            output.writeLong(value);
+    }
+
+    public static long[] readLongs(DataInput input) throws IOException {
+        long[] values = new long[checkLength(input, input.readInt(), Long.BYTES)];
+        for (int i = 0; i < values.length; i++)
+            values[i] = input.readLong();
+
+        return values;
+    }
+
+    public static void writeKeyValues(DataOutput output, ConcurrentHashMap<BigInteger, byte[]> values) throws IOException {
+        output.writeInt(values.size());
+        for (Map.Entry<BigInteger, byte[]> entry : values.entrySet()) {
+            writeKey(output, entry.getKey());
+            writeValue(output, entry.getValue());
+        }
+    }
+
+    public static ConcurrentHashMap<BigInteger, byte[]> readKeyValues(DataInput input) throws IOException {
+        int size = checkLength(input, input.readInt(), 2 + Integer.BYTES);
+        ConcurrentHashMap<BigInteger, byte[]> values = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < size; i++)
+            values.put(readKey(input), readValue(input));
+
+        return values;
+    }
+}
@@ -14,11 +14,16 @@ public class OperationManager<T, U> {
         return ongoingOperation.putIfAbsent(key, new CompletableFuture<>());
     }
 
+    /* Results may arrive after the operation was given up on (e.g. when it timed out), so there may be nothing to finish */
     public void operationFinished(T key, U value) {
-        ongoingOperation.remove(key).complete(value);
+        CompletableFuture<U> operation = ongoingOperation.remove(key);
+        if (operation != null)
+            operation.complete(value);
     }
 
     public void operationFailed(T key, Exception exception) {
-        ongoingOperation.remove(key).completeExceptionally(exception);
+        CompletableFuture<U> operation = ongoingOperation.remove(key);
+        if (operation != null)
+            operation.completeExceptionally(exception);
     }
 }
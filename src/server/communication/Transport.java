@@ -0,0 +1,27 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+
+import java.io.IOException;
+
+/**
+ * Way in which connections to other nodes are established and served.
+ */
+interface Transport {
+    /**
+     * Starts accepting connections on the given port.
+     *
+     * @param port
+     * @throws IOException
+     */
+    void listen(int port) throws IOException;
+
+    /**
+     * Opens a connection to the given node.
+     *
+     * @param destination
+     * @return
+     * @throws IOException
+     */
+    Connection connect(NodeInfo destination) throws IOException;
+}
@@ -0,0 +1,64 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
+public class ContainsKeyOperation extends Operation {
+    private static final long serialVersionUID = -3252941050928701988L;
+
+    private final BigInteger key;
+
+
+    public ContainsKeyOperation(NodeInfo origin, BigInteger key) {
+        super(origin);
+        this.key = key;
+    }
+
+    public ContainsKeyOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+    }
+
+    /**
+     * This Operation checks if the given current Node has a value with the key.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        ContainsKeyResultOperation result = new ContainsKeyResultOperation(currentNode.getInfo(), key, currentNode.hasLocalValue(key));
+
+        try {
+            Mailman.sendOperation(origin, result);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fails the check in the sender, which waits for its result.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingContainsKeys.operationFailed(key, e);
+    }
+}
@@ -0,0 +1,49 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
+public class ContainsKeyResultOperation extends Operation {
+    private static final long serialVersionUID = 5082475130078602794L;
+
+    private final BigInteger key;
+    private final boolean contained;
+
+    ContainsKeyResultOperation(NodeInfo origin, BigInteger key, boolean contained) {
+        super(origin);
+        this.key = key;
+        this.contained = contained;
+    }
+
+    public ContainsKeyResultOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        contained = input.readBoolean();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+        output.writeBoolean(contained);
+    }
+
+    /**
+     * This Operation finishes the Contains Key Operation and removes it from the operation manager.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.ongoingContainsKeys.operationFinished(key, contained);
+    }
+}
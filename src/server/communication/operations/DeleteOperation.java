@@ -5,9 +5,17 @@ import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
 public class DeleteOperation extends Operation {
+    private static final long serialVersionUID = 9116188802925192030L;
+
     private final BigInteger key;
 
 
@@ -16,6 +24,17 @@ public class DeleteOperation extends Operation {
         this.key = key;
     }
 
+    public DeleteOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+    }
+
     /**
      * This Operation deletes from the given current Node the value with the key.
      *
@@ -32,4 +51,15 @@ public class DeleteOperation extends Operation {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Fails the deletion in the sender, which waits for its result.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingDeletes.operationFailed(key, e);
+    }
 }
@@ -4,9 +4,17 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
 public class DeleteResultOperation extends Operation {
+    private static final long serialVersionUID = 658787903013139807L;
+
     private final BigInteger key;
     private final boolean successful;
 
@@ -16,6 +24,19 @@ public class DeleteResultOperation extends Operation {
         this.successful = successful;
     }
 
+    public DeleteResultOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        successful = input.readBoolean();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+        output.writeBoolean(successful);
+    }
+
     /**
      * This Operation finishes the Delete Operation and removes it from the operation manager.
      *
@@ -0,0 +1,87 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.chord.RingId;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
+public class FindNextHopOperation extends Operation {
+    private static final long serialVersionUID = 56215839149467472L;
+
+    private final int queryId;
+    private final BigInteger key;
+    private final int count;
+    private final boolean reachedDestination;
+
+    /**
+     * @param origin             Node looking up the key, which asks the destination instead of forwarding the lookup through it.
+     * @param queryId
+     * @param key
+     * @param count              Maximum number of nodes to answer with, when the destination does not know the node responsible for the key.
+     * @param reachedDestination Whether the destination is the successor of the origin, which the key belongs to.
+     */
+    public FindNextHopOperation(NodeInfo origin, int queryId, BigInteger key, int count, boolean reachedDestination) {
+        super(origin);
+        this.queryId = queryId;
+        this.key = key;
+        this.count = count;
+        this.reachedDestination = reachedDestination;
+    }
+
+    public FindNextHopOperation(DataInput input) throws IOException {
+        super(input);
+        queryId = input.readInt();
+        key = readKey(input);
+        count = input.readUnsignedByte();
+        if (count <= 0)
+            throw new StreamCorruptedException("Invalid number of nodes " + count);
+        reachedDestination = input.readBoolean();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(queryId);
+        writeKey(output, key);
+        output.writeByte(count);
+        output.writeBoolean(reachedDestination);
+    }
+
+    /**
+     * This Operation answers the origin with the node responsible for the key, if the current node knows it,
+     * or else with the nodes of its finger table closest before the key, which the origin asks next.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        RingId keyOwner = RingId.of(key);
+        FindNextHopResultOperation result;
+
+        if (reachedDestination || currentNode.keyBelongsToSelf(keyOwner))
+            result = new FindNextHopResultOperation(currentNode.getInfo(), queryId, true, new NodeInfo[]{currentNode.getInfo()});
+        else if (currentNode.keyBelongsToSuccessor(keyOwner))
+            result = new FindNextHopResultOperation(currentNode.getInfo(), queryId, true, new NodeInfo[]{currentNode.getSuccessor()});
+        else
+            result = new FindNextHopResultOperation(currentNode.getInfo(), queryId, false, currentNode.getNextBestNodes(keyOwner, count));
+
+        try {
+            Mailman.sendOperation(origin, result);
+        } catch (Exception e) {
+            System.out.format("Failure of node with ID %s\n", origin.getId());
+            currentNode.informAboutFailure(origin);
+        } finally {
+            currentNode.informAboutExistence(origin);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class FindNextHopResultOperation extends Operation {
+    private static final long serialVersionUID = -4635555361945747559L;
+
+    private final int queryId;
+    private final boolean found;
+    private final NodeInfo[] nodes;
+
+    /**
+     * @param origin  Node that was asked for the next hop of a lookup.
+     * @param queryId
+     * @param found   Whether the first node is the one responsible for the key.
+     * @param nodes   Node responsible for the key, or nodes closest before the key, starting with the closest.
+     */
+    FindNextHopResultOperation(NodeInfo origin, int queryId, boolean found, NodeInfo[] nodes) {
+        super(origin);
+        this.queryId = queryId;
+        this.found = found;
+        this.nodes = nodes;
+    }
+
+    public FindNextHopResultOperation(DataInput input) throws IOException {
+        super(input);
+        queryId = input.readInt();
+        found = input.readBoolean();
+        nodes = new NodeInfo[input.readUnsignedByte()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = NodeInfo.read(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(queryId);
+        output.writeBoolean(found);
+        output.writeByte(nodes.length);
+        for (NodeInfo node : nodes)
+            node.write(output);
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public NodeInfo[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * This Operation gives the answer to the lookup that asked for it, which decides which nodes to ask next.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.ongoingLookupQueries.operationFinished(queryId, this);
+    }
+}
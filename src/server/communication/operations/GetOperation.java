@@ -5,9 +5,17 @@ import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
 public class GetOperation extends Operation {
+    private static final long serialVersionUID = -5438557741063598842L;
+
     private final BigInteger key;
 
 
@@ -16,6 +24,17 @@ public class GetOperation extends Operation {
         this.key = key;
     }
 
+    public GetOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+    }
+
     /**
      * This Operation gets from the given current Node the value with the key.
      *
@@ -23,7 +42,7 @@ public class GetOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        GetResultOperation result = new GetResultOperation(origin, key, currentNode.getLocalValue(key));
+        GetResultOperation result = new GetResultOperation(origin, key, currentNode.getLocalValueBuffer(key));
 
         try {
             Mailman.sendOperation(origin, result);
@@ -31,4 +50,15 @@ public class GetOperation extends Operation {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Fails the get in the sender, which waits for its result.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingGets.operationFailed(key, e);
+    }
 }
@@ -4,16 +4,87 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+import static server.communication.OperationCodec.readValue;
+import static server.communication.OperationCodec.writeValue;
 
 public class GetResultOperation extends Operation {
+    private static final long serialVersionUID = -7499078700549255269L;
+
     private final BigInteger key;
     private final byte[] value;
+    /* Value read from storage, which is sent as the payload instead of being copied into the value field */
+    private final transient ByteBuffer valueBuffer;
 
-    GetResultOperation(NodeInfo origin, BigInteger key, byte[] value) {
+    private GetResultOperation(NodeInfo origin, BigInteger key, byte[] value) {
         super(origin);
         this.key = key;
         this.value = value;
+        this.valueBuffer = null;
+    }
+
+    GetResultOperation(NodeInfo origin, BigInteger key, ByteBuffer value) {
+        super(origin);
+        this.key = key;
+        this.value = null;
+        this.valueBuffer = value;
+    }
+
+    public GetResultOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        value = readValue(input);
+        valueBuffer = null;
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+
+        /* The value itself follows as the payload */
+        if (valueBuffer != null)
+            output.writeInt(valueBuffer.remaining());
+        else
+            writeValue(output, value);
+    }
+
+    @Override
+    public ByteBuffer getPayload() {
+        return valueBuffer == null ? null : valueBuffer.duplicate();
+    }
+
+    /**
+     * Nodes that still use Java serialization only read the value field, so the value is copied into it.
+     *
+     * @return
+     */
+    private Object writeReplace() {
+        if (valueBuffer == null)
+            return this;
+
+        return new GetResultOperation(origin, key, getValue());
+    }
+
+    /**
+     * Gets the value, copying it into the heap if it was read from storage.
+     *
+     * @return
+     */
+    private byte[] getValue() {
+        if (valueBuffer == null)
+            return value;
+
+        byte[] bytes = new byte[valueBuffer.remaining()];
+        valueBuffer.duplicate().get(bytes);
+        return bytes;
     }
 
     /**
@@ -23,6 +94,6 @@ public class GetResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.ongoingGets.operationFinished(key, value);
+        currentNode.ongoingGets.operationFinished(key, getValue());
     }
 }
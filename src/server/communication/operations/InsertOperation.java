@@ -1,35 +1,86 @@
 package server.communication.operations;
 
+import common.ConsistencyLevel;
 import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+import static server.communication.OperationCodec.readValue;
+import static server.communication.OperationCodec.writeValue;
+
 public class InsertOperation extends Operation {
+    private static final long serialVersionUID = 2505628935590848588L;
+
     private final BigInteger key;
     private final byte[] value;
+    /* Null when sent by nodes using Java serialization that predate it */
+    private final ConsistencyLevel consistency;
 
-    public InsertOperation(NodeInfo origin, BigInteger key, byte[] value) {
+    public InsertOperation(NodeInfo origin, BigInteger key, byte[] value, ConsistencyLevel consistency) {
         super(origin);
         this.key = key;
         this.value = value;
+        this.consistency = consistency;
+    }
+
+    public InsertOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        value = readValue(input);
+
+        int consistencyLevel = input.readUnsignedByte();
+        if (consistencyLevel >= ConsistencyLevel.values().length)
+            throw new StreamCorruptedException("Unknown consistency level " + consistencyLevel);
+
+        consistency = ConsistencyLevel.values()[consistencyLevel];
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+        writeValue(output, value);
+        output.writeByte(getConsistency().ordinal());
+    }
+
+    private ConsistencyLevel getConsistency() {
+        return consistency == null ? ConsistencyLevel.ONE : consistency;
     }
 
     /**
-     * This Operation inserts in the given current Node the value and the key.
+     * This Operation inserts in the given current Node the value and the key,
+     * and replies once the number of copies required by its consistency level are stored.
      *
      * @param currentNode
      */
     @Override
     public void run(Node currentNode) {
-        InsertResultOperation result = new InsertResultOperation(currentNode.getInfo(), key, currentNode.storeKey(key, value));
+        currentNode.storeKey(key, value, getConsistency()).thenAccept(stored -> {
+            try {
+                Mailman.sendOperation(origin, new InsertResultOperation(currentNode.getInfo(), key, stored));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
 
-        try {
-            Mailman.sendOperation(origin, result);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Fails the insertion in the sender, which waits for its result.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingInsertions.operationFailed(key, e);
     }
 }
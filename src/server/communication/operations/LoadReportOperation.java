@@ -0,0 +1,50 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class LoadReportOperation extends Operation {
+    private static final long serialVersionUID = -7143026748647782800L;
+
+    private final long capacity;
+    private final long load;
+
+    /**
+     * @param origin   Successor of the destination, whose server is reporting its load.
+     * @param capacity Number of bytes the server of the origin offers for storage.
+     * @param load     Number of bytes the server of the origin stores.
+     */
+    public LoadReportOperation(NodeInfo origin, long capacity, long load) {
+        super(origin);
+        this.capacity = capacity;
+        this.load = load;
+    }
+
+    public LoadReportOperation(DataInput input) throws IOException {
+        super(input);
+        capacity = input.readLong();
+        load = input.readLong();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeLong(capacity);
+        output.writeLong(load);
+    }
+
+    /**
+     * This Operation records in the current node the load of the server of its successor.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.updateSuccessorLoad(origin, capacity, load);
+    }
+}
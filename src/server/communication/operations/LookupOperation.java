@@ -3,14 +3,22 @@ package server.communication.operations;
 import server.chord.FingerTable;
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.chord.RingId;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
 import static server.chord.DistributedHashTable.MAXIMUM_HOPS;
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
 
 public class LookupOperation extends Operation {
+    private static final long serialVersionUID = 4575553291981837370L;
+
     private BigInteger key;
     private NodeInfo lastNode;
     private boolean reachedDestination = false;
@@ -26,6 +34,23 @@ public class LookupOperation extends Operation {
             reachedDestination = true;
     }
 
+    public LookupOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        lastNode = NodeInfo.read(input);
+        reachedDestination = input.readBoolean();
+        timeToLive = input.readByte();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+        lastNode.write(output);
+        output.writeBoolean(reachedDestination);
+        output.writeByte(timeToLive);
+    }
+
     /**
      * This Operation searches the node and establishes the connection between that node and the given current node.
      *
@@ -44,7 +69,7 @@ public class LookupOperation extends Operation {
                 Mailman.sendOperation(origin, new LookupResultOperation(currentNode.getInfo(), key));
                 currentNode.informAboutExistence(origin);
             } catch (Exception e) {
-                System.out.format("Failure of node with ID %d\n", origin.getId());
+                System.out.format("Failure of node with ID %s\n", origin.getId());
                 currentNode.informAboutFailure(origin);
             } finally {
                 currentNode.informAboutExistence(lastNode);
@@ -53,10 +78,13 @@ public class LookupOperation extends Operation {
             return;
         }
 
-        if (currentNode.keyBelongsToSuccessor(key))
+        /* The position of the key is computed once per hop, and the routing decisions on it do not allocate */
+        RingId keyOwner = RingId.of(key);
+
+        if (currentNode.keyBelongsToSuccessor(keyOwner))
             reachedDestination = true;
 
-        NodeInfo nextBestNode = currentNode.getNextBestNode(key);
+        NodeInfo nextBestNode = currentNode.getNextBestNode(keyOwner);
 
         if (currentNode.getInfo().equals(nextBestNode))
             nextBestNode = currentNode.getSuccessor();
@@ -64,7 +92,7 @@ public class LookupOperation extends Operation {
         try {
             Mailman.sendOperation(nextBestNode, this);
         } catch (Exception e) {
-            System.out.format("Failure of node with ID %d\n", nextBestNode.getId());
+            System.out.format("Failure of node with ID %s\n", nextBestNode.getId());
             e.printStackTrace();
             currentNode.informAboutFailure(nextBestNode);
         } finally {
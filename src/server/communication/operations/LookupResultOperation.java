@@ -4,9 +4,17 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+
 public class LookupResultOperation extends Operation {
+    private static final long serialVersionUID = 7995589937832965205L;
+
     private final BigInteger key;
 
     LookupResultOperation(NodeInfo origin, BigInteger key) {
@@ -14,6 +22,17 @@ public class LookupResultOperation extends Operation {
         this.key = key;
     }
 
+    public LookupResultOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+    }
+
     /**
      * This Operation finishes the Lookup Operation and removes it from the operation manager.
      * @param currentNode
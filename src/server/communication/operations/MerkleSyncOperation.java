@@ -0,0 +1,60 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static server.communication.OperationCodec.readInts;
+import static server.communication.OperationCodec.readLongs;
+import static server.communication.OperationCodec.writeInts;
+import static server.communication.OperationCodec.writeLongs;
+
+public class MerkleSyncOperation extends Operation {
+    private static final long serialVersionUID = 7741344570523063068L;
+
+    private final int level;
+    private final int[] indexes;
+    private final long[] digests;
+
+    /**
+     * @param origin  Node with replicas of the destination.
+     * @param level   Level of the tree of the replicas to which the nodes belong.
+     * @param indexes Indexes of the nodes in their level.
+     * @param digests Digest of each of the nodes.
+     */
+    public MerkleSyncOperation(NodeInfo origin, int level, int[] indexes, long[] digests) {
+        super(origin);
+        this.level = level;
+        this.indexes = indexes;
+        this.digests = digests;
+    }
+
+    public MerkleSyncOperation(DataInput input) throws IOException {
+        super(input);
+        level = input.readInt();
+        indexes = readInts(input);
+        digests = readLongs(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(level);
+        writeInts(output, indexes);
+        writeLongs(output, digests);
+    }
+
+    /**
+     * This Operation compares the given nodes of the origin's tree of replicas with the current node's tree of keys.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.compareReplicaTree(origin, level, indexes, digests);
+    }
+}
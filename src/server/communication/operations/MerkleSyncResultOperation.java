@@ -0,0 +1,59 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static server.communication.OperationCodec.readInts;
+import static server.communication.OperationCodec.writeInts;
+
+public class MerkleSyncResultOperation extends Operation {
+    private static final long serialVersionUID = 1228604501571819431L;
+
+    private final boolean replicaHolder;
+    private final int level;
+    private final int[] differentIndexes;
+
+    /**
+     * @param origin           Owner of the replicas that were compared.
+     * @param replicaHolder    Whether the destination should keep replicas of the origin.
+     * @param level            Level of the compared nodes.
+     * @param differentIndexes Indexes of the nodes whose digests differ.
+     */
+    public MerkleSyncResultOperation(NodeInfo origin, boolean replicaHolder, int level, int[] differentIndexes) {
+        super(origin);
+        this.replicaHolder = replicaHolder;
+        this.level = level;
+        this.differentIndexes = differentIndexes;
+    }
+
+    public MerkleSyncResultOperation(DataInput input) throws IOException {
+        super(input);
+        replicaHolder = input.readBoolean();
+        level = input.readInt();
+        differentIndexes = readInts(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeBoolean(replicaHolder);
+        output.writeInt(level);
+        writeInts(output, differentIndexes);
+    }
+
+    /**
+     * This Operation continues the comparison of the current node's replicas of the origin,
+     * descending into the nodes of the tree that differ.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.onReplicaTreeCompared(origin, replicaHolder, level, differentIndexes);
+    }
+}
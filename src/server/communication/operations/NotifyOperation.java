@@ -4,12 +4,20 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.IOException;
+
 public class NotifyOperation extends Operation {
+    private static final long serialVersionUID = -7821492134076619149L;
 
     public NotifyOperation(NodeInfo origin) {
         super(origin);
     }
 
+    public NotifyOperation(DataInput input) throws IOException {
+        super(input);
+    }
+
     /**
      * This Operation notifies the origin node of the new predecessor.
      *
@@ -0,0 +1,68 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static server.communication.OperationCodec.readKeyValues;
+import static server.communication.OperationCodec.writeKeyValues;
+
+public class ReplicationBatchOperation extends Operation {
+    private static final long serialVersionUID = -8356047496328359232L;
+
+    private final int batchId;
+    private final ConcurrentHashMap<BigInteger, byte[]> replicas;
+
+    public ReplicationBatchOperation(NodeInfo origin, int batchId, ConcurrentHashMap<BigInteger, byte[]> replicas) {
+        super(origin);
+        this.batchId = batchId;
+        this.replicas = replicas;
+    }
+
+    public ReplicationBatchOperation(DataInput input) throws IOException {
+        super(input);
+        batchId = input.readInt();
+        replicas = readKeyValues(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(batchId);
+        writeKeyValues(output, replicas);
+    }
+
+    /**
+     * This Operation stores the replicas in the current node and acknowledges the batch.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.storeReplicas(origin, replicas);
+
+        try {
+            Mailman.sendOperation(origin, new ReplicationBatchResultOperation(currentNode.getInfo(), batchId));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fails the batch in the sender, which waits for it to be acknowledged.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingReplicationBatches.operationFailed(batchId, e);
+    }
+}
@@ -0,0 +1,41 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class ReplicationBatchResultOperation extends Operation {
+    private static final long serialVersionUID = -5990719484232784585L;
+
+    private final int batchId;
+
+    ReplicationBatchResultOperation(NodeInfo origin, int batchId) {
+        super(origin);
+        this.batchId = batchId;
+    }
+
+    public ReplicationBatchResultOperation(DataInput input) throws IOException {
+        super(input);
+        batchId = input.readInt();
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(batchId);
+    }
+
+    /**
+     * This Operation finishes the Replication Batch Operation and removes it from the operation manager.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.ongoingReplicationBatches.operationFinished(batchId, true);
+    }
+}
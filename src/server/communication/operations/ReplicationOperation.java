@@ -4,9 +4,19 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 
+import static server.communication.OperationCodec.readKey;
+import static server.communication.OperationCodec.writeKey;
+import static server.communication.OperationCodec.readValue;
+import static server.communication.OperationCodec.writeValue;
+
 public class ReplicationOperation extends Operation {
+    private static final long serialVersionUID = 6308811721176882164L;
+
     private final BigInteger key;
     private final byte[] value;
 
@@ -16,6 +26,19 @@ public class ReplicationOperation extends Operation {
         this.value = value;
     }
 
+    public ReplicationOperation(DataInput input) throws IOException {
+        super(input);
+        key = readKey(input);
+        value = readValue(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKey(output, key);
+        writeValue(output, value);
+    }
+
     /**
      * This Operation stores the replicas with the value with the key in the current node.
      *
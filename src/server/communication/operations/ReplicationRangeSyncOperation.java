@@ -0,0 +1,57 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashSet;
+
+import static server.communication.OperationCodec.readInts;
+import static server.communication.OperationCodec.readKeys;
+import static server.communication.OperationCodec.writeInts;
+import static server.communication.OperationCodec.writeKeys;
+
+public class ReplicationRangeSyncOperation extends Operation {
+    private static final long serialVersionUID = 6851728758128747886L;
+
+    private final int[] leaves;
+    private final HashSet<BigInteger> keys;
+
+    /**
+     * @param origin Node with replicas of the destination.
+     * @param leaves Leaves of the tree of the replicas that differ.
+     * @param keys   Keys of the replicas of the origin in those leaves.
+     */
+    public ReplicationRangeSyncOperation(NodeInfo origin, int[] leaves, HashSet<BigInteger> keys) {
+        super(origin);
+        this.leaves = leaves;
+        this.keys = keys;
+    }
+
+    public ReplicationRangeSyncOperation(DataInput input) throws IOException {
+        super(input);
+        leaves = readInts(input);
+        keys = readKeys(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeInts(output, leaves);
+        writeKeys(output, keys);
+    }
+
+    /**
+     * This Operation synchronizes the replicas of the given leaves between the current and the origin node.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.synchronizeReplicas(origin, keys, leaves);
+    }
+}
@@ -4,10 +4,17 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.HashSet;
 
+import static server.communication.OperationCodec.readKeys;
+import static server.communication.OperationCodec.writeKeys;
+
 public class ReplicationSyncOperation extends Operation {
+    private static final long serialVersionUID = 1829596848638692139L;
 
     private final HashSet<BigInteger> keys;
 
@@ -16,6 +23,17 @@ public class ReplicationSyncOperation extends Operation {
         this.keys = keys;
     }
 
+    public ReplicationSyncOperation(DataInput input) throws IOException {
+        super(input);
+        keys = readKeys(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKeys(output, keys);
+    }
+
     /**
      * This Operation synchronizes the replicas between the given current and the origin node.
      *
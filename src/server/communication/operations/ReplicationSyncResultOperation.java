@@ -4,10 +4,18 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.HashSet;
 
+import static server.communication.OperationCodec.readKeys;
+import static server.communication.OperationCodec.writeKeys;
+
 public class ReplicationSyncResultOperation extends Operation {
+    private static final long serialVersionUID = 7137006044676636800L;
+
     private final HashSet<BigInteger> keysToDelete;
 
     public ReplicationSyncResultOperation(NodeInfo origin, HashSet<BigInteger> keysToDelete) {
@@ -15,6 +23,17 @@ public class ReplicationSyncResultOperation extends Operation {
         this.keysToDelete = keysToDelete;
     }
 
+    public ReplicationSyncResultOperation(DataInput input) throws IOException {
+        super(input);
+        keysToDelete = readKeys(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKeys(output, keysToDelete);
+    }
+
     /**
      * This Operation finishes the Replication Sync Operation and removes it from the operation manager.
      *
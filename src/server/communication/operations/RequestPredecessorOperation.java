@@ -5,12 +5,20 @@ import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.IOException;
+
 public class RequestPredecessorOperation extends Operation {
+    private static final long serialVersionUID = 1897200127535398706L;
 
     public RequestPredecessorOperation(NodeInfo origin) {
         super(origin);
     }
 
+    public RequestPredecessorOperation(DataInput input) throws IOException {
+        super(input);
+    }
+
     /**
      *
      * This Operation gives the Predecessor from the current node.
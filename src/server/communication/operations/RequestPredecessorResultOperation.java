@@ -4,8 +4,12 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class RequestPredecessorResultOperation extends Operation {
+    private static final long serialVersionUID = -3332680813629551996L;
 
     private NodeInfo predecessor;
 
@@ -14,6 +18,19 @@ public class RequestPredecessorResultOperation extends Operation {
         this.predecessor = predecessor;
     }
 
+    public RequestPredecessorResultOperation(DataInput input) throws IOException {
+        super(input);
+        predecessor = input.readBoolean() ? NodeInfo.read(input) : null;
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeBoolean(predecessor != null);
+        if (predecessor != null)
+            predecessor.write(output);
+    }
+
     /**
      * This Operation finishes the Request Predecessor Operation and removes it from the operation manager.
      *
@@ -0,0 +1,73 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static server.communication.OperationCodec.readKeyValues;
+import static server.communication.OperationCodec.writeKeyValues;
+
+public class SendKeysBatchOperation extends Operation {
+    private static final long serialVersionUID = 2136697884488488060L;
+
+    private final int batchId;
+    private final ConcurrentHashMap<BigInteger, byte[]> keys;
+
+    /**
+     * @param origin  Successor of the destination, which is handing off the keys that now belong to it.
+     * @param batchId
+     * @param keys    Some of the keys being handed off, with their values.
+     */
+    public SendKeysBatchOperation(NodeInfo origin, int batchId, ConcurrentHashMap<BigInteger, byte[]> keys) {
+        super(origin);
+        this.batchId = batchId;
+        this.keys = keys;
+    }
+
+    public SendKeysBatchOperation(DataInput input) throws IOException {
+        super(input);
+        batchId = input.readInt();
+        keys = readKeyValues(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        output.writeInt(batchId);
+        writeKeyValues(output, keys);
+    }
+
+    /**
+     * This Operation stores in the current node a batch of the successor keys and acknowledges it.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.storeSuccessorKeys(keys);
+
+        try {
+            Mailman.sendOperation(origin, new ReplicationBatchResultOperation(currentNode.getInfo(), batchId));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fails the batch in the sender, which waits for it to be acknowledged.
+     *
+     * @param sender
+     * @param e
+     */
+    @Override
+    public void onSendFailure(Node sender, IOException e) {
+        sender.ongoingReplicationBatches.operationFailed(batchId, e);
+    }
+}
@@ -5,10 +5,18 @@ import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.concurrent.ConcurrentHashMap;
 
+import static server.communication.OperationCodec.readKeyValues;
+import static server.communication.OperationCodec.writeKeyValues;
+
 public class SendKeysOperation extends Operation {
+    private static final long serialVersionUID = 7985825574907423234L;
+
     private ConcurrentHashMap<BigInteger, byte[]> keys;
 
     public SendKeysOperation(NodeInfo origin, ConcurrentHashMap<BigInteger, byte[]> keys) {
@@ -16,6 +24,17 @@ public class SendKeysOperation extends Operation {
         this.keys = keys;
     }
 
+    public SendKeysOperation(DataInput input) throws IOException {
+        super(input);
+        keys = readKeyValues(input);
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        writeKeyValues(output, keys);
+    }
+
     /**
      * This Operation stores in the current node the successor keys.
      *
@@ -4,11 +4,20 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInput;
+import java.io.IOException;
+
 public class SendKeysResultOperation extends Operation {
+    private static final long serialVersionUID = 2238560938234577128L;
+
     public SendKeysResultOperation(NodeInfo origin) {
         super(origin);
     }
 
+    public SendKeysResultOperation(DataInput input) throws IOException {
+        super(input);
+    }
+
     /**
      * This Operation finishes the Send Keys Operation and removes it from the operation manager.
      *
@@ -0,0 +1,789 @@
+package server.storage;
+
+import server.utils.Threads;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static server.utils.Utils.toHex;
+
+/**
+ * Append-only storage of values, in segments of a limited size.
+ * Every write is appended to the active segment, and an index in memory keeps the location of the
+ * latest value of each key, so that many small values do not need a file each and are written sequentially.
+ * Overwritten and deleted values are left behind as garbage, and the segments with the most garbage are
+ * compacted in the background, by copying their live values to the active segment.
+ * <p>
+ * Each record has a header with its checksum, the length of its key and the length of its value
+ * (-1 for the deletion of the key), followed by the key and the value.
+ * When a segment is sealed, the key and location of each of its records are also written to a hint file,
+ * so that the index can be rebuilt when the store is opened without reading the values of every segment.
+ */
+public class LogStore {
+    public enum FsyncPolicy {
+        /* Every write is forced to disk before it returns */
+        ALWAYS,
+        /* The active segment is forced to disk periodically */
+        PERIODIC,
+        /* Writes are forced to disk only when a segment is full */
+        NEVER
+    }
+
+    private static final FsyncPolicy FSYNC_POLICY = FsyncPolicy.valueOf(System.getProperty("dbs.fsync", "periodic").toUpperCase());
+    private static final long FSYNC_INTERVAL = 1000; //In milliseconds
+    private static final long CLOSE_TIMEOUT = 10; //In seconds
+    static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    /* A full segment is compacted once this percentage of it is garbage */
+    private static final int COMPACTION_THRESHOLD = 50;
+
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final String HINT_EXTENSION = ".hint";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int HEADER_LENGTH = 12;
+    private static final int DELETED = -1;
+    /* Smaller values are cheaper to copy than to map */
+    private static final int MIN_MAPPED_LENGTH = 64 * 1024;
+
+    private final Path directory;
+    private final ConcurrentHashMap<BigInteger, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Set<Integer> pendingCompactions = ConcurrentHashMap.newKeySet();
+    /* Writes hint files, compacts segments and forces the active segment to disk. It may be shared by several stores,
+     * in which case it is not shut down when the store is closed, and tasks of the store left in it do nothing */
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final boolean sharedMaintenanceExecutor;
+    private ScheduledFuture<?> periodicSync;
+    private volatile boolean closed = false;
+    /* Guards appends to the active segment, and changes of the location of a key */
+    private final Object writeLock = new Object();
+    private Segment activeSegment;
+    /* Whether the active segment was written since it was last forced to disk */
+    private boolean unsynced = false;
+
+    /**
+     * Location of the value of a key.
+     */
+    private static class Location {
+        private final int segmentId;
+        private final long recordOffset;
+        private final int recordLength;
+        private final long valueOffset;
+        private final int valueLength;
+
+        private Location(int segmentId, long recordOffset, int keyLength, int valueLength) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordLength = HEADER_LENGTH + keyLength + valueLength;
+            this.valueOffset = recordOffset + HEADER_LENGTH + keyLength;
+            this.valueLength = valueLength;
+        }
+    }
+
+    /**
+     * A record of a segment, without its value.
+     */
+    private static class Entry {
+        private final BigInteger key;
+        private final Location location;
+        private final boolean deleted;
+
+        private Entry(BigInteger key, Location location, boolean deleted) {
+            this.key = key;
+            this.location = location;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * A file with records.
+     */
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong garbage = new AtomicLong(0);
+        private long size;
+        /* Records of the active segment, written to its hint file when it is sealed */
+        private ArrayList<Entry> entries = new ArrayList<>();
+        /* Sealed segments are no longer written, so they are mapped once, when they are first read */
+        private volatile boolean sealed = false;
+        private MappedByteBuffer mappedSegment;
+
+        private Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * Maps the value in the given location.
+         * The mapping remains valid after the segment is closed and deleted.
+         *
+         * @param location
+         * @return A read-only buffer with the value.
+         * @throws IOException
+         */
+        private ByteBuffer map(Location location) throws IOException {
+            if (!sealed)
+                return channel.map(FileChannel.MapMode.READ_ONLY, location.valueOffset, location.valueLength);
+
+            ByteBuffer value;
+            synchronized (this) {
+                if (mappedSegment == null)
+                    mappedSegment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+                value = mappedSegment.duplicate();
+            }
+
+            value.position((int) location.valueOffset);
+            value.limit((int) location.valueOffset + location.valueLength);
+            return value.slice();
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, rebuilding the index from its segments.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public LogStore(Path directory) throws IOException {
+        this(directory, Threads.newScheduledPool(1), false);
+    }
+
+    /**
+     * Opens the store in the given directory, whose maintenance runs in the given executor, shared with other stores.
+     *
+     * @param directory
+     * @param maintenanceExecutor
+     * @throws IOException
+     */
+    public LogStore(Path directory, ScheduledExecutorService maintenanceExecutor) throws IOException {
+        this(directory, maintenanceExecutor, true);
+    }
+
+    private LogStore(Path directory, ScheduledExecutorService maintenanceExecutor, boolean sharedMaintenanceExecutor) throws IOException {
+        this.directory = directory;
+        this.maintenanceExecutor = maintenanceExecutor;
+        this.sharedMaintenanceExecutor = sharedMaintenanceExecutor;
+        Files.createDirectories(directory);
+
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        int[] segmentIds = new int[files == null ? 0 : files.length];
+        for (int i = 0; i < segmentIds.length; i++)
+            segmentIds[i] = Integer.parseInt(files[i].getName().substring(0, files[i].getName().length() - SEGMENT_EXTENSION.length()));
+        Arrays.sort(segmentIds);
+
+        recover(segmentIds);
+
+        activeSegment = openSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+
+        for (Segment segment : segments.values())
+            scheduleCompactionIfNeeded(segment);
+
+        if (FSYNC_POLICY == FsyncPolicy.PERIODIC)
+            periodicSync = maintenanceExecutor.scheduleWithFixedDelay(this::forceActiveSegment, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores the given value, replacing the previous value of the key.
+     *
+     * @param key
+     * @param value
+     * @return True if the key had no value before, false otherwise.
+     * @throws IOException
+     */
+    public boolean put(BigInteger key, byte[] value) throws IOException {
+        synchronized (writeLock) {
+            Location location = append(key, value);
+            Location previous = index.put(key, location);
+            discard(previous);
+
+            return previous == null;
+        }
+    }
+
+    /**
+     * Deletes the value with the given key.
+     *
+     * @param key
+     * @return True if the key had a value, false otherwise.
+     * @throws IOException
+     */
+    public boolean delete(BigInteger key) throws IOException {
+        synchronized (writeLock) {
+            Location previous = index.remove(key);
+            if (previous == null)
+                return false;
+
+            Location tombstone = append(key, null);
+            discard(previous);
+            discard(tombstone);
+
+            return true;
+        }
+    }
+
+    /**
+     * Reads the value with the given key.
+     *
+     * @param key
+     * @return The value, or null if there is none.
+     * @throws IOException
+     */
+    public byte[] get(BigInteger key) throws IOException {
+        ByteBuffer value = read(key, false);
+        return value == null ? null : value.array();
+    }
+
+    /**
+     * Gets the value with the given key without copying it into the heap, if it is large enough.
+     * Large values are mapped from their segment, so that they are only read from disk (or from the
+     * page cache) as they are sent.
+     *
+     * @param key
+     * @return A read-only buffer with the value, or null if there is none.
+     * @throws IOException
+     */
+    public ByteBuffer getBuffer(BigInteger key) throws IOException {
+        return read(key, true);
+    }
+
+    /**
+     * Reads the value with the given key, retrying if it is moved by a compaction while it is read.
+     *
+     * @param key
+     * @param mapped Whether large values are mapped instead of read into the heap.
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer read(BigInteger key, boolean mapped) throws IOException {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null)
+                return null;
+
+            Segment segment = segments.get(location.segmentId);
+            try {
+                if (segment != null && mapped && location.valueLength >= MIN_MAPPED_LENGTH)
+                    return segment.map(location);
+
+                if (segment != null) {
+                    ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+                    readFully(segment.channel, value, location.valueOffset);
+                    return value.flip();
+                }
+            } catch (ClosedChannelException e) {
+                /* The segment was compacted while it was read */
+            }
+
+            /* Retry if the value was moved in the meantime */
+            if (index.get(key) == location)
+                throw new IOException("Segment " + location.segmentId + " of key " + toHex(key.toByteArray()) + " is no longer available");
+        }
+    }
+
+    /**
+     * Checks if there is a value with the given key.
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(BigInteger key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Gets the keys with values in the store.
+     *
+     * @return A live view of the keys.
+     */
+    public Set<BigInteger> keys() {
+        return index.keySet();
+    }
+
+    /**
+     * Gets the number of bytes taken on disk by the live records, which are the ones kept by compaction.
+     *
+     * @return
+     */
+    public long liveSize() {
+        long size = 0;
+        for (Segment segment : segments.values())
+            size += segment.size - segment.garbage.get();
+
+        return size;
+    }
+
+    /**
+     * Forces every pending write to disk, whatever the fsync policy.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            if (!unsynced)
+                return;
+
+            activeSegment.channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Forces every pending write to disk and closes the store.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        closed = true;
+
+        /* Not interrupted, as interrupting a thread writing to a segment would close the segment.
+         * Its running task is left to finish instead, which a compaction does as soon as it sees the store is closed */
+        if (!sharedMaintenanceExecutor) {
+            maintenanceExecutor.shutdown();
+            try {
+                maintenanceExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (periodicSync != null) {
+            periodicSync.cancel(false);
+        }
+
+        synchronized (writeLock) {
+            activeSegment.channel.force(false);
+            for (Segment segment : segments.values())
+                segment.channel.close();
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it is full.
+     * Must be called with the write lock.
+     *
+     * @param key
+     * @param value The value, or null to record the deletion of the key.
+     * @return The location of the record.
+     * @throws IOException
+     */
+    private Location append(BigInteger key, byte[] value) throws IOException {
+        byte[] rawKey = key.toByteArray();
+        int valueLength = value == null ? 0 : value.length;
+        long recordLength = HEADER_LENGTH + rawKey.length + valueLength;
+
+        if (activeSegment.size > 0 && activeSegment.size + recordLength > SEGMENT_SIZE)
+            rollActiveSegment();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(checksum(rawKey, value));
+        header.putInt(rawKey.length);
+        header.putInt(value == null ? DELETED : value.length);
+        header.flip();
+
+        ByteBuffer[] record = value == null
+                ? new ByteBuffer[]{header, ByteBuffer.wrap(rawKey)}
+                : new ByteBuffer[]{header, ByteBuffer.wrap(rawKey), ByteBuffer.wrap(value)};
+
+        long offset = activeSegment.size;
+        long written = 0;
+        while (written < recordLength)
+            written += activeSegment.channel.write(record);
+
+        activeSegment.size += recordLength;
+
+        if (FSYNC_POLICY == FsyncPolicy.ALWAYS)
+            activeSegment.channel.force(false);
+        else
+            unsynced = true;
+
+        Location location = new Location(activeSegment.id, offset, rawKey.length, valueLength);
+        activeSegment.entries.add(new Entry(key, location, value == null));
+        return location;
+    }
+
+    /**
+     * Seals the active segment and starts a new one.
+     * Must be called with the write lock.
+     *
+     * @throws IOException
+     */
+    private void rollActiveSegment() throws IOException {
+        Segment sealed = activeSegment;
+        sealed.channel.force(false);
+        sealed.sealed = true;
+        activeSegment = openSegment(sealed.id + 1);
+        unsynced = false;
+
+        ArrayList<Entry> entries = sealed.entries;
+        sealed.entries = null;
+        maintenanceExecutor.execute(() -> writeHints(sealed, entries));
+
+        scheduleCompactionIfNeeded(sealed);
+    }
+
+    /**
+     * Counts the record in the given location as garbage.
+     *
+     * @param location
+     */
+    private void discard(Location location) {
+        if (location == null)
+            return;
+
+        Segment segment = segments.get(location.segmentId);
+        if (segment == null)
+            return;
+
+        segment.garbage.addAndGet(location.recordLength);
+
+        /* While the store is being opened there is no active segment yet, and the index is incomplete */
+        if (activeSegment != null)
+            scheduleCompactionIfNeeded(segment);
+    }
+
+    private void scheduleCompactionIfNeeded(Segment segment) {
+        if (segment == activeSegment)
+            return;
+
+        if (segment.garbage.get() * 100 < segment.size * COMPACTION_THRESHOLD)
+            return;
+
+        if (pendingCompactions.add(segment.id))
+            maintenanceExecutor.execute(() -> compact(segment));
+    }
+
+    /**
+     * Copies the live records of the given segment to the active segment, and deletes it.
+     * Deletions are only kept if older segments may still have values of their keys.
+     *
+     * @param segment
+     */
+    private void compact(Segment segment) {
+        if (closed)
+            return;
+
+        try {
+            boolean oldest = segments.firstKey() == segment.id;
+
+            readRecords(segment, (key, value, location) -> {
+                synchronized (writeLock) {
+                    if (closed)
+                        throw new ClosedChannelException();
+
+                    if (value == null) {
+                        if (!oldest && !index.containsKey(key))
+                            discard(append(key, null));
+                    } else if (index.get(key) != null && index.get(key).segmentId == segment.id
+                            && index.get(key).recordOffset == location.recordOffset) {
+                        index.put(key, append(key, value));
+                    }
+                }
+            });
+
+            synchronized (writeLock) {
+                if (FSYNC_POLICY != FsyncPolicy.NEVER)
+                    activeSegment.channel.force(false);
+
+                segments.remove(segment.id);
+            }
+
+            segment.channel.close();
+            Files.deleteIfExists(getHintPath(segment.id));
+            Files.delete(segment.path);
+        } catch (IOException e) {
+            /* The segments are closed when the store is, and the compaction is resumed when it is opened again */
+            if (closed)
+                return;
+
+            System.err.println("Could not compact segment " + segment.path + ".");
+            e.printStackTrace();
+        } finally {
+            pendingCompactions.remove(segment.id);
+        }
+    }
+
+    private void forceActiveSegment() {
+        if (closed)
+            return;
+
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a new, empty segment.
+     *
+     * @param segmentId
+     * @return
+     * @throws IOException
+     */
+    private Segment openSegment(int segmentId) throws IOException {
+        Path path = getSegmentPath(segmentId);
+        /* A segment with the same ID may have been compacted before its hint file was deleted */
+        Files.deleteIfExists(getHintPath(segmentId));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Segment segment = new Segment(segmentId, path, channel, 0);
+        segments.put(segmentId, segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from the given existing segments.
+     * The records of the segments are read in parallel, but are added to the index in the order of the segments,
+     * so that the latest record of each key is the one that is kept.
+     *
+     * @param segmentIds IDs of the segments, in ascending order.
+     * @throws IOException
+     */
+    private void recover(int[] segmentIds) throws IOException {
+        ExecutorService recoveryPool = Threads.newPool(RECOVERY_THREADS);
+        ArrayList<Future<ArrayList<Entry>>> segmentEntries = new ArrayList<>();
+
+        try {
+            for (int segmentId : segmentIds) {
+                Path path = getSegmentPath(segmentId);
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment = new Segment(segmentId, path, channel, channel.size());
+                segments.put(segmentId, segment);
+
+                segmentEntries.add(recoveryPool.submit(() -> readEntries(segment)));
+            }
+
+            for (Future<ArrayList<Entry>> entries : segmentEntries) {
+                for (Entry entry : entries.get()) {
+                    if (entry.deleted) {
+                        discard(index.remove(entry.key));
+                        discard(entry.location);
+                    } else {
+                        discard(index.put(entry.key, entry.location));
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not recover the segments of " + directory, e);
+        } finally {
+            recoveryPool.shutdown();
+        }
+    }
+
+    /**
+     * Reads the records of an existing segment, from its hint file if it has a valid one.
+     * Otherwise, the segment itself is read, and truncated if it ends in an incomplete or corrupted record
+     * (e.g. after a crash while writing it).
+     *
+     * @param segment
+     * @return
+     * @throws IOException
+     */
+    private ArrayList<Entry> readEntries(Segment segment) throws IOException {
+        /* A new segment is always started when the store is opened */
+        segment.sealed = true;
+        segment.entries = null;
+
+        ArrayList<Entry> entries = readHints(segment);
+        if (entries != null)
+            return entries;
+
+        ArrayList<Entry> scannedEntries = new ArrayList<>();
+        long validLength = readRecords(segment, (key, value, location) -> scannedEntries.add(new Entry(key, location, value == null)));
+
+        if (validLength < segment.size) {
+            System.err.println("Truncating corrupted segment " + segment.path + " at " + validLength + " bytes.");
+            segment.channel.truncate(validLength);
+            segment.size = validLength;
+        }
+
+        maintenanceExecutor.execute(() -> writeHints(segment, scannedEntries));
+        return scannedEntries;
+    }
+
+    /**
+     * Writes the hint file of the given sealed segment, with the key and location of each of its records,
+     * followed by a checksum of the file.
+     *
+     * @param segment
+     * @param entries
+     */
+    private void writeHints(Segment segment, ArrayList<Entry> entries) {
+        if (closed)
+            return;
+
+        Path path = getHintPath(segment.id);
+        Path temporaryPath = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+
+        try {
+            CheckedOutputStream checkedStream = new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryPath)), new CRC32());
+
+            try (DataOutputStream output = new DataOutputStream(checkedStream)) {
+                output.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    byte[] rawKey = entry.key.toByteArray();
+                    output.writeInt(rawKey.length);
+                    output.write(rawKey);
+                    output.writeLong(entry.location.recordOffset);
+                    output.writeInt(entry.deleted ? DELETED : entry.location.valueLength);
+                }
+
+                output.flush();
+                output.writeInt((int) checkedStream.getChecksum().getValue());
+            }
+
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not write hint file " + path + ".");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the hint file of the given segment.
+     *
+     * @param segment
+     * @return The records of the segment, or null if it has no valid hint file.
+     */
+    private ArrayList<Entry> readHints(Segment segment) {
+        Path path = getHintPath(segment.id);
+        if (!Files.exists(path))
+            return null;
+
+        try {
+            byte[] hints = Files.readAllBytes(path);
+            if (hints.length < 2 * Integer.BYTES)
+                return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(hints, 0, hints.length - Integer.BYTES);
+            if ((int) crc.getValue() != ByteBuffer.wrap(hints, hints.length - Integer.BYTES, Integer.BYTES).getInt())
+                return null;
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(hints));
+            int size = input.readInt();
+            ArrayList<Entry> entries = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++) {
+                byte[] rawKey = new byte[input.readInt()];
+                input.readFully(rawKey);
+                long recordOffset = input.readLong();
+                int valueLength = input.readInt();
+
+                Location location = new Location(segment.id, recordOffset, rawKey.length, Math.max(valueLength, 0));
+                if (recordOffset + location.recordLength > segment.size)
+                    return null;
+
+                entries.add(new Entry(new BigInteger(rawKey), location, valueLength == DELETED));
+            }
+
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring invalid hint file " + path + ".");
+            return null;
+        }
+    }
+
+    private interface RecordConsumer {
+        void accept(BigInteger key, byte[] value, Location location) throws IOException;
+    }
+
+    /**
+     * Reads the records of the given segment in order, stopping at the first incomplete or corrupted record.
+     *
+     * @param segment
+     * @param consumer Receives the key, value (null for deletions) and location of each record.
+     * @return The length of the valid records.
+     * @throws IOException
+     */
+    private long readRecords(Segment segment, RecordConsumer consumer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long offset = 0;
+
+        while (offset + HEADER_LENGTH <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+
+            int checksum = header.getInt();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            long recordLength = (long) HEADER_LENGTH + keyLength + Math.max(valueLength, 0);
+
+            if (keyLength <= 0 || valueLength < DELETED || offset + recordLength > segment.size)
+                break;
+
+            byte[] key = new byte[keyLength];
+            readFully(segment.channel, ByteBuffer.wrap(key), offset + HEADER_LENGTH);
+
+            byte[] value = null;
+            if (valueLength != DELETED) {
+                value = new byte[valueLength];
+                readFully(segment.channel, ByteBuffer.wrap(value), offset + HEADER_LENGTH + keyLength);
+            }
+
+            if (checksum(key, value) != checksum)
+                break;
+
+            consumer.accept(new BigInteger(key), value, new Location(segment.id, offset, keyLength, Math.max(valueLength, 0)));
+            offset += recordLength;
+        }
+
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+
+            position += read;
+        }
+    }
+
+    private static int checksum(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (value != null)
+            crc.update(value);
+        else
+            crc.update(DELETED);
+
+        return (int) crc.getValue();
+    }
+
+    private Path getHintPath(int segmentId) {
+        return directory.resolve(String.format("%08d", segmentId) + HINT_EXTENSION);
+    }
+
+    private Path getSegmentPath(int segmentId) {
+        return directory.resolve(String.format("%08d", segmentId) + SEGMENT_EXTENSION);
+    }
+}
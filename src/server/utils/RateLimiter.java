@@ -0,0 +1,43 @@
+package server.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are sent, by making each sender wait until the bytes sent before it
+ * would have been sent at that rate. The limit is shared by every thread that uses the same instance.
+ */
+public class RateLimiter {
+    private final long bytesPerSecond;
+    /* Time at which the bytes acquired so far are sent at the allowed rate, in nanoseconds */
+    private long nextAvailable = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Limit of the rate, or 0 for no limit.
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Waits until the given number of bytes can be sent.
+     *
+     * @param bytes
+     * @throws InterruptedException
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0)
+            return;
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(nextAvailable, now);
+
+            nextAvailable = start + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            wait = start - now;
+        }
+
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
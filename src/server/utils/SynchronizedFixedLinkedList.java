@@ -1,5 +1,6 @@
 package server.utils;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -81,4 +82,15 @@ public class SynchronizedFixedLinkedList<T> {
     public boolean contains(T element) {
         return list.contains(element);
     }
+
+    /**
+     * Gets a copy of the elements, in order, so that they can be gone through while the list changes.
+     *
+     * @return
+     */
+    public ArrayList<T> getAll() {
+        synchronized (list) {
+            return new ArrayList<>(list);
+        }
+    }
 }
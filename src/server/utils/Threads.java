@@ -0,0 +1,79 @@
+package server.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the thread pools used by the node, according to the execution mode.
+ * In the "virtual" mode, every task runs in its own virtual thread, so that blocked tasks
+ * (e.g. waiting for a lookup) do not hold on to one of a limited number of threads.
+ * Virtual threads are only available from Java 21 on, so they are created by reflection,
+ * and the "platform" mode is used when they are not available.
+ */
+public class Threads {
+    private static final String EXECUTION_MODE = System.getProperty("dbs.execution", "platform");
+
+    private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+    /**
+     * Creates the factory of virtual threads, if they were requested and are supported by the JVM.
+     *
+     * @return The factory, or null if platform threads are to be used.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        if (!"virtual".equals(EXECUTION_MODE))
+            return null;
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported by this JVM. Using platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * Checks if tasks are run in virtual threads.
+     *
+     * @return
+     */
+    public static boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Creates a pool for tasks that may block.
+     *
+     * @param platformThreads Number of threads of the pool when platform threads are used.
+     * @return A pool that starts a virtual thread per task, or a fixed pool of platform threads.
+     */
+    public static ExecutorService newPool(int platformThreads) {
+        if (isVirtual()) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Creates a pool for periodic tasks that may block.
+     *
+     * @param threads
+     * @return
+     */
+    public static ScheduledExecutorService newScheduledPool(int threads) {
+        if (isVirtual())
+            return Executors.newScheduledThreadPool(threads, virtualThreadFactory);
+
+        return Executors.newScheduledThreadPool(threads);
+    }
+}
@@ -1,15 +1,16 @@
 package server.utils;
 
 import server.chord.NodeInfo;
+import server.chord.RingId;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import static server.chord.Node.MAX_NODES;
 
 public class Utils {
     private static final String HASH_FUNCTION = "SHA-1";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     /**
      * Returns the hash from the given message.
@@ -22,6 +23,48 @@ public class Utils {
         return MessageDigest.getInstance(HASH_FUNCTION).digest(message);
     }
 
+    /**
+     * Returns the hexadecimal representation of the given bytes, in upper case.
+     *
+     * @param bytes
+     * @return
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Returns the bytes represented by the given hexadecimal string.
+     *
+     * @param hex
+     * @return
+     * @throws IllegalArgumentException if the string is not a valid hexadecimal representation.
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0)
+            throw new IllegalArgumentException("Hexadecimal string must have an even length: " + hex);
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid hexadecimal string: " + hex);
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
     /**
      * Add the given value to the Node ID.
      *
@@ -29,8 +72,8 @@ public class Utils {
      * @param value
      * @return
      */
-    public static int addToNodeId(int nodeId, int value) {
-        return Integer.remainderUnsigned(nodeId + value, MAX_NODES);
+    public static RingId addToNodeId(RingId nodeId, RingId value) {
+        return nodeId.add(value);
     }
 
     /**
@@ -39,8 +82,8 @@ public class Utils {
      * @param key
      * @return
      */
-    public static int getNodeFromKey(BigInteger key) {
-        return Integer.remainderUnsigned(key.intValue(), MAX_NODES);
+    public static RingId getNodeFromKey(BigInteger key) {
+        return getRingPosition(key);
     }
 
     /**
@@ -50,7 +93,7 @@ public class Utils {
      * @return
      */
     public static BigInteger getSuccessorKey(NodeInfo nodeInfo) {
-        return BigInteger.valueOf(addToNodeId(nodeInfo.getId(), 1));
+        return getSuccessorKey(nodeInfo.getId());
     }
 
     /**
@@ -59,20 +102,18 @@ public class Utils {
      * @param nodeId
      * @return
      */
-    public static BigInteger getSuccessorKey(int nodeId) {
-        return BigInteger.valueOf(addToNodeId(nodeId, 1));
+    public static BigInteger getSuccessorKey(RingId nodeId) {
+        return addToNodeId(nodeId, RingId.ONE).toBigInteger();
     }
 
     /**
-     * Check if a given key is between the lower and upper keys in the Chord circle
+     * Gets the position of the given key in the Chord circle.
      *
-     * @param lower
-     * @param upper
      * @param key
-     * @return true if the key is between the other two, or equal to the upper key
+     * @return
      */
-    public static boolean between(NodeInfo lower, NodeInfo upper, BigInteger key) {
-        return between(lower.getId(), upper.getId(), key);
+    public static RingId getRingPosition(BigInteger key) {
+        return RingId.of(key);
     }
 
     /**
@@ -83,13 +124,8 @@ public class Utils {
      * @param key
      * @return true if the key is between the other two, or equal to the upper key
      */
-    public static boolean between(int lower, int upper, BigInteger key) {
-        int keyOwner = Integer.remainderUnsigned(key.intValue(), MAX_NODES);
-
-        if (lower < upper)
-            return keyOwner > lower && keyOwner <= upper;
-        else
-            return keyOwner > lower || keyOwner <= upper;
+    public static boolean between(NodeInfo lower, NodeInfo upper, BigInteger key) {
+        return between(lower.getId(), upper.getId(), getRingPosition(key));
     }
 
     /**
@@ -100,7 +136,7 @@ public class Utils {
      * @param key
      * @return true if the key is between the other two, or equal to the upper key
      */
-    public static boolean between(NodeInfo lower, NodeInfo upper, int key) {
+    public static boolean between(NodeInfo lower, NodeInfo upper, RingId key) {
         return between(lower.getId(), upper.getId(), key);
     }
 
@@ -112,12 +148,8 @@ public class Utils {
      * @param key
      * @return true if the key is between the other two, or equal to the upper key
      */
-    public static boolean between(int lower, int upper, int key) {
-
-        if (lower < upper)
-            return key > lower && key <= upper;
-        else
-            return key > lower || key <= upper;
+    public static boolean between(RingId lower, RingId upper, RingId key) {
+        return key.isBetween(lower, upper);
     }
 
 	/*public byte[] turnToByteArray(Object object){
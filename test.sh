@@ -0,0 +1,12 @@
+#!/bin/bash
+# Compiles the sources and the tests into the given directory, and runs every test (classes named *Test).
+mkdir -p $1 &>/dev/null
+javac -sourcepath src/:test/ -d $1 src/client/TestApp.java src/server/Server.java $(find test -name '*.java') || exit 1
+
+status=0
+for test in $(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort); do
+	echo "$test"
+	java -ea -cp $1 $test || status=1
+done
+
+exit $status
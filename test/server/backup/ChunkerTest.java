@@ -0,0 +1,128 @@
+package server.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static server.backup.Chunker.MAX_CHUNK_SIZE;
+import static server.backup.Chunker.MIN_CHUNK_SIZE;
+import static server.utils.Assert.*;
+
+/**
+ * Checks that chunk boundaries are within the size limits and only depend on the content around them.
+ */
+public class ChunkerTest {
+    public static void main(String[] args) throws IOException {
+        testEmptyStream();
+        testSmallStream();
+        testChunksRebuildContent();
+        testBoundariesDoNotDependOnReads();
+        testInsertionOnlyChangesNearbyChunks();
+        testContentWithoutBoundaries();
+    }
+
+    private static void testEmptyStream() throws IOException {
+        assertEquals(null, new Chunker(new ByteArrayInputStream(new byte[0])).nextChunk(), "Chunk of an empty stream");
+    }
+
+    private static void testSmallStream() throws IOException {
+        byte[] content = randomContent(new Random(1), MIN_CHUNK_SIZE);
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+
+        assertEquals(1, chunks.size(), "Chunks of a stream no longer than the minimum chunk size");
+        assertTrue(Arrays.equals(content, chunks.get(0)), "Chunk of a small stream is all of it");
+    }
+
+    private static void testChunksRebuildContent() throws IOException {
+        byte[] content = randomContent(new Random(2), 16 * 1024 * 1024 + 12345);
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+
+        assertTrue(chunks.size() > 1, "A large stream is split into several chunks");
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            int size = chunks.get(i).length;
+            assertTrue(size > MIN_CHUNK_SIZE && size <= MAX_CHUNK_SIZE, "Size of chunk " + i + " is within the limits: " + size);
+        }
+
+        assertTrue(Arrays.equals(content, concatenate(chunks)), "Chunks put together are the content");
+    }
+
+    private static void testBoundariesDoNotDependOnReads() throws IOException {
+        byte[] content = randomContent(new Random(3), 8 * 1024 * 1024);
+
+        /* A stream that returns few bytes at a time, as a socket or a pipe may */
+        Random readLengths = new Random(4);
+        InputStream slowStream = new FilterInputStream(new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1 + readLengths.nextInt(64 * 1024)));
+            }
+        };
+
+        assertEquals(sizes(chunk(new ByteArrayInputStream(content))), sizes(chunk(slowStream)), "Chunk sizes of the same content read differently");
+    }
+
+    private static void testInsertionOnlyChangesNearbyChunks() throws IOException {
+        byte[] content = randomContent(new Random(5), 16 * 1024 * 1024);
+        byte[] edited = new byte[content.length + 100];
+        System.arraycopy(content, 0, edited, 100, content.length);
+        for (int i = 0; i < 100; i++)
+            edited[i] = (byte) i;
+
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+        List<byte[]> editedChunks = chunk(new ByteArrayInputStream(edited));
+
+        /* Once a boundary of the original content is found again, every following chunk is the same */
+        int common = 0;
+        while (common < Math.min(chunks.size(), editedChunks.size())
+                && Arrays.equals(chunks.get(chunks.size() - 1 - common), editedChunks.get(editedChunks.size() - 1 - common)))
+            common++;
+
+        assertTrue(common >= chunks.size() - 2, "Chunks kept after an insertion at the start: " + common + " of " + chunks.size());
+    }
+
+    private static void testContentWithoutBoundaries() throws IOException {
+        byte[] content = new byte[2 * MAX_CHUNK_SIZE + 1];
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+
+        assertEquals(List.of(MAX_CHUNK_SIZE, MAX_CHUNK_SIZE, 1), sizes(chunks), "Chunk sizes of content without boundaries");
+    }
+
+    private static List<byte[]> chunk(InputStream inputStream) throws IOException {
+        Chunker chunker = new Chunker(inputStream);
+        ArrayList<byte[]> chunks = new ArrayList<>();
+
+        byte[] chunk;
+        while ((chunk = chunker.nextChunk()) != null)
+            chunks.add(chunk);
+
+        return chunks;
+    }
+
+    private static List<Integer> sizes(List<byte[]> chunks) {
+        ArrayList<Integer> sizes = new ArrayList<>();
+        for (byte[] chunk : chunks)
+            sizes.add(chunk.length);
+
+        return sizes;
+    }
+
+    private static byte[] concatenate(List<byte[]> chunks) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks)
+            output.writeBytes(chunk);
+
+        return output.toByteArray();
+    }
+
+    private static byte[] randomContent(Random random, int length) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        return content;
+    }
+}
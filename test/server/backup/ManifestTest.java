@@ -0,0 +1,135 @@
+package server.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static server.utils.Assert.*;
+
+/**
+ * Checks that manifests of every version are read back as written, and that other content is not taken for one.
+ */
+public class ManifestTest {
+    private static final int MAGIC = 0x44425346;
+
+    public static void main(String[] args) throws IOException {
+        testRoundTrip();
+        testEmptyManifest();
+        testVersion1();
+        testVersion2();
+        testCorruptedManifest();
+        testFilesStoredAsAWhole();
+    }
+
+    private static void testRoundTrip() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.addChunk(new BigInteger(160, new Random(1)), Chunker.MAX_CHUNK_SIZE, null);
+        manifest.addChunk(BigInteger.valueOf(-12345), 1000, new byte[16]);
+        manifest.addChunk(BigInteger.ONE, 1, null);
+
+        Manifest read = Manifest.fromByteArray(manifest.toByteArray());
+
+        assertTrue(read != null, "Written manifest is read");
+        assertEquals(3, read.getChunkCount(), "Chunk count");
+        assertEquals(Chunker.MAX_CHUNK_SIZE + 1000L + 1, read.getFileSize(), "File size");
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            assertEquals(manifest.getChunkKey(i), read.getChunkKey(i), "Key of chunk " + i);
+            assertEquals(manifest.getChunkSize(i), read.getChunkSize(i), "Size of chunk " + i);
+            assertTrue(Arrays.equals(manifest.getChunkEncryptionKey(i), read.getChunkEncryptionKey(i)), "Encryption key of chunk " + i);
+        }
+    }
+
+    private static void testEmptyManifest() throws IOException {
+        Manifest read = Manifest.fromByteArray(new Manifest().toByteArray());
+
+        assertTrue(read != null, "Manifest of an empty file is read");
+        assertEquals(0, read.getChunkCount(), "Chunk count of an empty file");
+    }
+
+    private static void testVersion1() throws IOException {
+        /* Version 1 chunks have no encryption key */
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeInt(MAGIC);
+        output.writeByte(1);
+        output.writeInt(2);
+        writeChunk(output, BigInteger.valueOf(1000), 1024 * 1024);
+        writeChunk(output, BigInteger.valueOf(2000), 10);
+
+        Manifest read = Manifest.fromByteArray(content.toByteArray());
+
+        assertTrue(read != null, "Version 1 manifest is read");
+        assertEquals(2, read.getChunkCount(), "Chunk count of a version 1 manifest");
+        assertEquals(BigInteger.valueOf(2000), read.getChunkKey(1), "Key of a chunk of a version 1 manifest");
+        assertEquals(1024 * 1024 + 10L, read.getFileSize(), "File size of a version 1 manifest");
+        assertEquals(null, read.getChunkEncryptionKey(0), "Encryption key of a chunk of a version 1 manifest");
+    }
+
+    private static void testVersion2() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeInt(MAGIC);
+        output.writeByte(2);
+        output.writeInt(2);
+        writeChunk(output, BigInteger.valueOf(1000), 500);
+        output.writeByte(0);
+        writeChunk(output, BigInteger.valueOf(2000), 600);
+        output.writeByte(16);
+        output.write(new byte[16]);
+
+        byte[] bytes = content.toByteArray();
+        Manifest read = Manifest.fromByteArray(bytes);
+
+        assertTrue(read != null, "Version 2 manifest is read");
+        assertEquals(null, read.getChunkEncryptionKey(0), "Chunk encrypted with the node's key");
+        assertTrue(Arrays.equals(new byte[16], read.getChunkEncryptionKey(1)), "Convergently encrypted chunk");
+
+        /* Older manifests have no checksum, so anything after the chunks means the content is something else */
+        assertEquals(null, Manifest.fromByteArray(Arrays.copyOf(bytes, bytes.length + 1)), "Version 2 manifest with trailing content");
+        assertEquals(null, Manifest.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1)), "Truncated version 2 manifest");
+    }
+
+    private static void testCorruptedManifest() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.addChunk(BigInteger.TEN, 100, null);
+        byte[] content = manifest.toByteArray();
+
+        for (int i = 5; i < content.length; i++) {
+            byte[] corrupted = content.clone();
+            corrupted[i] ^= 0x10;
+            assertEquals(null, Manifest.fromByteArray(corrupted), "Manifest with byte " + i + " changed");
+        }
+    }
+
+    private static void testFilesStoredAsAWhole() throws IOException {
+        Random random = new Random(2);
+
+        for (byte version = 1; version <= 3; version++) {
+            for (int i = 0; i < 100; i++) {
+                /* A file that happens to start like a manifest */
+                byte[] file = new byte[9 + random.nextInt(1000)];
+                random.nextBytes(file);
+                file[0] = 0x44;
+                file[1] = 0x42;
+                file[2] = 0x53;
+                file[3] = 0x46;
+                file[4] = version;
+
+                assertEquals(null, Manifest.fromByteArray(file), "File starting with the magic number and version " + version);
+            }
+        }
+
+        assertEquals(null, Manifest.fromByteArray(new byte[0]), "Empty file");
+        assertEquals(null, Manifest.fromByteArray("Not a manifest".getBytes()), "Text file");
+    }
+
+    private static void writeChunk(DataOutputStream output, BigInteger key, int size) throws IOException {
+        byte[] rawKey = key.toByteArray();
+        output.writeByte(rawKey.length);
+        output.write(rawKey);
+        output.writeInt(size);
+    }
+}
@@ -0,0 +1,151 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static server.utils.Assert.*;
+
+/**
+ * Checks that comparing the digests of two trees, from the root down as Node does when synchronizing replicas,
+ * finds the leaves holding the keys in which their sets differ, and only those.
+ */
+public class MerkleTreeTest {
+    private static final int LEAVES = 1 << (Integer.numberOfTrailingZeros(MerkleTree.BRANCHING) * MerkleTree.DEPTH);
+
+    public static void main(String[] args) {
+        testDigestDependsOnlyOnKeys();
+        testToggleRemovesKey();
+        testEqualSetsHaveNoDifference();
+        testDifferenceIsFound();
+        testDifferenceInEmptyTree();
+        testInvalidNodes();
+    }
+
+    private static void testDigestDependsOnlyOnKeys() {
+        List<BigInteger> keys = randomKeys(new Random(1), 1000);
+
+        MerkleTree tree = new MerkleTree();
+        keys.forEach(tree::toggle);
+
+        MerkleTree reversed = new MerkleTree();
+        for (int i = keys.size() - 1; i >= 0; i--)
+            reversed.toggle(keys.get(i));
+
+        assertEquals(tree.getDigest(0, 0), reversed.getDigest(0, 0), "Root digest of the same keys added in another order");
+        assertTrue(tree.getDigest(0, 0) != 0, "Root digest of a non-empty set");
+    }
+
+    private static void testToggleRemovesKey() {
+        MerkleTree tree = new MerkleTree();
+        BigInteger key = BigInteger.valueOf(42);
+        int leaf = MerkleTree.getLeaf(key);
+
+        tree.toggle(key);
+        assertEquals(Set.of(key), tree.getKeys(Set.of(leaf)), "Keys of the leaf of an added key");
+
+        tree.toggle(key);
+        assertEquals(Set.of(), tree.getKeys(Set.of(leaf)), "Keys of the leaf of a removed key");
+        for (int level = MerkleTree.DEPTH, index = leaf; level >= 0; level--, index /= MerkleTree.BRANCHING)
+            assertEquals(0L, tree.getDigest(level, index), "Digest at level " + level + " after removing the only key");
+    }
+
+    private static void testEqualSetsHaveNoDifference() {
+        List<BigInteger> keys = randomKeys(new Random(2), 500);
+        MerkleTree a = new MerkleTree();
+        MerkleTree b = new MerkleTree();
+        keys.forEach(a::toggle);
+        keys.forEach(b::toggle);
+
+        assertEquals(Set.of(), findDifferentLeaves(a, b), "Leaves that differ between equal sets");
+    }
+
+    private static void testDifferenceIsFound() {
+        Random random = new Random(3);
+        List<BigInteger> common = randomKeys(random, 5000);
+        List<BigInteger> onlyInA = randomKeys(random, 20);
+        List<BigInteger> onlyInB = randomKeys(random, 10);
+
+        MerkleTree a = new MerkleTree();
+        MerkleTree b = new MerkleTree();
+        common.forEach(a::toggle);
+        common.forEach(b::toggle);
+        onlyInA.forEach(a::toggle);
+        onlyInB.forEach(b::toggle);
+
+        Set<Integer> leaves = findDifferentLeaves(a, b);
+
+        HashSet<Integer> expectedLeaves = new HashSet<>();
+        onlyInA.forEach(key -> expectedLeaves.add(MerkleTree.getLeaf(key)));
+        onlyInB.forEach(key -> expectedLeaves.add(MerkleTree.getLeaf(key)));
+        assertEquals(expectedLeaves, leaves, "Leaves that differ");
+
+        HashSet<BigInteger> missingFromB = a.getKeys(leaves);
+        missingFromB.removeAll(b.getKeys(leaves));
+        assertEquals(new HashSet<>(onlyInA), missingFromB, "Keys missing from the second set");
+
+        HashSet<BigInteger> missingFromA = b.getKeys(leaves);
+        missingFromA.removeAll(a.getKeys(leaves));
+        assertEquals(new HashSet<>(onlyInB), missingFromA, "Keys missing from the first set");
+    }
+
+    private static void testDifferenceInEmptyTree() {
+        List<BigInteger> keys = randomKeys(new Random(4), 100);
+        MerkleTree full = new MerkleTree();
+        keys.forEach(full::toggle);
+
+        Set<Integer> leaves = findDifferentLeaves(full, new MerkleTree());
+        assertEquals(new HashSet<>(keys), full.getKeys(leaves), "Keys missing from an empty set");
+    }
+
+    private static void testInvalidNodes() {
+        assertTrue(MerkleTree.isValidNode(0, 0), "The root");
+        assertTrue(MerkleTree.isValidNode(MerkleTree.DEPTH, LEAVES - 1), "The last leaf");
+        assertFalse(MerkleTree.isValidNode(0, 1), "A second root");
+        assertFalse(MerkleTree.isValidNode(MerkleTree.DEPTH + 1, 0), "A level below the leaves");
+        assertFalse(MerkleTree.isValidNode(1, -1), "A negative index");
+
+        MerkleTree tree = new MerkleTree();
+        tree.toggle(BigInteger.ONE);
+        assertEquals(Set.of(), tree.getKeys(Set.of(-1, LEAVES)), "Keys of leaves that do not exist");
+    }
+
+    /**
+     * Compares the given trees from the root down, only descending into the nodes whose digests differ.
+     *
+     * @param a
+     * @param b
+     * @return The leaves whose digests differ.
+     */
+    private static Set<Integer> findDifferentLeaves(MerkleTree a, MerkleTree b) {
+        List<Integer> different = List.of(0);
+
+        for (int level = 0; level <= MerkleTree.DEPTH; level++) {
+            ArrayList<Integer> differentAtLevel = new ArrayList<>();
+            for (int index : different)
+                if (a.getDigest(level, index) != b.getDigest(level, index))
+                    differentAtLevel.add(index);
+
+            if (level == MerkleTree.DEPTH)
+                return new HashSet<>(differentAtLevel);
+
+            different = new ArrayList<>();
+            for (int index : differentAtLevel)
+                for (int child = 0; child < MerkleTree.BRANCHING; child++)
+                    different.add(index * MerkleTree.BRANCHING + child);
+        }
+
+        throw new IllegalStateException();
+    }
+
+    private static List<BigInteger> randomKeys(Random random, int count) {
+        ArrayList<BigInteger> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            keys.add(new BigInteger(160, random));
+
+        return keys;
+    }
+}
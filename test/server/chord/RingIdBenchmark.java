@@ -0,0 +1,120 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static server.chord.Node.ID_BITS;
+
+/**
+ * Measures the finger table walk of FingerTable.getNextBestNode, made on every lookup hop, with RingId positions,
+ * compared with the same walk on BigInteger positions (as it was before RingId), for a table of random fingers.
+ * Run with: java -cp <output-directory> server.chord.RingIdBenchmark
+ */
+public class RingIdBenchmark {
+    private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(ID_BITS);
+    private static final int KEYS = 1024;
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MEASUREMENT_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        BigInteger self = new BigInteger(ID_BITS, random);
+
+        /* Finger i is the first node at least 2^i after this one, so it is somewhere in that range */
+        BigInteger[] fingers = new BigInteger[ID_BITS];
+        RingId[] fingerIds = new RingId[ID_BITS];
+        for (int i = 0; i < ID_BITS; i++) {
+            BigInteger offset = BigInteger.ONE.shiftLeft(i).add(new BigInteger(i + 1, random).shiftRight(1));
+            fingers[i] = self.add(offset).mod(RING_SIZE);
+            fingerIds[i] = RingId.of(fingers[i]);
+        }
+
+        BigInteger[] keys = new BigInteger[KEYS];
+        RingId[] keyIds = new RingId[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new BigInteger(ID_BITS, random);
+            keyIds[i] = RingId.of(keys[i]);
+        }
+
+        RingId selfId = RingId.of(self);
+        Runnable ringIdWalk = () -> {
+            for (RingId key : keyIds)
+                consume(nextBestNode(selfId, fingerIds, key));
+        };
+        Runnable bigIntegerWalk = () -> {
+            for (BigInteger key : keys)
+                consume(nextBestNode(self, fingers, key));
+        };
+
+        System.out.printf("%-12s %14s%n", "positions", "ns per lookup");
+        System.out.printf("%-12s %14.1f%n", "BigInteger", measure(bigIntegerWalk));
+        System.out.printf("%-12s %14.1f%n", "RingId", measure(ringIdWalk));
+    }
+
+    private static volatile Object sink;
+
+    private static void consume(Object value) {
+        sink = value;
+    }
+
+    /**
+     * Runs the given walk over every key repeatedly, first to warm up, then to measure.
+     *
+     * @param walk
+     * @return The time of a walk for a single key, in nanoseconds.
+     */
+    private static double measure(Runnable walk) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end)
+            walk.run();
+
+        long walks = 0;
+        long start = System.nanoTime();
+        end = start + MEASUREMENT_NANOS;
+        do {
+            walk.run();
+            walks++;
+        } while (System.nanoTime() < end);
+
+        return (System.nanoTime() - start) / (double) (walks * KEYS);
+    }
+
+    /**
+     * The walk of FingerTable.getNextBestNode.
+     *
+     * @param self
+     * @param fingers
+     * @param key
+     * @return
+     */
+    private static RingId nextBestNode(RingId self, RingId[] fingers, RingId key) {
+        for (int i = fingers.length - 1; i >= 0; i--)
+            if (fingers[i].isBetween(self, key))
+                return fingers[i];
+
+        return fingers[0];
+    }
+
+    /**
+     * The walk of FingerTable.getNextBestNode on BigIntegers, with the between check used before RingId.
+     *
+     * @param self
+     * @param fingers
+     * @param key
+     * @return
+     */
+    private static BigInteger nextBestNode(BigInteger self, BigInteger[] fingers, BigInteger key) {
+        for (int i = fingers.length - 1; i >= 0; i--) {
+            BigInteger finger = fingers[i];
+            boolean between = self.compareTo(key) < 0
+                    ? finger.compareTo(self) > 0 && finger.compareTo(key) <= 0
+                    : finger.compareTo(self) > 0 || finger.compareTo(key) <= 0;
+
+            if (between)
+                return finger;
+        }
+
+        return fingers[0];
+    }
+}
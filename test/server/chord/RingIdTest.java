@@ -0,0 +1,154 @@
+package server.chord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static server.chord.Node.ID_BITS;
+import static server.utils.Assert.*;
+
+/**
+ * Checks the ring arithmetic of RingId against the same arithmetic on BigIntegers, modulo the size of the ring.
+ */
+public class RingIdTest {
+    private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(ID_BITS);
+    private static final int RANDOM_CASES = 10000;
+
+    public static void main(String[] args) throws IOException {
+        testPositionIsKeyModuloRingSize();
+        testAddCarries();
+        testAddWrapsAround();
+        testAddMatchesBigInteger();
+        testIsBetween();
+        testIsBetweenMatchesBigInteger();
+        testMidpoint();
+        testWriteAndRead();
+        testReadRejectsEmptyIds();
+    }
+
+    private static void testPositionIsKeyModuloRingSize() {
+        assertEquals(RING_SIZE.subtract(BigInteger.ONE), RingId.of(BigInteger.ONE.negate()).toBigInteger(), "-1 is the last position");
+        assertEquals(BigInteger.ZERO, RingId.of(RING_SIZE).toBigInteger(), "The size of the ring is position 0");
+        assertEquals(BigInteger.ONE, RingId.of(RING_SIZE.add(BigInteger.ONE)).toBigInteger(), "Positions wrap around the ring");
+        assertEquals(RingId.ONE, RingId.of(BigInteger.ONE), "ONE is position 1");
+    }
+
+    private static void testAddCarries() {
+        BigInteger lowMax = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        assertEquals(BigInteger.ONE.shiftLeft(64), RingId.of(lowMax).add(RingId.ONE).toBigInteger(), "Carry from the low part");
+
+        BigInteger middleMax = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        assertEquals(BigInteger.ONE.shiftLeft(128), RingId.of(middleMax).add(RingId.ONE).toBigInteger(), "Carry through the middle part");
+
+        /* The middle parts alone do not overflow, but do with the carry from the low parts */
+        BigInteger middleOnly = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE.shiftLeft(64));
+        assertEquals(BigInteger.ONE.shiftLeft(128), RingId.of(middleOnly).add(RingId.of(BigInteger.ONE.shiftLeft(64))).toBigInteger(), "Carry from the middle part");
+        assertEquals(middleMax.add(BigInteger.ONE.shiftLeft(64)), RingId.of(middleOnly).add(RingId.of(lowMax.add(BigInteger.ONE.shiftLeft(64)))).toBigInteger(), "Carry from the low part into a full middle part");
+    }
+
+    private static void testAddWrapsAround() {
+        RingId last = RingId.of(RING_SIZE.subtract(BigInteger.ONE));
+        assertEquals(RingId.of(BigInteger.ZERO), last.add(RingId.ONE), "The position after the last one is 0");
+        assertEquals(RingId.of(RING_SIZE.subtract(BigInteger.TWO)), last.add(last), "Adding wraps around the ring");
+    }
+
+    private static void testAddMatchesBigInteger() {
+        Random random = new Random(1);
+
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            BigInteger a = randomPosition(random);
+            BigInteger b = randomPosition(random);
+
+            assertEquals(a.add(b).mod(RING_SIZE), RingId.of(a).add(RingId.of(b)).toBigInteger(), a + " + " + b);
+        }
+    }
+
+    private static void testIsBetween() {
+        RingId ten = RingId.of(BigInteger.TEN);
+        RingId twenty = RingId.of(BigInteger.valueOf(20));
+        RingId fifteen = RingId.of(BigInteger.valueOf(15));
+        RingId five = RingId.of(BigInteger.valueOf(5));
+
+        assertTrue(fifteen.isBetween(ten, twenty), "15 is between 10 and 20");
+        assertTrue(twenty.isBetween(ten, twenty), "The upper position is included");
+        assertFalse(ten.isBetween(ten, twenty), "The lower position is excluded");
+        assertFalse(five.isBetween(ten, twenty), "5 is not between 10 and 20");
+
+        /* Intervals that wrap around the ring */
+        assertTrue(five.isBetween(twenty, ten), "5 is between 20 and 10, around the ring");
+        assertTrue(RingId.of(BigInteger.ZERO).isBetween(twenty, ten), "0 is between 20 and 10, around the ring");
+        assertFalse(fifteen.isBetween(twenty, ten), "15 is not between 20 and 10, around the ring");
+
+        /* An interval from a position to itself is the whole ring */
+        assertTrue(five.isBetween(ten, ten), "Any position is between a position and itself");
+        assertTrue(ten.isBetween(ten, ten), "A position is between itself and itself");
+    }
+
+    private static void testIsBetweenMatchesBigInteger() {
+        Random random = new Random(2);
+
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            BigInteger lower = randomPosition(random);
+            BigInteger upper = randomPosition(random);
+            BigInteger key = random.nextInt(4) == 0 ? upper : randomPosition(random);
+
+            /* Between going forward from the lower position: the distance to the key is within the one to the upper position */
+            BigInteger keyDistance = key.subtract(lower).mod(RING_SIZE);
+            BigInteger upperDistance = upper.subtract(lower).mod(RING_SIZE);
+            boolean expected = upperDistance.signum() == 0 || (keyDistance.signum() > 0 && keyDistance.compareTo(upperDistance) <= 0);
+
+            assertEquals(expected, RingId.of(key).isBetween(RingId.of(lower), RingId.of(upper)), key + " between " + lower + " and " + upper);
+        }
+    }
+
+    private static void testMidpoint() {
+        RingId ten = RingId.of(BigInteger.TEN);
+        assertEquals(RingId.of(BigInteger.valueOf(15)), ten.midpoint(RingId.of(BigInteger.valueOf(20))), "Midpoint of 10 and 20");
+
+        /* Going forward from the last position to 10 crosses 0 */
+        RingId last = RingId.of(RING_SIZE.subtract(BigInteger.ONE));
+        assertEquals(RingId.of(BigInteger.valueOf(4)), last.midpoint(ten), "Midpoint around the ring");
+    }
+
+    private static void testWriteAndRead() throws IOException {
+        Random random = new Random(3);
+
+        for (int i = 0; i < 100; i++) {
+            RingId id = RingId.of(randomPosition(random));
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            id.write(new DataOutputStream(output));
+            RingId read = RingId.read(new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+
+            assertEquals(id, read, "Written and read ID");
+            assertEquals(id.hashCode(), read.hashCode(), "Hash of the written and read ID");
+        }
+
+        /* Keys are written as their two's complement representation, with its length */
+        byte[] key = BigInteger.valueOf(300).toByteArray();
+        byte[] written = new byte[1 + key.length];
+        written[0] = (byte) key.length;
+        System.arraycopy(key, 0, written, 1, key.length);
+        assertEquals(RingId.of(BigInteger.valueOf(300)), RingId.read(new DataInputStream(new ByteArrayInputStream(written))), "Key read as an ID");
+    }
+
+    private static void testReadRejectsEmptyIds() {
+        assertThrows(StreamCorruptedException.class,
+                () -> RingId.read(new DataInputStream(new ByteArrayInputStream(new byte[]{0}))),
+                "An ID of length 0");
+    }
+
+    private static BigInteger randomPosition(Random random) {
+        /* Positions close to the ends of the parts, where carries happen, are as likely as any other */
+        if (random.nextBoolean())
+            return new BigInteger(ID_BITS, random);
+
+        BigInteger part = BigInteger.ONE.shiftLeft(64 * (1 + random.nextInt(2)));
+        return part.add(BigInteger.valueOf(random.nextInt(5) - 2)).mod(RING_SIZE);
+    }
+}
@@ -0,0 +1,134 @@
+package server.chord;
+
+import java.math.BigInteger;
+
+import static server.utils.Assert.*;
+
+/**
+ * Checks that the cache stays within its capacity, evicts the least recently used values first,
+ * and keeps the values read more than once when many values are read only once.
+ */
+public class ValueCacheTest {
+    private static final int CAPACITY = 1000;
+    private static final int VALUE_LENGTH = 100;
+
+    public static void main(String[] args) {
+        testGetReturnsCachedValue();
+        testLeastRecentlyUsedValuesAreEvicted();
+        testLargeValuesAreNotCached();
+        testReplacedValueIsCountedOnce();
+        testRemove();
+        testValuesReadAgainSurviveScans();
+        testProtectedValuesAreDemotedBeforeEviction();
+    }
+
+    private static void testGetReturnsCachedValue() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        byte[] value = value(1);
+        cache.put(key(1), value);
+
+        assertTrue(cache.get(key(1)) == value, "Cached value");
+        assertEquals(null, cache.get(key(2)), "Value that was never cached");
+    }
+
+    private static void testLeastRecentlyUsedValuesAreEvicted() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        int count = 2 * CAPACITY / VALUE_LENGTH;
+        for (int i = 0; i < count; i++)
+            cache.put(key(i), value(i));
+
+        /* Only the values that were not evicted are read, as reading one changes its place in the cache */
+        for (int i = 0; i < count / 2; i++)
+            assertEquals(null, cache.get(key(i)), "Value " + i + ", among the first cached");
+
+        for (int i = count / 2; i < count; i++)
+            assertTrue(cache.get(key(i)) != null, "Value " + i + ", among the last cached");
+    }
+
+    private static void testLargeValuesAreNotCached() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        cache.put(key(1), value(1));
+        cache.put(key(2), new byte[CAPACITY / 8 + 1]);
+
+        assertEquals(null, cache.get(key(2)), "Value larger than an eighth of the capacity");
+        assertTrue(cache.get(key(1)) != null, "Value cached before a large value");
+
+        /* A large value replacing a cached one removes it, as the cached one is out of date */
+        cache.put(key(1), new byte[CAPACITY]);
+        assertEquals(null, cache.get(key(1)), "Value replaced by a large value");
+    }
+
+    private static void testReplacedValueIsCountedOnce() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        for (int i = 0; i < 5; i++)
+            cache.put(key(0), value(0));
+
+        for (int i = 1; i < CAPACITY / VALUE_LENGTH; i++)
+            cache.put(key(i), value(i));
+
+        for (int i = 0; i < CAPACITY / VALUE_LENGTH; i++)
+            assertTrue(cache.get(key(i)) != null, "Value " + i + " of a full cache, whose first value was replaced");
+    }
+
+    private static void testRemove() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        cache.put(key(1), value(1));
+        cache.put(key(2), value(2));
+        cache.get(key(2));
+
+        cache.remove(key(1));
+        cache.remove(key(2));
+
+        assertEquals(null, cache.get(key(1)), "Removed value in probation");
+        assertEquals(null, cache.get(key(2)), "Removed protected value");
+    }
+
+    private static void testValuesReadAgainSurviveScans() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        cache.put(key(-1), value(-1));
+        cache.put(key(-2), value(-2));
+        cache.get(key(-1));
+        cache.get(key(-2));
+
+        /* Values read once, as when a file is restored, which are many more than fit in the cache */
+        for (int i = 0; i < 100; i++) {
+            cache.put(key(i), value(i));
+            cache.get(key(i));
+            cache.get(key(-1));
+        }
+
+        assertTrue(cache.get(key(-1)) != null, "Value read often");
+
+        ValueCache scanned = new ValueCache(CAPACITY);
+        scanned.put(key(-1), value(-1));
+        scanned.get(key(-1));
+        for (int i = 0; i < 100; i++)
+            scanned.put(key(i), value(i));
+
+        assertTrue(scanned.get(key(-1)) != null, "Value read again, after values that were only cached");
+    }
+
+    private static void testProtectedValuesAreDemotedBeforeEviction() {
+        ValueCache cache = new ValueCache(CAPACITY);
+        int count = CAPACITY / VALUE_LENGTH - 1;
+
+        /* More values are read again than fit in the protected segment, but all of them fit in the cache */
+        for (int i = 0; i < count; i++) {
+            cache.put(key(i), value(i));
+            cache.get(key(i));
+        }
+
+        for (int i = 0; i < count; i++)
+            assertTrue(cache.get(key(i)) != null, "Value " + i + ", which was read again");
+    }
+
+    private static BigInteger key(int i) {
+        return BigInteger.valueOf(i);
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[VALUE_LENGTH];
+        value[0] = (byte) i;
+        return value;
+    }
+}
@@ -0,0 +1,151 @@
+package server.communication;
+
+import common.ConsistencyLevel;
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.chord.RingId;
+import server.communication.operations.*;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static server.utils.Assert.*;
+
+/**
+ * Checks that operations are decoded as they were encoded, and that malformed operations are rejected
+ * before anything is allocated for them.
+ */
+public class OperationCodecTest {
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        testRoundTrips();
+        testUnregisteredOperation();
+        testUnknownType();
+        testTruncatedOperation();
+        testZeroLengthKeys();
+        testKeysAndValues();
+        testInvalidLengths();
+    }
+
+    private static void testRoundTrips() throws IOException, NoSuchAlgorithmException {
+        NodeInfo origin = new NodeInfo(InetAddress.getByName("192.168.1.2"), 8000);
+        NodeInfo ipv6Origin = new NodeInfo(InetAddress.getByName("2001:db8::1"), 8001, 3);
+        RingId destination = RingId.of(BigInteger.valueOf(12345));
+
+        ConcurrentHashMap<BigInteger, byte[]> values = new ConcurrentHashMap<>();
+        values.put(BigInteger.ONE, new byte[]{1, 2, 3});
+        values.put(BigInteger.valueOf(-2), new byte[0]);
+        values.put(BigInteger.ONE.shiftLeft(Node.ID_BITS - 1), new byte[1000]);
+        HashSet<BigInteger> keys = new HashSet<>(values.keySet());
+
+        List<Operation> operations = List.of(
+                new NotifyOperation(ipv6Origin),
+                new RequestPredecessorOperation(origin),
+                new RequestPredecessorResultOperation(origin, ipv6Origin),
+                new InsertOperation(origin, BigInteger.TEN, new byte[]{4, 5, 6}, ConsistencyLevel.QUORUM),
+                new GetOperation(origin, BigInteger.valueOf(-1)),
+                new DeleteOperation(origin, BigInteger.TEN),
+                new ContainsKeyOperation(origin, BigInteger.TEN),
+                new ReplicationOperation(origin, BigInteger.TEN, new byte[100]),
+                new ReplicationSyncOperation(origin, keys),
+                new ReplicationSyncResultOperation(origin, new HashSet<>()),
+                new SendKeysOperation(origin, values),
+                new SendKeysResultOperation(origin),
+                new ReplicationBatchOperation(origin, 7, values),
+                new MerkleSyncOperation(origin, 2, new int[]{0, 5, 63}, new long[]{-1, 0, Long.MAX_VALUE}),
+                new MerkleSyncResultOperation(origin, true, 2, new int[]{5}),
+                new ReplicationRangeSyncOperation(origin, new int[]{1, 2}, keys),
+                new SendKeysBatchOperation(origin, 8, values),
+                new LoadReportOperation(origin, 1L << 40, 12345),
+                new FindNextHopOperation(origin, 9, BigInteger.TEN, 3, true));
+
+        for (Operation operation : operations) {
+            String name = operation.getClass().getSimpleName();
+            byte[] encoded = OperationCodec.encode(destination, operation);
+            Operation decoded = OperationCodec.decode(encoded);
+
+            assertEquals(operation.getClass(), decoded.getClass(), "Type of a decoded " + name);
+            assertEquals(destination, decoded.getDestination(), "Destination of a decoded " + name);
+            assertEquals(operation.getOrigin(), decoded.getOrigin(), "Origin of a decoded " + name);
+            assertEquals(operation.getOrigin().getSocketAddress(), decoded.getOrigin().getSocketAddress(), "Address of the origin of a decoded " + name);
+
+            /* The operations do not expose all of their fields, but a decoded one encodes to the same bytes */
+            assertTrue(Arrays.equals(encoded, OperationCodec.encode(destination, decoded)), "Encoding of a decoded " + name);
+        }
+    }
+
+    private static void testUnregisteredOperation() throws NoSuchAlgorithmException, IOException {
+        Operation operation = new Operation(new NodeInfo(InetAddress.getByName("10.0.0.1"), 8000)) {
+            @Override
+            public void run(Node currentNode) {
+            }
+        };
+
+        assertThrows(NotSerializableException.class, () -> OperationCodec.encode(RingId.ONE, operation), "Operation without a type");
+    }
+
+    private static void testUnknownType() {
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.decode(new byte[]{0, 1, 1}), "Operation of type 0");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.decode(new byte[]{(byte) 255, 1, 1}), "Operation of type 255");
+    }
+
+    private static void testTruncatedOperation() throws IOException, NoSuchAlgorithmException {
+        NodeInfo origin = new NodeInfo(InetAddress.getByName("10.0.0.1"), 8000);
+        byte[] encoded = OperationCodec.encode(RingId.ONE, new InsertOperation(origin, BigInteger.TEN, new byte[100], ConsistencyLevel.ONE));
+
+        for (int length = 0; length < encoded.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IOException.class, () -> OperationCodec.decode(truncated), "Operation truncated to " + length + " bytes");
+        }
+    }
+
+    private static void testZeroLengthKeys() throws IOException, NoSuchAlgorithmException {
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readKey(input(new byte[]{0, 1})), "Key of length 0");
+
+        /* The destination is the first field after the type */
+        byte[] encoded = OperationCodec.encode(RingId.ONE, new DeleteOperation(new NodeInfo(InetAddress.getByName("10.0.0.1"), 8000), BigInteger.TEN));
+        encoded[1] = 0;
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.decode(encoded), "Destination of length 0");
+    }
+
+    private static void testKeysAndValues() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        BigInteger largeKey = BigInteger.ONE.shiftLeft(Node.ID_BITS).subtract(BigInteger.ONE);
+        OperationCodec.writeKey(output, BigInteger.ZERO);
+        OperationCodec.writeKey(output, BigInteger.valueOf(-300));
+        OperationCodec.writeKey(output, largeKey);
+        OperationCodec.writeValue(output, null);
+        OperationCodec.writeValue(output, new byte[0]);
+        OperationCodec.writeKeys(output, new HashSet<>(Set.of(BigInteger.ONE, BigInteger.TWO)));
+
+        DataInputStream input = input(bytes.toByteArray());
+        assertEquals(BigInteger.ZERO, OperationCodec.readKey(input), "Key 0");
+        assertEquals(BigInteger.valueOf(-300), OperationCodec.readKey(input), "Negative key");
+        assertEquals(largeKey, OperationCodec.readKey(input), "Largest key");
+        assertEquals(null, OperationCodec.readValue(input), "Null value");
+        assertEquals(0, OperationCodec.readValue(input).length, "Empty value");
+        assertEquals(Set.of(BigInteger.ONE, BigInteger.TWO), OperationCodec.readKeys(input), "Keys");
+        assertEquals(0, input.available(), "Bytes left");
+    }
+
+    private static void testInvalidLengths() {
+        /* Lengths larger than the bytes left, which would otherwise be allocated before failing to read them */
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readValue(input(new byte[]{0x7F, 0, 0, 0, 1, 2})), "Value longer than the input");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readValue(input(new byte[]{-1, -1, -1, -2})), "Value of negative length");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readKeys(input(new byte[]{0, 0, 0, 3, 1, 1, 1, 2})), "More keys than fit in the input");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readInts(input(new byte[]{0, 0, 0, 2, 0, 0, 0, 1})), "More ints than fit in the input");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readLongs(input(new byte[]{0, 0, 0, 1, 0, 0, 0, 1})), "More longs than fit in the input");
+        assertThrows(StreamCorruptedException.class, () -> OperationCodec.readKeyValues(input(new byte[]{0x10, 0, 0, 0})), "More values than fit in the input");
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
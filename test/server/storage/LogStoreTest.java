@@ -0,0 +1,268 @@
+package server.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static server.utils.Assert.*;
+
+/**
+ * Checks that the values of a store are found again when it is reopened, from its hint files or from its segments,
+ * that a segment ending in an incomplete or corrupted record is truncated, and that compaction keeps the live values.
+ */
+public class LogStoreTest {
+    private static final int LARGE_VALUE_LENGTH = 1024 * 1024;
+    private static final long COMPACTION_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    public static void main(String[] args) {
+        try {
+            testPutGetAndDelete();
+            testRecovery();
+            testTruncatedRecord();
+            testCorruptedRecord();
+            testTrailingGarbage();
+            testCompactionAndHints();
+        } catch (Throwable e) {
+            /* The maintenance threads of a store left open by a failed check would keep the test running */
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void testPutGetAndDelete() throws IOException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            LogStore store = new LogStore(directory);
+
+            assertTrue(store.put(key(1), value(1, 10)), "First value of a key");
+            assertFalse(store.put(key(1), value(2, 20)), "Second value of a key");
+            assertTrue(Arrays.equals(value(2, 20), store.get(key(1))), "Replaced value");
+
+            ByteBuffer buffer = store.getBuffer(key(1));
+            assertEquals(ByteBuffer.wrap(value(2, 20)), buffer, "Value read into a buffer");
+
+            assertTrue(store.delete(key(1)), "Deletion of a stored key");
+            assertFalse(store.delete(key(1)), "Deletion of a deleted key");
+            assertEquals(null, store.get(key(1)), "Deleted value");
+            assertFalse(store.contains(key(1)), "Deleted key");
+
+            store.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void testRecovery() throws IOException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            LogStore store = new LogStore(directory);
+            for (int i = 0; i < 100; i++)
+                store.put(key(i), value(i, 100 + i));
+            for (int i = 0; i < 100; i += 2)
+                store.put(key(i), value(-i, 50));
+            for (int i = 0; i < 100; i += 3)
+                store.delete(key(i));
+            store.put(key(0), value(1000, 10));
+            store.close();
+
+            /* The store is opened again more than once, as each time it starts a new segment */
+            for (int reopening = 0; reopening < 2; reopening++) {
+                store = new LogStore(directory);
+
+                for (int i = 0; i < 100; i++) {
+                    byte[] expected = i == 0 ? value(1000, 10) : i % 3 == 0 ? null : i % 2 == 0 ? value(-i, 50) : value(i, 100 + i);
+                    assertTrue(Arrays.equals(expected, store.get(key(i))), "Value " + i + " after opening the store again");
+                }
+
+                assertEquals(100 - 33, store.keys().size(), "Number of keys after opening the store again");
+                store.close();
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void testTruncatedRecord() throws IOException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            long validLength = writeThreeValues(directory);
+            Path segment = directory.resolve("00000000.log");
+            try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+                file.setLength(file.length() - 3);
+            }
+
+            checkOnlyFirstTwoValues(directory, validLength, "record cut short");
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void testCorruptedRecord() throws IOException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            long validLength = writeThreeValues(directory);
+            Path segment = directory.resolve("00000000.log");
+            try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+                file.seek(file.length() - 1);
+                int last = file.read();
+                file.seek(file.length() - 1);
+                file.write(last ^ 0x01);
+            }
+
+            checkOnlyFirstTwoValues(directory, validLength, "corrupted record");
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void testTrailingGarbage() throws IOException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            writeThreeValues(directory);
+            Path segment = directory.resolve("00000000.log");
+            long length = Files.size(segment);
+            try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+                file.seek(length);
+                file.write(new byte[]{0, 0, 0, 1, 0, 0});
+            }
+
+            LogStore store = new LogStore(directory);
+            for (int i = 1; i <= 3; i++)
+                assertTrue(Arrays.equals(value(i, 1000), store.get(key(i))), "Value " + i + " before an incomplete header");
+            store.close();
+
+            assertEquals(length, Files.size(segment), "Length of a segment ending in an incomplete header");
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void testCompactionAndHints() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("logstore");
+        try {
+            /* The first segment is filled, and sealed when the last key no longer fits in it */
+            int count = (int) (LogStore.SEGMENT_SIZE / LARGE_VALUE_LENGTH);
+            LogStore store = new LogStore(directory);
+            for (int i = 0; i < count; i++)
+                store.put(key(i), value(i, LARGE_VALUE_LENGTH));
+
+            Path firstSegment = directory.resolve("00000000.log");
+            waitUntil(() -> Files.exists(directory.resolve("00000000.hint")), "Hint file of the sealed segment");
+
+            /* Replacing half of its values makes it garbage enough to be compacted */
+            for (int i = 0; i < count / 2; i++)
+                store.put(key(i), value(-i, LARGE_VALUE_LENGTH));
+
+            waitUntil(() -> !Files.exists(firstSegment), "Compaction of the first segment");
+            assertFalse(Files.exists(directory.resolve("00000000.hint")), "Hint file of the compacted segment");
+
+            checkCompactedValues(store, count, "after compaction");
+            long recordLength = 12 + key(0).toByteArray().length + LARGE_VALUE_LENGTH;
+            assertEquals(count * recordLength, store.liveSize(), "Live size after compaction");
+
+            Set<Path> hints = listFiles(directory, ".hint");
+            assertFalse(hints.isEmpty(), "Hint files of the segments sealed after compaction");
+            store.close();
+
+            store = new LogStore(directory);
+            checkCompactedValues(store, count, "opened from hint files");
+            store.close();
+
+            /* Invalid hint files are ignored, and the segments are read instead */
+            for (Path hint : listFiles(directory, ".hint"))
+                Files.write(hint, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+            store = new LogStore(directory);
+            checkCompactedValues(store, count, "opened with invalid hint files");
+            store.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Writes three values to a new store and closes it, leaving them in its first segment.
+     *
+     * @param directory
+     * @return The length of the records of the first two values.
+     * @throws IOException
+     */
+    private static long writeThreeValues(Path directory) throws IOException {
+        LogStore store = new LogStore(directory);
+        for (int i = 1; i <= 3; i++)
+            store.put(key(i), value(i, 1000));
+        store.close();
+
+        return 2 * (12 + key(1).toByteArray().length + 1000);
+    }
+
+    private static void checkOnlyFirstTwoValues(Path directory, long validLength, String description) throws IOException {
+        LogStore store = new LogStore(directory);
+        assertTrue(Arrays.equals(value(1, 1000), store.get(key(1))), "First value, before a " + description);
+        assertTrue(Arrays.equals(value(2, 1000), store.get(key(2))), "Second value, before a " + description);
+        assertEquals(null, store.get(key(3)), "Value in a " + description);
+        store.close();
+
+        assertEquals(validLength, Files.size(directory.resolve("00000000.log")), "Length of a segment truncated at a " + description);
+    }
+
+    private static void checkCompactedValues(LogStore store, int count, String description) throws IOException {
+        assertEquals(count, store.keys().size(), "Number of keys " + description);
+        for (int i = 0; i < count; i++) {
+            byte[] expected = i < count / 2 ? value(-i, LARGE_VALUE_LENGTH) : value(i, LARGE_VALUE_LENGTH);
+            assertTrue(Arrays.equals(expected, store.get(key(i))), "Value " + i + " " + description);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition, String description) throws InterruptedException {
+        long end = System.currentTimeMillis() + COMPACTION_TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                throw new AssertionError(description + ": timed out");
+
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<Path> listFiles(Path directory, String extension) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(extension)).collect(Collectors.toSet());
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    private static BigInteger key(int i) {
+        return BigInteger.valueOf(i);
+    }
+
+    /**
+     * Creates a value whose bytes depend on the given seed, so that values of different seeds differ.
+     *
+     * @param seed
+     * @param length
+     * @return
+     */
+    private static byte[] value(int seed, int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++)
+            value[i] = (byte) (seed * 31 + i);
+
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package server.utils;
+
+import java.util.Objects;
+
+/**
+ * Checks made by the tests, which fail them by throwing an AssertionError.
+ */
+public final class Assert {
+    /**
+     * A piece of code that is expected to throw.
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private Assert() {
+    }
+
+    public static void assertTrue(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    public static void assertFalse(boolean condition, String message) {
+        assertTrue(!condition, message);
+    }
+
+    public static void assertEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Checks that the given action throws an exception of the given type.
+     *
+     * @param type
+     * @param action
+     * @param message
+     */
+    public static void assertThrows(Class<? extends Throwable> type, Action action, String message) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e))
+                return;
+
+            throw new AssertionError(message + ": expected " + type.getSimpleName() + ", got " + e, e);
+        }
+
+        throw new AssertionError(message + ": expected " + type.getSimpleName() + ", nothing was thrown");
+    }
+}
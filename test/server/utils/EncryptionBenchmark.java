@@ -0,0 +1,134 @@
+package server.utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of encrypting chunks with the node's key, for 4 KiB, 1 MiB and 64 MiB chunks, comparing
+ * the previous way of doing it (a new AES/ECB cipher for every chunk), AES/GCM in a single call, and Encryption
+ * (pooled AES/GCM ciphers, given the content in parts), as well as decrypting with Encryption.
+ * Each is measured in a single thread and in as many threads as there are processors, as backups encrypt chunks in parallel.
+ * Run with: java -cp <output-directory> server.utils.EncryptionBenchmark
+ */
+public class EncryptionBenchmark {
+    private static final int[] SIZES = {4 * 1024, 1024 * 1024, 64 * 1024 * 1024};
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MEASUREMENT_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private interface Encryptor {
+        byte[] encrypt(byte[] content) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path keyDir = Files.createTempDirectory("encryption-benchmark");
+        Encryption.initializeKey(keyDir + "/");
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        SecretKey legacyKey = keyGenerator.generateKey();
+
+        /* How chunks were encrypted before ciphers were pooled and authenticated */
+        Encryptor legacy = content -> {
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, legacyKey);
+            return cipher.doFinal(content);
+        };
+        /* AES/GCM given all of the content at once, as Encryption did before giving it in parts */
+        SecureRandom random = new SecureRandom();
+        Encryptor singleCall = content -> {
+            byte[] nonce = new byte[12];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, legacyKey, new GCMParameterSpec(128, nonce));
+            return cipher.doFinal(content);
+        };
+        Encryptor encryption = Encryption::encrypt;
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        System.out.printf("%-10s %-8s %12s %12s %12s %12s%n", "size", "threads", "ECB MB/s", "GCM MB/s", "encrypt MB/s", "decrypt MB/s");
+
+        for (int size : SIZES) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            byte[] encryptedContent = Encryption.encrypt(content);
+
+            for (int threads : THREADS == 1 ? new int[]{1} : new int[]{1, THREADS}) {
+                System.out.printf("%-10s %-8d %12.1f %12.1f %12.1f %12.1f%n", size / 1024 + " KiB", threads,
+                        measure(pool, threads, legacy, content),
+                        measure(pool, threads, singleCall, content),
+                        measure(pool, threads, encryption, content),
+                        measure(pool, threads, Encryption::decrypt, encryptedContent));
+            }
+        }
+
+        pool.shutdown();
+        Files.deleteIfExists(keyDir.resolve("secret.key"));
+        Files.deleteIfExists(keyDir);
+    }
+
+    /**
+     * Encrypts the given content repeatedly in the given number of threads, first to warm up, then to measure.
+     *
+     * @param pool
+     * @param threads
+     * @param encryptor
+     * @param content
+     * @return The throughput, in MB/s.
+     * @throws Exception
+     */
+    private static double measure(ExecutorService pool, int threads, Encryptor encryptor, byte[] content) throws Exception {
+        run(pool, threads, encryptor, content, WARMUP_NANOS);
+
+        long start = System.nanoTime();
+        long encrypted = run(pool, threads, encryptor, content, MEASUREMENT_NANOS);
+        long elapsed = System.nanoTime() - start;
+
+        return encrypted * (double) content.length / 1e6 / (elapsed / 1e9);
+    }
+
+    /**
+     * Encrypts the given content repeatedly in the given number of threads, for about the given time.
+     *
+     * @param pool
+     * @param threads
+     * @param encryptor
+     * @param content
+     * @param duration
+     * @return The number of times the content was encrypted.
+     * @throws Exception
+     */
+    private static long run(ExecutorService pool, int threads, Encryptor encryptor, byte[] content, long duration) throws Exception {
+        long end = System.nanoTime() + duration;
+
+        ArrayList<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            results.add(pool.submit(() -> {
+                long encrypted = 0;
+                /* Each thread always encrypts at least once, so even the largest chunks are measured */
+                do {
+                    if (encryptor.encrypt(content) == null)
+                        throw new IllegalStateException("Content could not be encrypted.");
+                    encrypted++;
+                } while (System.nanoTime() < end);
+                return encrypted;
+            }));
+
+        long encrypted = 0;
+        for (Future<Long> result : results)
+            encrypted += result.get();
+
+        return encrypted;
+    }
+}